@@ -0,0 +1,146 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.scalyr.api.LogHook;
+import com.scalyr.api.logs.EventAttributes;
+import com.scalyr.api.logs.EventFilter;
+import com.scalyr.api.logs.Events;
+import com.scalyr.api.logs.Severity;
+import com.scalyr.api.logs.Span;
+
+/**
+ * Throughput and latency of the event recording path: Events.info (a leaf event), and
+ * Events.startInfo / Events.end (a span). Uploads go to a StubLogService.
+ * <p>
+ * Parameters:
+ * <ul>
+ *   <li>attributeCount, attributeSize: number of attributes per event, and length of each value.
+ *   <li>filter: "off" for no EventFilter; "on" for a filter which inspects each event's tag and
+ *       keeps it, so that events take the full filter() path.
+ *   <li>bufferFull: if false, a background thread uploads continuously, so the buffer never fills
+ *       and every event is recorded. If true, the buffer is small and never drained, so every event
+ *       is discarded as an overflow.
+ * </ul>
+ * Use -t (or ThreadScaling) to vary the number of recording threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventsBenchmark {
+  @Param({"2", "8", "32"})
+  public int attributeCount;
+  
+  @Param({"8", "128"})
+  public int attributeSize;
+  
+  @Param({"off", "on"})
+  public String filter;
+  
+  @Param({"false", "true"})
+  public boolean bufferFull;
+  
+  private static final int MEMORY_LIMIT = 64 * 1024 * 1024;
+  private static final int FULL_MEMORY_LIMIT = 256 * 1024;
+  
+  private EventAttributes attributes;
+  
+  private Thread drainThread;
+  private volatile boolean draining;
+  
+  @Setup(Level.Trial)
+  public void setUp() throws InterruptedException {
+    // Overflow warnings would otherwise be written to stderr mid-measurement.
+    LogHook.setHook(new LogHook.ThresholdLogger(Severity.error));
+    
+    attributes = new EventAttributes("tag", "benchmarkEvent");
+    StringBuilder value = new StringBuilder();
+    for (int i = 0; i < attributeSize; i++)
+      value.append((char) ('a' + i % 26));
+    for (int i = 1; i < attributeCount; i++)
+      attributes.put("attribute" + i, value.toString());
+    
+    Events.setEventFilter(filter.equals("on") ? new TagFilter() : null);
+    
+    Events._reset("benchmarkSession", new StubLogService(), bufferFull ? FULL_MEMORY_LIMIT : MEMORY_LIMIT, false);
+    
+    if (bufferFull) {
+      // Fill the buffer, so that every measured event takes the overflow path.
+      for (int i = 0; i < FULL_MEMORY_LIMIT / 16; i++)
+        Events.info(attributes);
+    } else {
+      draining = true;
+      drainThread = new Thread("EventsBenchmark drain"){
+        @Override public void run() {
+          while (draining)
+            Events._uploadTimerTick(true);
+        }};
+      drainThread.setDaemon(true);
+      drainThread.start();
+    }
+  }
+  
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    draining = false;
+    if (drainThread != null)
+      drainThread.join();
+    
+    Events.setEventFilter(null);
+  }
+  
+  @Benchmark
+  public void event() {
+    Events.info(attributes);
+  }
+  
+  @Benchmark
+  public void span() {
+    Span span = Events.startInfo(attributes);
+    Events.end(span);
+  }
+  
+  /**
+   * Filter which keeps every event, after looking at its tag.
+   */
+  private static class TagFilter extends EventFilter {
+    @Override public void filter(FilterInput input, FilterOutput output) {
+      if ("benchmarkNoise".equals(input.attributes.get("tag")))
+        output.discardEvent = true;
+    }
+  }
+}
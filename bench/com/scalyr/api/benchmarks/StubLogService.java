@@ -0,0 +1,67 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.scalyr.api.json.JSONStreamAware;
+import com.scalyr.api.logs.LogService;
+
+/**
+ * LogService which never touches the network. Each upload serializes its events (so that reading
+ * the event buffer is still part of the cost), discards the bytes, and reports success.
+ */
+public class StubLogService extends LogService {
+  private static final String SUCCESS_RESPONSE = "{\"status\":\"success\"}";
+  
+  /**
+   * Total number of event bytes "uploaded".
+   */
+  public final AtomicLong bytesUploaded = new AtomicLong();
+  
+  public StubLogService() {
+    super("stubToken");
+  }
+  
+  @Override public String uploadEvents(String sessionId, JSONStreamAware sessionInfo,
+      JSONStreamAware events, JSONStreamAware threadInfos) {
+    CountingStream stream = new CountingStream();
+    try {
+      events.writeJSONBytes(stream);
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+    
+    bytesUploaded.addAndGet(stream.count);
+    return SUCCESS_RESPONSE;
+  }
+  
+  private static class CountingStream extends OutputStream {
+    long count;
+    
+    @Override public void write(int b) {
+      count++;
+    }
+    
+    @Override public void write(byte[] b, int offset, int length) {
+      count += length;
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs a set of JMH benchmarks once per thread count, and prints a table of throughput against
+ * thread count, so that contention shows up as a flattening (or falling) curve.
+ * <p>
+ * Usage: ThreadScaling benchmarkRegex [threadCounts] [param=value ...]
+ * <p>
+ * threadCounts is a comma-separated list, defaulting to 1,2,4,8,16,32,64. Each param=value
+ * argument fixes a JMH @Param (e.g. bufferFull=false).
+ */
+public class ThreadScaling {
+  private static final String DEFAULT_THREAD_COUNTS = "1,2,4,8,16,32,64";
+  
+  public static void main(String[] args) throws RunnerException {
+    if (args.length < 1 || args[0].equals("-h")) {
+      System.out.println("Usage: ThreadScaling benchmarkRegex [threadCounts] [param=value ...]");
+      return;
+    }
+    
+    String include = args[0];
+    String threadCounts = DEFAULT_THREAD_COUNTS;
+    int firstParam = 1;
+    if (args.length > 1 && args[1].indexOf('=') < 0) {
+      threadCounts = args[1];
+      firstParam = 2;
+    }
+    
+    List<String> lines = new ArrayList<String>();
+    for (String countText : threadCounts.split(",")) {
+      int threads = Integer.parseInt(countText.trim());
+      
+      ChainedOptionsBuilder options = new OptionsBuilder()
+          .include(include)
+          .threads(threads)
+          .forks(1)
+          .shouldFailOnError(true);
+      for (int i = firstParam; i < args.length; i++) {
+        int equals = args[i].indexOf('=');
+        options.param(args[i].substring(0, equals), args[i].substring(equals + 1));
+      }
+      
+      Collection<RunResult> results = new Runner(options.build()).run();
+      for (RunResult result : results) {
+        lines.add(String.format("%-60s %3d threads  %14.3f %s",
+            result.getParams().getBenchmark() + " " + result.getParams().getMode().shortLabel(),
+            threads,
+            result.getPrimaryResult().getScore(),
+            result.getPrimaryResult().getScoreUnit()));
+      }
+    }
+    
+    System.out.println();
+    System.out.println("Thread scaling:");
+    for (String line : lines)
+      System.out.println(line);
+  }
+}
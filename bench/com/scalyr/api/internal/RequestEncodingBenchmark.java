@@ -0,0 +1,175 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.scalyr.api.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.scalyr.api.Compression;
+import com.scalyr.api.json.JSONArray;
+import com.scalyr.api.json.JSONObject;
+import com.scalyr.api.json.RawJson;
+
+/**
+ * CPU cost of turning an addEvents request into the bytes we send: ScalyrService.encodeRequest
+ * with each Compression setting, and for comparison the previous two-pass path (serialize once
+ * to count the length, then again into the connection's buffer).
+ * <p>
+ * Parameters:
+ * <ul>
+ *   <li>requestBytes: approximate size of the events array. The events are pre-serialized and
+ *       wrapped in a RawJson, as EventUploader does with the contents of its CircularByteArray.
+ *   <li>compression: "none", "gzip", or "deflate" (encode only).
+ * </ul>
+ * This class lives in com.scalyr.api.internal because EncodedRequest.release is package-private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestEncodingBenchmark {
+  @Param({"65536", "1048576"})
+  public int requestBytes;
+  
+  private JSONObject parameters;
+  
+  @Setup(Level.Trial)
+  public void setUp() {
+    // Events resembling what an application records: a handful of short attributes, with
+    // enough repetition for compression to be realistic.
+    JSONArray events = new JSONArray();
+    ByteArrayBuilder eventBytes = new ByteArrayBuilder(requestBytes + 1024);
+    long timestamp = 1349740800000000000L;
+    for (int i = 0; eventBytes.size() < requestBytes; i++) {
+      JSONObject attrs = new JSONObject();
+      attrs.put("tag", (i % 3 == 0) ? "query" : "request");
+      attrs.put("path", "/api/v1/items/" + (i % 500));
+      attrs.put("status", (i % 50 == 0) ? 500 : 200);
+      attrs.put("latencyMs", (i * 37) % 1000);
+      attrs.put("cached", i % 4 == 0);
+      
+      JSONObject event = new JSONObject();
+      event.put("thread", Long.toString(1 + i % 8));
+      event.put("ts", Long.toString(timestamp + i * 1000L));
+      event.put("type", 0);
+      event.put("sev", 3);
+      event.put("attrs", attrs);
+      
+      events.add(event);
+      eventBytes.reset();
+      try {
+        events.writeJSONBytes(eventBytes);
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+    
+    final byte[] serializedEvents = new byte[eventBytes.size()];
+    System.arraycopy(eventBytes.getBuffer(), 0, serializedEvents, 0, serializedEvents.length);
+    
+    parameters = new JSONObject();
+    parameters.put("token", "benchmarkToken");
+    parameters.put("session", "benchmarkSession");
+    parameters.put("events", new RawJson(){
+      @Override public void writeJSONBytes(OutputStream out) throws IOException {
+        out.write(serializedEvents, 0, serializedEvents.length);
+      }});
+  }
+  
+  @State(Scope.Thread)
+  public static class ServiceState {
+    @Param({"none", "gzip", "deflate"})
+    public String compression;
+    
+    StubService service;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+      service = new StubService();
+      service.setRequestCompression(Compression.valueOf(compression), Deflater.DEFAULT_COMPRESSION);
+    }
+  }
+  
+  /**
+   * Encode the request through the pooled single-pass path, and release its buffer, as invokeApi
+   * does after the last attempt.
+   */
+  @Benchmark
+  public int encode(ServiceState state) {
+    ScalyrService.EncodedRequest request = state.service.encodeRequest(parameters);
+    try {
+      return request.body.size();
+    } finally {
+      request.release();
+    }
+  }
+  
+  /**
+   * The path encodeRequest replaced (uncompressed only): one pass to compute Content-Length,
+   * then a second into a fresh buffer, as HttpURLConnection does when not in streaming mode.
+   */
+  @Benchmark
+  public int previousTwoPass() throws IOException {
+    CountingStream counter = new CountingStream();
+    parameters.writeJSONBytes(counter);
+    
+    ByteArrayOutputStream connectionBuffer = new ByteArrayOutputStream();
+    parameters.writeJSONBytes(connectionBuffer);
+    return (int) counter.count + connectionBuffer.size();
+  }
+  
+  /**
+   * ScalyrService which never invokes the server; used only for encodeRequest.
+   */
+  static class StubService extends ScalyrService {
+    StubService() {
+      super("benchmarkToken");
+    }
+  }
+  
+  private static class CountingStream extends OutputStream {
+    long count;
+    
+    @Override public void write(int b) {
+      count++;
+    }
+    
+    @Override public void write(byte[] b, int offset, int length) {
+      count += length;
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.scalyr.api.logs;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.scalyr.api.internal.ScalyrUtil;
+
+/**
+ * Throughput of EventUploader.getMonotonicNanos, which every event calls, against the
+ * synchronized implementation it replaced and against a bare ScalyrUtil.nanoTime() call.
+ * Run it through ThreadScaling to see how each one behaves as recording threads are added:
+ * <p>
+ *   ThreadScaling MonotonicClockBenchmark 1,2,4,8,16,32,64
+ * <p>
+ * This class lives in com.scalyr.api.logs because getMonotonicNanos is package-private.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MonotonicClockBenchmark {
+  private long lastTimestamp = ScalyrUtil.nanoTime();
+  
+  private final Object timestampLocker = new Object();
+  
+  @Benchmark
+  public long nanoTime() {
+    return ScalyrUtil.nanoTime();
+  }
+  
+  @Benchmark
+  public long compareAndSet() {
+    return EventUploader.getMonotonicNanos();
+  }
+  
+  /**
+   * The previous implementation of getMonotonicNanos, which took a global lock.
+   */
+  @Benchmark
+  public long synchronizedLock() {
+    long now = ScalyrUtil.nanoTime();
+    synchronized (timestampLocker) {
+      long timestamp = Math.max(lastTimestamp + 1, now);
+      lastTimestamp = timestamp;
+      
+      return timestamp;
+    }
+  }
+}
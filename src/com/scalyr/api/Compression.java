@@ -0,0 +1,55 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api;
+
+/**
+ * Encodings which can be applied to the bodies of requests sent to the Scalyr server. See
+ * Events.setRequestCompression, and setRequestCompression on LogService and KnobService.
+ */
+public enum Compression {
+  /**
+   * Send the request body uncompressed.
+   */
+  none(null),
+  
+  /**
+   * Compress the request body in gzip format.
+   */
+  gzip("gzip"),
+  
+  /**
+   * Compress the request body in zlib ("deflate") format.
+   */
+  deflate("deflate");
+  
+  /**
+   * Value for the Content-Encoding header, or null if no header should be sent.
+   */
+  private final String contentEncoding;
+  
+  private Compression(String contentEncoding) {
+    this.contentEncoding = contentEncoding;
+  }
+  
+  /**
+   * Return the value for the Content-Encoding header, or null if no header should be sent.
+   */
+  public String getContentEncoding() {
+    return contentEncoding;
+  }
+}
@@ -28,6 +28,15 @@ public class TuningConstants {
    */
   public static final int MAXIMUM_RETRY_PERIOD_MS = 60000;
   
+  /**
+   * Delay (in milliseconds) before the first retry of a failed API operation. Each further retry
+   * doubles the delay, up to API_RETRY_MAXIMUM_BACKOFF_MS. Delays are randomized downward by up to
+   * half.
+   */
+  public static final int API_RETRY_INITIAL_BACKOFF_MS = 100;
+  
+  public static final int API_RETRY_MAXIMUM_BACKOFF_MS = 5000;
+  
   /**
    * Maximum time (in milliseconds) for opening an HTTP connection to the Scalyr server.
    * If this time is exceeded, we consider server invocation to have failed.
@@ -48,21 +57,72 @@ public class TuningConstants {
   
   public static final int MAXIMUM_FETCH_INTERVAL = 60000;
   
+  /**
+   * Initial size of the buffers used to hold serialized API request bodies. Buffers grow as
+   * needed, and are pooled for reuse.
+   */
+  public static final int REQUEST_BUFFER_INITIAL_BYTES = 4096;
+  
+  /**
+   * Maximum number of request buffers retained for reuse, and the largest buffer size (in bytes)
+   * that we retain. Pooled buffers normally hold one event upload batch (MAX_EVENT_UPLOAD_BYTES),
+   * plus some overhead.
+   */
+  public static final int MAX_POOLED_REQUEST_BUFFERS = 4;
+  public static final int MAX_POOLED_REQUEST_BUFFER_BYTES = 4 * 1024 * 1024;
+  
   /**
    * Maximum length of an individual attribute in a Scalyr Logs event.
    */
   public static final int MAXIMUM_EVENT_ATTRIBUTE_LENGTH = 1000;
   
+  /**
+   * Maximum number of distinct keys to which the compact event encoding assigns IDs, per
+   * session. Further keys are written literally. See Events.setCompactAttributeKeys.
+   */
+  public static final int MAX_ATTRIBUTE_KEY_IDS = 4096;
+  
+  /**
+   * Interval at which EventUploader forgets threads which have recorded no events since the
+   * previous interval (and whose events have all left the event buffer). A thread which records
+   * another event is simply registered again.
+   */
+  public static final int THREAD_SCAVENGE_INTERVAL_MS = 60000;
+  
   /**
    * Interval between warnings that events are being discarded due to buffer overflow.
    */
   public static final int EVENT_UPLOAD_MEMORY_WARNING_INTERVAL_MS = 10000;
   
+  /**
+   * Interval at which RateLimitingFilter records a summary of the events it has suppressed.
+   */
+  public static final int RATE_LIMIT_SUMMARY_INTERVAL_MS = 60000;
+  
+  /**
+   * Maximum number of distinct attribute values for which RateLimitingFilter keeps a separate
+   * limiter. Further values which use the default limit share a single limiter; values with a
+   * limit of their own always get a separate limiter.
+   */
+  public static final int MAX_RATE_LIMITERS = 1000;
+  
+  /**
+   * Maximum number of distinct events for which EventUploader holds a coalescing window open at
+   * once (see Events.setEventCoalescingWindow). Events beyond this are recorded normally.
+   */
+  public static final int MAX_COALESCED_EVENTS = 1024;
+  
   /**
    * Interval between sampling of registered Gauges.
    */
   public static final int GAUGE_SAMPLE_INTERVAL_MS = 60000;
   
+  /**
+   * Number of separately updated cells in each Counter and Histogram. Threads are spread across
+   * the cells to avoid contention. Must be a power of 2.
+   */
+  public static final int METRIC_STRIPES = 4;
+  
   /**
    * Maximum payload size for a single invocation of LogService.uploadEvents.
    * This is the maximum size, in bytes, of the serialized events array. 
@@ -75,13 +135,64 @@ public class TuningConstants {
    */
   public static final int EVENT_UPLOAD_BYTE_THRESHOLD = 100 * 1024;
   
+  /**
+   * Size at which a thread's staged events are handed off to EventUploader's shared buffer.
+   * Events recorded by a thread are accumulated in a per-thread staging buffer, and moved to
+   * the shared buffer in batches: when this many bytes have been staged, when the thread ends
+   * a span, or when an upload is about to be issued.
+   */
+  public static final int EVENT_STAGING_BUFFER_BYTES = 8 * 1024;
+  
+  /**
+   * Default maximum number of event upload requests which may be in flight at once. Each request
+   * carries a separate chunk of the event buffer; see Events.setMaxConcurrentUploads.
+   */
+  public static final int MAX_CONCURRENT_EVENT_UPLOADS = 1;
+  
+  /**
+   * EventUploader's event buffer is allocated in pages of this many bytes, as it fills. Pages which
+   * have held no events for a while are released; see EVENT_BUFFER_PAGE_RELEASE_INTERVAL_MS.
+   */
+  public static final int EVENT_BUFFER_PAGE_BYTES = 1024 * 1024;
+  
+  /**
+   * Interval at which EventUploader considers releasing event buffer pages. If the buffer's
+   * allocated size exceeded its peak usage over the interval by more than two pages, the pages
+   * not currently holding events are released.
+   */
+  public static final int EVENT_BUFFER_PAGE_RELEASE_INTERVAL_MS = 60000;
+  
+  /**
+   * If a spill directory is configured (see Events.setSpillDirectory), we move event chunks from
+   * memory to disk once the in-memory event buffer is more than this percent full.
+   */
+  public static final int EVENT_SPILL_THRESHOLD_PERCENT = 50;
+  
+  /**
+   * Size of each file in an event spill directory. A chunk larger than this gets a file of its own.
+   */
+  public static final int SPILL_SEGMENT_BYTES = 16 * 1024 * 1024;
+  
   /**
    * Interval for checking whether to upload a new batch of events to the Scalyr
-   * Logs service. We don't necessarily upload this often, but this specifies how
-   * frequently we evaluate to see whether it's time to upload a new batch.
+   * Logs service, when we have no better basis for scheduling the check. Normally
+   * EventUploader schedules each check based on the observed event rate and upload
+   * latency, and checks immediately when a batch fills up.
    */
   public static final int EVENT_UPLOAD_CHECK_INTERVAL = 1000;
   
+  /**
+   * Minimum interval between scheduled checks for events to upload. (A check requested because
+   * a batch has filled up may come sooner.)
+   */
+  public static final int MIN_EVENT_UPLOAD_CHECK_INTERVAL = 100;
+  
+  /**
+   * Weight given to each new sample in the moving averages (of event rate and upload
+   * latency) that EventUploader uses to schedule uploads.
+   */
+  public static final double UPLOAD_SCHEDULER_EWMA_WEIGHT = 0.25;
+  
   /**
    * Time delay which triggers invocation of LogService.uploadEvents. We wait for
    * this time delay (or EVENT_UPLOAD_BYTE_THRESHOLD). We choose a value below 5
@@ -0,0 +1,121 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A growable byte array. Similar to ByteArrayOutputStream, but unsynchronized, and exposes the
+ * underlying array so that the content can be consumed without copying. Intended for buffers
+ * which are reused for many successive writes.
+ */
+public class ByteArrayBuilder extends OutputStream {
+  /**
+   * Holds the content in elements [0, length).
+   */
+  private byte[] buffer;
+  
+  private int length;
+  
+  public ByteArrayBuilder(int initialCapacity) {
+    buffer = new byte[initialCapacity];
+  }
+  
+  @Override public void write(int b) {
+    if (length == buffer.length)
+      ensureCapacity(length + 1);
+    buffer[length++] = (byte) b;
+  }
+  
+  @Override public void write(byte[] b, int offset, int count) {
+    ensureCapacity(length + count);
+    System.arraycopy(b, offset, buffer, length, count);
+    length += count;
+  }
+  
+  /**
+   * Append the remaining content of the given ByteBuffer, advancing its position.
+   */
+  public void write(ByteBuffer src) {
+    int count = src.remaining();
+    ensureCapacity(length + count);
+    src.get(buffer, length, count);
+    length += count;
+  }
+  
+  /**
+   * Return the number of bytes written since construction or the last reset().
+   */
+  public int size() {
+    return length;
+  }
+  
+  /**
+   * Return the underlying array. Only the first size() bytes are meaningful. The array is
+   * replaced when the buffer grows, so the return value should not be retained across writes.
+   */
+  public byte[] getBuffer() {
+    return buffer;
+  }
+  
+  /**
+   * Discard all content.
+   */
+  public void reset() {
+    length = 0;
+  }
+  
+  /**
+   * Discard all content after the first newSize bytes.
+   */
+  public void truncate(int newSize) {
+    ScalyrUtil.Assert(newSize >= 0 && newSize <= length, "truncate to " + newSize + " bytes in a buffer of " + length);
+    length = newSize;
+  }
+  
+  /**
+   * Discard all content, and if the underlying array has grown beyond maxRetainedCapacity,
+   * replace it with one of initialCapacity bytes. Used to avoid permanently holding onto a
+   * large array after a single oversized write.
+   */
+  public void reset(int initialCapacity, int maxRetainedCapacity) {
+    length = 0;
+    if (buffer.length > maxRetainedCapacity)
+      buffer = new byte[initialCapacity];
+  }
+  
+  /**
+   * Ensure that the underlying array can hold at least minCapacity bytes.
+   */
+  public void ensureCapacity(int minCapacity) {
+    if (minCapacity > buffer.length) {
+      byte[] newBuffer = new byte[Math.max(minCapacity, buffer.length * 2)];
+      System.arraycopy(buffer, 0, newBuffer, 0, length);
+      buffer = newBuffer;
+    }
+  }
+  
+  /**
+   * Write our content to the given stream.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(buffer, 0, length);
+  }
+}
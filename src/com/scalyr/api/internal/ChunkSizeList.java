@@ -17,33 +17,107 @@
 
 package com.scalyr.api.internal;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Collection;
 
 /**
  * This class tracks the size of a series of data chunks. It is used to
  * organize a circular buffer into chunks of bounded size.
+ * <p>
+ * This class is not thread-safe; the caller is responsible for serializing calls. Data is
+ * appended in stream order (CircularByteArray.publishCommitted invokes append as it publishes
+ * data), and chunks are closed and removed by the consumer.
+ * <p>
+ * Internally, chunks are described by stream positions (byte offsets into the sequence of
+ * all data ever appended) rather than by sizes.
+ * <p>
+ * The producer can also identify the source of each append (e.g. the thread which generated the
+ * data); the consumer is told the sources for each chunk as it closes the chunk.
  */
 public class ChunkSizeList {
   /**
-   * Defines a series of chunks in pendingEventBuffer. 
+   * Positions at which append() started a new chunk because the previous chunk would
+   * otherwise have exceeded maxChunkSize. Added to by append, trimmed by the consumer.
    */
-  private final List<MutableInt> chunkSizes = new ArrayList<MutableInt>();
+  private final ArrayDeque<Long> chunkStarts = new ArrayDeque<Long>();
   
   /**
-   * True if the first entry in chunkSizes can no longer be incremented,
-   * due to a call to closeFirst().
+   * Total number of bytes ever appended.
    */
-  private boolean firstIsClosed;
+  private long totalSize;
+  
+  /**
+   * Position at which the current (newest) chunk began.
+   */
+  private long lastChunkStart;
+  
+  /**
+   * Position at which the first (oldest) chunk begins.
+   */
+  private long firstChunkStart;
+  
+  /**
+   * End positions of the chunks which have been closed (see closeNext()), oldest first. The
+   * first closed chunk begins at firstChunkStart, and each subsequent chunk begins where the
+   * previous one ends.
+   */
+  private final ArrayDeque<Long> closedChunkEnds = new ArrayDeque<Long>();
+  
+  /**
+   * Sources passed to append(), with the positions at which their data began, for data which
+   * has not yet been closed into a chunk.
+   */
+  private final ArrayDeque<Source> sources = new ArrayDeque<Source>();
+  
+  /**
+   * Source reported by closeNext for a chunk of skipped data; see appendSkipped.
+   */
+  public static final Object SKIPPED = new Object();
+  
+  private static class Source {
+    final long position;
+    final Object source;
+    
+    Source(long position, Object source) {
+      this.position = position;
+      this.source = source;
+    }
+  }
   
   /**
    * Return the size of the first (oldest) chunk. If there are no chunks, return 0.
    */
   public int getFirst() {
-    if (chunkSizes.size() == 0)
-      return 0;
+    if (!closedChunkEnds.isEmpty())
+      return (int) (closedChunkEnds.peekFirst() - firstChunkStart);
+    
+    return getFirstUnclosed();
+  }
+  
+  /**
+   * Return the size of the oldest chunk which has not been closed. If there is no such chunk
+   * (all data belongs to closed chunks), return 0.
+   */
+  public int getFirstUnclosed() {
+    long start = closedChunkEnds.isEmpty() ? firstChunkStart : closedChunkEnds.peekLast();
+    
+    long end = totalSize;
     
-    return chunkSizes.get(0).value;
+    Long nextChunkStart;
+    while ((nextChunkStart = chunkStarts.peek()) != null && nextChunkStart <= start)
+      chunkStarts.poll();
+    
+    if (nextChunkStart != null && nextChunkStart < end)
+      end = nextChunkStart;
+    
+    return (int) (end - start);
+  }
+  
+  /**
+   * Return the number of chunks which have been closed, and not yet removed.
+   */
+  public int getClosedCount() {
+    return closedChunkEnds.size();
   }
   
   /**
@@ -51,15 +125,52 @@ public class ChunkSizeList {
    * append() call will start a new chunk.
    */
   public void closeFirst() {
-    firstIsClosed = true;
+    if (closedChunkEnds.isEmpty())
+      closeNext();
+  }
+  
+  /**
+   * Close the oldest chunk which has not yet been closed, so that it can no longer be
+   * incremented, and return its size. If there is no unclosed data, do nothing and return 0.
+   */
+  public int closeNext() {
+    return closeNext(null);
+  }
+  
+  /**
+   * Like closeNext(), but also add the source of each append in the chunk (see append) to
+   * chunkSources, in order. chunkSources may be null.
+   */
+  public int closeNext(Collection<Object> chunkSources) {
+    int size = getFirstUnclosed();
+    if (size > 0) {
+      long start = closedChunkEnds.isEmpty() ? firstChunkStart : closedChunkEnds.peekLast();
+      closedChunkEnds.addLast(start + size);
+      
+      Source source;
+      while ((source = sources.peek()) != null && source.position < start + size) {
+        sources.poll();
+        if (chunkSources != null)
+          chunkSources.add(source.source);
+      }
+    }
+    return size;
   }
   
   /**
    * Remove the first (oldest) chunk.
    */
   public void removeFirst() {
-    chunkSizes.remove(0);
-    firstIsClosed = false;
+    closeFirst();
+    if (!closedChunkEnds.isEmpty())
+      firstChunkStart = closedChunkEnds.removeFirst();
+  }
+  
+  /**
+   * Return the total number of bytes ever passed to append().
+   */
+  public long getTotalSize() {
+    return totalSize;
   }
   
   /**
@@ -67,26 +178,47 @@ public class ChunkSizeList {
    * exceed maxChunkSize, then start a new chunk of the given size.
    */
   public void append(int size, int maxChunkSize) {
+    append(size, maxChunkSize, null);
+  }
+  
+  /**
+   * Like append(int, int), but also record the source of the data, if not null. See closeNext.
+   */
+  public void append(int size, int maxChunkSize, Object source) {
     ScalyrUtil.Assert(size > 0, "event upload chunk has zero or negative size (" + size + ")");
     
-    int chunkCount = chunkSizes.size();
-    if (chunkCount == 0 || (chunkCount == 1 && firstIsClosed)) {
-      chunkSizes.add(new MutableInt(size));
-    } else {
-      MutableInt last = chunkSizes.get(chunkSizes.size() - 1);
-      if (last.value + size > maxChunkSize) {
-        chunkSizes.add(new MutableInt(size));
-      } else {
-        last.value += size;
-      }
+    long position = totalSize;
+    if (position > lastChunkStart && position - lastChunkStart + size > maxChunkSize) {
+      chunkStarts.add(position);
+      lastChunkStart = position;
+    }
+    
+    // totalSize must advance even if recording the source fails, to stay in step with the data
+    // buffer.
+    try {
+      if (source != null)
+        sources.add(new Source(position, source));
+    } finally {
+      totalSize = position + size;
     }
   }
   
-  private static class MutableInt {
-    public int value;
-    
-    public MutableInt(int value) {
-      this.value = value;
+  /**
+   * Add size bytes of skipped data: a range which an appender reserved but failed to write (see
+   * CircularByteArray.append), and whose contents must not be read. The range always forms a chunk
+   * of its own, whose only source (see closeNext) is SKIPPED; the consumer should discard the chunk
+   * rather than reading it.
+   */
+  public void appendSkipped(int size) {
+    long position = totalSize;
+    try {
+      sources.add(new Source(position, SKIPPED));
+      if (position > lastChunkStart)
+        chunkStarts.add(position);
+      chunkStarts.add(position + size);
+    } finally {
+      lastChunkStart = position + size;
+      totalSize = position + size;
     }
   }
 }
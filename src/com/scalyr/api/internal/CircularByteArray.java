@@ -19,32 +19,119 @@ package com.scalyr.api.internal;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.scalyr.api.TuningConstants;
+import com.scalyr.api.logs.Severity;
 
 /**
  * Implements a circular buffer for buffering log data. Designed to minimize blocking.
+ * <p>
+ * Any number of threads may append to the buffer concurrently, while a single consumer thread
+ * reads and discards data from the other end. No locks are used, and appenders never wait for
+ * one another. An appender claims space by advancing reservedPosition with a compare-and-set,
+ * copies its data into the claimed range, and then commits the range by pushing a Commit record
+ * (its position, length, and source) onto a lock-free stack. The consumer collects commits in
+ * publishCommitted, and makes data visible in reservation order: publishedPosition advances over
+ * a range only once that range, and every range before it, has been committed. An appender which
+ * is descheduled between reserving and committing therefore delays the consumer's view of later
+ * data, but never blocks another appender.
+ * <p>
+ * Positions are expressed as logical offsets into the stream of all data ever appended; the
+ * physical index of a position is (position % capacity).
+ * <p>
+ * Storage is allocated in pages, as the buffer is first filled, so a buffer which never holds
+ * much data never uses much memory; see also releaseIdlePages. Pages can be held on the heap, or
+ * off-heap in direct ByteBuffers. Off-heap storage keeps large buffers out of the garbage-collected
+ * heap, where big long-lived arrays would lengthen full collections.
  */
 public class CircularByteArray {
   /**
    * The physical buffer.
    */
-  private final byte[] rawBuffer;
+  private final PagedStorage storage;
+  
+  /**
+   * Size of the physical buffer.
+   */
+  private final int capacity;
+  
+  /**
+   * Logical position of the first (oldest) buffered byte. Written only by the consumer.
+   */
+  private volatile long readPosition;
+  
+  /**
+   * Logical position just past the last byte claimed by an appender. Always >= publishedPosition.
+   * While releaseIdlePages is running, the FROZEN bit is also set, and no new space may be claimed.
+   */
+  private final AtomicLong reservedPosition = new AtomicLong(0);
+  
+  private static final long FROZEN = Long.MIN_VALUE;
+  
+  /**
+   * Logical position just past the last byte visible to the consumer. Advanced only by
+   * publishCommitted.
+   */
+  private volatile long publishedPosition;
+  
+  /**
+   * Ranges which appenders have committed, but publishCommitted has not yet collected: a stack
+   * (most recent first) linked through Commit.next.
+   */
+  private final AtomicReference<Commit> committed = new AtomicReference<Commit>();
   
   /**
-   * Index, in buffer, of the first (oldest) value. Undefined if count is 0. Ranges
-   * from 0 to buffer.length - 1.
+   * Commits collected by publishCommitted which can't be published yet, because an earlier range
+   * has not been committed. Sorted by position, and linked through Commit.next. Consumer-only.
    */
-  private int bufferStart;
+  private Commit unpublished;
   
   /**
-   * Number of buffered bytes.
+   * A range which an appender has finished with (see append). Allocated before the range is
+   * reserved, so that committing it can't fail for lack of memory.
    */
-  private int numBufferedBytes;
+  private static class Commit {
+    long position;
+    int length;
+    final Object source;
+    
+    /**
+     * False if the appender failed to copy its data into the range; see append.
+     */
+    boolean copied;
+    
+    Commit next;
+    
+    Commit(Object source) {
+      this.source = source;
+    }
+  }
   
   /**
-   * Construct a buffer of the given capacity.
+   * Construct a buffer of the given capacity, stored on the heap.
    */
   public CircularByteArray(int capacity) {
-    rawBuffer = new byte[capacity];
+    this(capacity, false);
+  }
+  
+  /**
+   * Construct a buffer of the given capacity. If offHeap is true, the data is stored in direct
+   * ByteBuffers rather than on the heap.
+   */
+  public CircularByteArray(int capacity, boolean offHeap) {
+    this.capacity = capacity;
+    storage = new PagedStorage(capacity, offHeap);
+  }
+  
+  /**
+   * Return true if this buffer's data is stored off-heap.
+   */
+  public boolean isOffHeap() {
+    return storage.offHeap;
   }
   
   /**
@@ -69,55 +156,218 @@ public class CircularByteArray {
    * If the data will not fit in its entirely, with reserveLength bytes left over,
    * then do nothing (don't add a fragment) and return false.
    */
-  public synchronized boolean append(byte[] newData, int offsetInNewData, int newDataLength,
+  public boolean append(byte[] newData, int offsetInNewData, int newDataLength,
       int reserveLength) {
-    int spaceAvailable = rawBuffer.length - numBufferedBytes - reserveLength;
-    if (spaceAvailable < newDataLength)
-      return false;
-    
-    // Add as much data as will fit before hitting the wraparound point.
-    if (numBufferedBytes == 0)
-      bufferStart = 0;
-    
-    int bufferEnd = (bufferStart + numBufferedBytes) % rawBuffer.length;
-    int chunk1Length = Math.min(newDataLength, rawBuffer.length - bufferEnd);
-    System.arraycopy(newData, offsetInNewData, rawBuffer, bufferEnd, chunk1Length);
-    offsetInNewData += chunk1Length;
-    newDataLength -= chunk1Length;
-    
-    bufferEnd = (bufferEnd + chunk1Length) % rawBuffer.length;
-    numBufferedBytes += chunk1Length;
-    
-    // If we didn't get everything in the first pass, add the rest now.
-    if (newDataLength > 0) {
-      ScalyrUtil.Assert(bufferEnd == 0, "CircularByteArray confused about buffer position");
-      ScalyrUtil.Assert(newDataLength <= bufferStart, "CircularByteArray confused about buffer capacity");
+    return append(newData, offsetInNewData, newDataLength, reserveLength, null);
+  }
+  
+  /**
+   * Like append(byte[], int, int, int), but also identify the source of the data (which may be
+   * null). The source is passed on to the ChunkSizeList when the data is published; see
+   * publishCommitted.
+   */
+  public boolean append(byte[] newData, int offsetInNewData, int newDataLength,
+      int reserveLength, Object source) {
+    if (newDataLength == 0)
+      return true;
+    
+    Commit commit = new Commit(source);
+    
+    // Claim a range of the buffer. We compare against a possibly stale readPosition; this
+    // can only cause us to underestimate the available space.
+    long start;
+    while (true) {
+      start = reservedPosition.get();
+      if ((start & FROZEN) != 0) {
+        Thread.yield();
+        continue;
+      }
       
-      System.arraycopy(newData, offsetInNewData, rawBuffer, bufferEnd, newDataLength);
-      numBufferedBytes += newDataLength;
+      long spaceAvailable = capacity - (start - readPosition) - reserveLength;
+      if (spaceAvailable < newDataLength)
+        return false;
+      
+      if (reservedPosition.compareAndSet(start, start + newDataLength))
+        break;
     }
     
+    // From here on, we must commit our range even if something goes wrong (e.g. an
+    // OutOfMemoryError while allocating a page); otherwise the consumer would never publish
+    // anything beyond it. If the copy fails, the range is committed with unspecified contents,
+    // and published as skipped (see ChunkSizeList.appendSkipped), so that the consumer never
+    // reads it. Committing allocates nothing, so it can't fail in the same way.
+    commit.position = start;
+    commit.length = newDataLength;
+    try {
+      // Copy the data into our range, splitting at the wraparound point if necessary.
+      int bufferEnd = (int) (start % capacity);
+      int chunk1Length = Math.min(newDataLength, capacity - bufferEnd);
+      storage.put(bufferEnd, newData, offsetInNewData, chunk1Length);
+      if (chunk1Length < newDataLength)
+        storage.put(0, newData, offsetInNewData + chunk1Length, newDataLength - chunk1Length);
+      commit.copied = true;
+    } finally {
+      Commit head;
+      do {
+        head = committed.get();
+        commit.next = head;
+      } while (!committed.compareAndSet(head, commit));
+    }
     return true;
   }
   
   /**
-   * Return the number of bytes of data currently in the buffer.
+   * Publish committed data to the consumer: advance publishedPosition over each range which has
+   * been committed, and whose predecessors have all been committed, in buffer order. If chunkSizes
+   * is not null, each range is recorded there as it is published (see ChunkSizeList.append),
+   * with the source passed to append; a range whose copy failed is recorded with appendSkipped.
+   * Return the number of bytes published.
+   * <p>
+   * Must only be called by the consumer thread.
+   */
+  public int publishCommitted(ChunkSizeList chunkSizes, int maxChunkSize) {
+    Commit collected = committed.getAndSet(null);
+    if (collected != null)
+      unpublished = merge(sortByPosition(collected), unpublished);
+    
+    long position = publishedPosition;
+    long initialPosition = position;
+    while (unpublished != null && unpublished.position == position) {
+      Commit commit = unpublished;
+      try {
+        if (chunkSizes != null) {
+          if (commit.copied)
+            chunkSizes.append(commit.length, maxChunkSize, commit.source);
+          else
+            chunkSizes.appendSkipped(commit.length);
+        }
+      } finally {
+        // Stay in step with chunkSizes, which always records the range (see ChunkSizeList.append).
+        position += commit.length;
+        publishedPosition = position;
+        unpublished = commit.next;
+        commit.next = null;
+      }
+    }
+    return (int) (position - initialPosition);
+  }
+  
+  /**
+   * Sort a list of commits by position (merge sort, so that we don't allocate), and return the
+   * new head.
+   */
+  private static Commit sortByPosition(Commit list) {
+    if (list == null || list.next == null)
+      return list;
+    
+    // Split the list in half.
+    Commit slow = list, fast = list.next;
+    while (fast != null && fast.next != null) {
+      slow = slow.next;
+      fast = fast.next.next;
+    }
+    Commit second = slow.next;
+    slow.next = null;
+    
+    return merge(sortByPosition(list), sortByPosition(second));
+  }
+  
+  /**
+   * Merge two lists of commits, each sorted by position, and return the head of the result.
    */
-  public synchronized int numBufferedBytes() {
-    return numBufferedBytes;
+  private static Commit merge(Commit a, Commit b) {
+    if (a == null)
+      return b;
+    if (b == null)
+      return a;
+    
+    Commit head = null, tail = null;
+    while (a != null && b != null) {
+      Commit next;
+      if (a.position < b.position) {
+        next = a;
+        a = a.next;
+      } else {
+        next = b;
+        b = b.next;
+      }
+      
+      if (tail == null)
+        head = next;
+      else
+        tail.next = next;
+      tail = next;
+    }
+    tail.next = (a != null) ? a : b;
+    return head;
+  }
+  
+  /**
+   * Return the number of bytes of published data currently in the buffer.
+   */
+  public int numBufferedBytes() {
+    // Read readPosition first: it only advances toward publishedPosition, so this order can't
+    // yield a negative count.
+    long readSnapshot = readPosition;
+    return (int) (publishedPosition - readSnapshot);
+  }
+  
+  /**
+   * Return the number of bytes which could currently be appended (ignoring any reserve length).
+   * This is a snapshot, and may be out of date as soon as it is returned.
+   */
+  public int availableSpace() {
+    long readSnapshot = readPosition;
+    return (int) (capacity - ((reservedPosition.get() & ~FROZEN) - readSnapshot));
+  }
+  
+  /**
+   * Return the number of bytes which appenders have claimed in the buffer, including data which
+   * has not yet been published (see publishCommitted). Unlike numBufferedBytes, this is up to date
+   * on any thread.
+   */
+  public int numReservedBytes() {
+    long readSnapshot = readPosition;
+    return (int) ((reservedPosition.get() & ~FROZEN) - readSnapshot);
+  }
+  
+  /**
+   * Return the total number of bytes which have ever been appended to the buffer, and published
+   * (see publishCommitted).
+   */
+  public long totalBytesAppended() {
+    return publishedPosition;
+  }
+  
+  /**
+   * Return the total number of bytes which appenders have ever claimed, including data which has
+   * not yet been published.
+   */
+  public long totalBytesReserved() {
+    return reservedPosition.get() & ~FROZEN;
   }
   
   /**
    * Discard (truncate) the specified number of bytes from beginning (oldest portion)
    * of the buffer. If count is larger than the number of bytes in the buffer, throw
    * an exception.
+   * <p>
+   * Must only be called by the consumer thread.
    */
-  public synchronized void discardOldestBytes(int count) {
+  public void discardOldestBytes(int count) {
+    int numBufferedBytes = numBufferedBytes();
     if (count > numBufferedBytes)
       throw new RuntimeException("Attempting to discard " + count + " bytes from a buffer which contains only " + numBufferedBytes);
     
-    bufferStart = (bufferStart + count) % rawBuffer.length;
-    numBufferedBytes -= count;
+    readPosition += count;
+  }
+  
+  /**
+   * Return the logical position of the oldest byte in the buffer, i.e. the total number of bytes
+   * which have ever been discarded.
+   */
+  public long oldestPosition() {
+    return readPosition;
   }
   
   /**
@@ -130,23 +380,248 @@ public class CircularByteArray {
    * writeOldestBytes should not be called concurrently with discardldestBytes.
    */
   public void writeOldestBytes(OutputStream out, int count) throws IOException {
-    // Snapshot the current buffer position and length.
-    int bytesToWrite;
-    int startPos;
-    synchronized (this) {
-      if (count > numBufferedBytes)
-        throw new RuntimeException("Attempting to write " + count + " bytes from a buffer which contains only " + numBufferedBytes);
+    writeBytes(out, readPosition, count);
+  }
+  
+  /**
+   * Copy count bytes, beginning at the specified logical position, to the stream. If the range
+   * does not lie entirely within the buffered data, throw an exception.
+   * 
+   * This operation does not modify or advance the buffer, it merely copies data. It may be called
+   * concurrently with discardOldestBytes, provided that the caller does not discard any part of
+   * the range being written.
+   * 
+   * If the buffer is off-heap and out is a ByteArrayBuilder, the data is copied directly into the
+   * builder, with no intermediate copy.
+   */
+  public void writeBytes(OutputStream out, long position, int count) throws IOException {
+    long readSnapshot = readPosition;
+    long publishedSnapshot = publishedPosition;
+    if (position < readSnapshot || position + count > publishedSnapshot)
+      throw new RuntimeException("Attempting to write bytes [" + position + ", " + (position + count)
+          + ") from a buffer which contains only [" + readSnapshot + ", " + publishedSnapshot + ")");
+    
+    // Output the data.
+    if (count > 0) {
+      int startIndex = (int) (position % capacity);
+      int chunk1Length = Math.min(count, capacity - startIndex);
+      storage.write(out, startIndex, chunk1Length);
+      if (chunk1Length < count)
+        storage.write(out, 0, count - chunk1Length);
+    }
+  }
+  
+  /**
+   * Release storage pages which hold no buffered data, other than the page containing the
+   * append position. Pages are reallocated as needed by later appends. Return the number of
+   * bytes released.
+   * <p>
+   * Appends are briefly suspended while pages are released: we set the FROZEN bit in
+   * reservedPosition, so that no new range can be reserved. Appenders which had already reserved
+   * a range may still be copying into it, but every such range lies between readPosition and
+   * reservedPosition, whose pages we retain.
+   * <p>
+   * Must only be called by the consumer thread.
+   */
+  public int releaseIdlePages() {
+    long reserved;
+    while (true) {
+      reserved = reservedPosition.get();
+      if (reservedPosition.compareAndSet(reserved, reserved | FROZEN))
+        break;
+    }
+    
+    try {
+      // The range to retain: all buffered and reserved data, plus the next byte to be appended.
+      long retainedLength = reserved + 1 - readPosition;
+      if (retainedLength >= capacity)
+        return 0;
       
-      bytesToWrite = count;
-      startPos = bufferStart;
+      int retainedStart = (int) (readPosition % capacity);
+      int retainedEnd = (int) ((readPosition + retainedLength) % capacity);
+      return storage.releasePagesOutside(retainedStart, retainedEnd);
+    } finally {
+      reservedPosition.set(reserved);
     }
+  }
+  
+  /**
+   * Return the number of bytes of storage currently allocated. This grows (up to the buffer's
+   * capacity) as data is appended, and shrinks when releaseIdlePages is called.
+   */
+  public long allocatedBytes() {
+    return storage.allocatedBytes.get();
+  }
+  
+  /**
+   * Physical storage for the buffer: a series of pages, each EVENT_BUFFER_PAGE_BYTES long (except
+   * perhaps the last), allocated on first use. Pages are heap ByteBuffers, or direct ByteBuffers
+   * for an off-heap buffer. If a direct buffer can't be allocated (see -XX:MaxDirectMemorySize),
+   * we use a heap buffer for that page instead.
+   * <p>
+   * Ranges passed to put and write never wrap around the end of the buffer. Distinct ranges may be
+   * accessed concurrently.
+   */
+  private static class PagedStorage {
+    private final int capacity;
+    private final boolean offHeap;
     
-    // Output the data.
-    if (bytesToWrite > 0) {
-      int chunk1Length = Math.min(bytesToWrite, rawBuffer.length - startPos);
-      out.write(rawBuffer, startPos, chunk1Length);
-      if (chunk1Length < bytesToWrite)
-        out.write(rawBuffer, 0, bytesToWrite - chunk1Length);
+    private final AtomicReferenceArray<ByteBuffer> pages;
+    
+    private final AtomicLong allocatedBytes = new AtomicLong(0);
+    
+    /**
+     * Per-thread scratch array, used when writing direct pages to a stream other than a
+     * ByteArrayBuilder.
+     */
+    private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>(){
+      @Override protected byte[] initialValue() {
+        return new byte[8192];
+      }};
+    
+    /**
+     * True if we've logged a warning about failing to allocate a direct page.
+     */
+    private static volatile boolean warnedOfDirectMemoryExhaustion = false;
+    
+    PagedStorage(int capacity, boolean offHeap) {
+      this.capacity = capacity;
+      this.offHeap = offHeap;
+      
+      int pageBytes = TuningConstants.EVENT_BUFFER_PAGE_BYTES;
+      pages = new AtomicReferenceArray<ByteBuffer>((int) (((long) capacity + pageBytes - 1) / pageBytes));
+    }
+    
+    /**
+     * Return the page with the given index, allocating it if necessary.
+     */
+    private ByteBuffer getPage(int pageIndex) {
+      ByteBuffer page = pages.get(pageIndex);
+      if (page != null)
+        return page;
+      
+      int pageBytes = TuningConstants.EVENT_BUFFER_PAGE_BYTES;
+      int size = Math.min(pageBytes, capacity - pageIndex * pageBytes);
+      ByteBuffer newPage = null;
+      if (offHeap) {
+        try {
+          newPage = ByteBuffer.allocateDirect(size);
+        } catch (OutOfMemoryError ex) {
+          if (!warnedOfDirectMemoryExhaustion) {
+            warnedOfDirectMemoryExhaustion = true;
+            Logging.log(Severity.warning, Logging.tagInternalError,
+                "Unable to allocate off-heap event buffer space; using the heap instead", ex);
+          }
+        }
+      }
+      if (newPage == null)
+        newPage = ByteBuffer.allocate(size);
+      
+      // Several appenders may share a page; the first to install it wins.
+      if (pages.compareAndSet(pageIndex, null, newPage)) {
+        allocatedBytes.addAndGet(size);
+        return newPage;
+      }
+      return pages.get(pageIndex);
+    }
+    
+    /**
+     * Return a view of the given direct page, for use by a single operation. ByteBuffer positions
+     * are not thread-safe, so each access goes through its own duplicate (Java 8 has no absolute
+     * bulk get or put). We don't cache views: a cached view would keep a released page's native
+     * memory alive for as long as the thread lives.
+     */
+    private static ByteBuffer getView(ByteBuffer page) {
+      return page.duplicate();
+    }
+    
+    /**
+     * Copy length bytes from data[offset] into the buffer, starting at the given physical index.
+     */
+    void put(int index, byte[] data, int offset, int length) {
+      int pageBytes = TuningConstants.EVENT_BUFFER_PAGE_BYTES;
+      while (length > 0) {
+        int pageIndex = index / pageBytes;
+        int pageOffset = index % pageBytes;
+        ByteBuffer page = getPage(pageIndex);
+        int n = Math.min(length, page.capacity() - pageOffset);
+        
+        if (page.hasArray()) {
+          System.arraycopy(data, offset, page.array(), page.arrayOffset() + pageOffset, n);
+        } else {
+          ByteBuffer view = getView(page);
+          view.position(pageOffset);
+          view.put(data, offset, n);
+        }
+        
+        index += n;
+        offset += n;
+        length -= n;
+      }
+    }
+    
+    /**
+     * Copy length bytes, starting at the given physical index, to the stream.
+     */
+    void write(OutputStream out, int index, int length) throws IOException {
+      int pageBytes = TuningConstants.EVENT_BUFFER_PAGE_BYTES;
+      while (length > 0) {
+        int pageIndex = index / pageBytes;
+        int pageOffset = index % pageBytes;
+        ByteBuffer page = getPage(pageIndex);
+        int n = Math.min(length, page.capacity() - pageOffset);
+        
+        if (page.hasArray()) {
+          out.write(page.array(), page.arrayOffset() + pageOffset, n);
+        } else {
+          ByteBuffer view = getView(page);
+          view.position(pageOffset);
+          view.limit(pageOffset + n);
+          if (out instanceof ByteArrayBuilder) {
+            ((ByteArrayBuilder) out).write(view);
+          } else {
+            byte[] temp = scratch.get();
+            while (view.hasRemaining()) {
+              int m = Math.min(view.remaining(), temp.length);
+              view.get(temp, 0, m);
+              out.write(temp, 0, m);
+            }
+          }
+        }
+        
+        index += n;
+        length -= n;
+      }
+    }
+    
+    /**
+     * Release all pages which don't overlap the physical range [start, end), which may wrap
+     * around the end of the buffer (if end < start). Return the number of bytes released. The
+     * caller must ensure that no other thread is accessing the released pages.
+     */
+    int releasePagesOutside(int start, int end) {
+      int pageBytes = TuningConstants.EVENT_BUFFER_PAGE_BYTES;
+      int released = 0;
+      for (int pageIndex = 0; pageIndex < pages.length(); pageIndex++) {
+        ByteBuffer page = pages.get(pageIndex);
+        if (page == null)
+          continue;
+        
+        int pageStart = pageIndex * pageBytes;
+        int pageEnd = pageStart + page.capacity();
+        boolean overlaps;
+        if (start <= end)
+          overlaps = pageStart < end && pageEnd > start;
+        else
+          overlaps = pageStart < end || pageEnd > start;
+        
+        if (!overlaps) {
+          pages.set(pageIndex, null);
+          allocatedBytes.addAndGet(-page.capacity());
+          released += page.capacity();
+        }
+      }
+      return released;
     }
   }
 }
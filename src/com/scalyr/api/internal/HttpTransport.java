@@ -0,0 +1,93 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.internal;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Performs the HTTP requests issued by ScalyrService. To substitute a different HTTP stack, define a
+ * subclass and pass an instance to ScalyrService.setTransport(). Implementations must be thread-safe:
+ * a single transport may be used for many concurrent requests.
+ * <p>
+ * Transports should reuse connections (HTTP keep-alive) where possible, as most requests are small
+ * and issued to the same few servers.
+ * <p>
+ * Two implementations are provided. HttpURLConnectionTransport works on any JVM. HttpClientTransport
+ * (available on Java 11 and later) uses java.net.http.HttpClient, which negotiates HTTP/2 where the
+ * server supports it, so that concurrent requests -- e.g. pipelined event uploads and knob
+ * long-polls -- share a single multiplexed connection, and sends requests without blocking a
+ * thread. See ScalyrService.getTransport for how the default is chosen.
+ */
+public abstract class HttpTransport {
+  /**
+   * The result of an HTTP request.
+   */
+  public static class Response {
+    /**
+     * HTTP status code returned by the server.
+     */
+    public final int statusCode;
+    
+    /**
+     * The response body, decoded as UTF-8. For error responses, this holds whatever body the server
+     * sent (possibly empty).
+     */
+    public final String body;
+    
+    public Response(int statusCode, String body) {
+      this.statusCode = statusCode;
+      this.body = body;
+    }
+  }
+  
+  /**
+   * Issue an HTTP POST request, and return the server's response. Error status codes are reported
+   * through the Response, not by throwing.
+   * 
+   * @param url The URL to post to.
+   * @param contentType Value for the Content-Type header.
+   * @param contentEncoding Value for the Content-Encoding header, or null to omit the header.
+   * @param body The request body, in elements [0, body.size()).
+   * 
+   * @throws IOException If the request could not be completed, e.g. due to a network error
+   *     or timeout.
+   */
+  public abstract Response post(String url, String contentType, String contentEncoding, ByteArrayBuilder body)
+      throws IOException;
+  
+  /**
+   * Asynchronous variant of post. Returns a future which completes with the server's response, or
+   * exceptionally (typically with an IOException) if the request could not be completed. The body
+   * must not be modified until the future completes.
+   * <p>
+   * The default implementation simply calls post, blocking the calling thread, and returns an
+   * already-completed future. Transports which can issue requests without tying up a thread should
+   * override it.
+   */
+  public CompletableFuture<Response> postAsync(String url, String contentType, String contentEncoding,
+      ByteArrayBuilder body) {
+    CompletableFuture<Response> result = new CompletableFuture<Response>();
+    try {
+      result.complete(post(url, contentType, contentEncoding, body));
+    } catch (Throwable ex) {
+      result.completeExceptionally(ex);
+    }
+    return result;
+  }
+}
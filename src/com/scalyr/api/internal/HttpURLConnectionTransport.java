@@ -0,0 +1,127 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+
+import com.scalyr.api.TuningConstants;
+import com.scalyr.api.logs.Severity;
+
+/**
+ * HttpTransport implementation based on java.net.HttpURLConnection. Connection reuse is handled by
+ * the JDK's keep-alive cache; we take care to fully consume each response (including error
+ * responses), so that connections are returned to that cache.
+ * <p>
+ * If the https_proxy environment variable is set, requests are routed through the specified proxy.
+ */
+public class HttpURLConnectionTransport extends HttpTransport {
+  /**
+   * Proxy through which we issue requests, or null to connect directly. Determined once, at
+   * construction.
+   */
+  private final Proxy proxy;
+  
+  public HttpURLConnectionTransport() {
+    String proxyName = System.getenv("https_proxy");
+    if (proxyName == null) {
+      proxy = null;
+    } else {
+      proxy = new Proxy(Proxy.Type.HTTP, socketAddressFromName(proxyName));
+      Logging.log(Severity.info, Logging.tagServerCommunication, "Using proxy " + proxyName);
+    }
+  }
+  
+  /**
+   * Parse a proxy specification in the form of the https_proxy environment variable, e.g.
+   * "http://proxy.example.com:3128/". Also used by HttpClientTransport.
+   */
+  static InetSocketAddress socketAddressFromName(String proxyName) {
+    // trim off protocol part
+    int ssdx;
+    if ((ssdx = proxyName.indexOf("//")) > -1) {
+      proxyName = proxyName.substring(ssdx + 2);
+    }
+    int proxyPort = 443;
+    if ((ssdx = proxyName.indexOf(":")) > -1) {
+      int ssdx2 = proxyName.indexOf("/", ssdx);
+      if (ssdx2 < 0) {
+        ssdx2 = proxyName.length();
+      }
+      proxyPort = Integer.parseInt(proxyName.substring(ssdx + 1, ssdx2));
+      proxyName = proxyName.substring(0, ssdx);
+    }
+    return new InetSocketAddress(proxyName, proxyPort);
+  }
+  
+  @Override public Response post(String url, String contentType, String contentEncoding, ByteArrayBuilder body)
+      throws IOException {
+    URL parsedUrl = new URL(url);
+    HttpURLConnection connection = (HttpURLConnection)
+        (proxy == null ? parsedUrl.openConnection() : parsedUrl.openConnection(proxy));
+    
+    connection.setRequestMethod("POST");
+    connection.setUseCaches(false);
+    connection.setDoInput(true);
+    connection.setConnectTimeout(TuningConstants.HTTP_CONNECT_TIMEOUT_MS);
+    connection.setReadTimeout(TuningConstants.MAXIMUM_RETRY_PERIOD_MS);
+    
+    connection.setRequestProperty("Content-Type", contentType);
+    if (contentEncoding != null)
+      connection.setRequestProperty("Content-Encoding", contentEncoding);
+    
+    // Declare the length up front, so that the connection streams our buffer to the socket rather
+    // than accumulating a second copy of the body in order to compute Content-Length.
+    connection.setFixedLengthStreamingMode(body.size());
+    connection.setDoOutput(true);
+    
+    OutputStream output = connection.getOutputStream();
+    body.writeTo(output);
+    output.flush();
+    
+    // We don't explicitly close or disconnect, so that HTTP keepalive can function.
+    
+    // Retrieve the response. For error statuses, getInputStream throws, and the body is available
+    // from getErrorStream instead. We read it in either case: a connection can only be reused once
+    // its response has been consumed.
+    int responseCode = connection.getResponseCode();
+    InputStream input = (responseCode >= 400) ? connection.getErrorStream() : connection.getInputStream();
+    String responseText = (input != null) ? readEntireStream(new InputStreamReader(input, "UTF-8")) : "";
+    
+    return new Response(responseCode, responseText);
+  }
+  
+  private static String readEntireStream(Reader reader) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    char[] buffer = new char[4096];
+    while (true) {
+      int count = reader.read(buffer, 0, buffer.length);
+      if (count <= 0)
+        break;
+      sb.append(buffer, 0, count);
+    }
+    return sb.toString();
+  }
+}
@@ -123,11 +123,21 @@ public class Logging {
    */
   public static final String tagLogBufferOverflow = "local/error/logBufferOverflow";
   
+  /**
+   * I/O error accessing the Scalyr Logs spill directory.
+   */
+  public static final String tagSpillFileError = "local/error/spillFile";
+  
   /**
    * Knob file is not parseable as JSON.
    */
   public static final String tagKnobFileInvalid = "user/error/badKnobFile";
   
+  /**
+   * Knob value for an event filter (e.g. RateLimitingFilter) is not a valid configuration.
+   */
+  public static final String tagEventFilterConfigInvalid = "user/error/badEventFilterConfig";
+  
   /**
    * Exception escaped from Gauge.sample().
    */
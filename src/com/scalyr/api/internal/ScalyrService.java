@@ -17,19 +17,21 @@
 
 package com.scalyr.api.internal;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.Reader;
-import java.net.HttpURLConnection;
-import java.net.InetSocketAddress;
-import java.net.Proxy;
 import java.net.SocketTimeoutException;
-import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
+import com.scalyr.api.Compression;
 import com.scalyr.api.ScalyrException;
 import com.scalyr.api.ScalyrNetworkException;
 import com.scalyr.api.TuningConstants;
@@ -57,6 +59,43 @@ public abstract class ScalyrService {
    */
   protected final String apiToken;
   
+  /**
+   * Content-Encoding applied to request bodies. See setRequestCompression.
+   */
+  private volatile Compression requestCompression = Compression.none;
+  
+  /**
+   * Compression level (0-9, or Deflater.DEFAULT_COMPRESSION) used when requestCompression is not none.
+   */
+  private volatile int requestCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+  
+  /**
+   * Total size of all request bodies we have sent, before compression.
+   */
+  private final AtomicLong requestBytesUncompressed = new AtomicLong();
+  
+  /**
+   * Total size of all request bodies we have sent, as transmitted (i.e. after compression).
+   */
+  private final AtomicLong requestBytesSent = new AtomicLong();
+  
+  /**
+   * Transport used to issue HTTP requests, or null to use the shared default transport.
+   */
+  private volatile HttpTransport transport;
+  
+  /**
+   * Default transport, shared by all ScalyrService instances which haven't specified their own.
+   * Allocated on first use. Synchronize access.
+   */
+  private static HttpTransport defaultTransport;
+  
+  /**
+   * Buffers available for reuse by encodeRequest, so that the (often large) buffer holding a request
+   * body need not be reallocated and regrown for every request. Synchronize access.
+   */
+  private static final ArrayDeque<ByteArrayBuilder> requestBufferPool = new ArrayDeque<ByteArrayBuilder>();
+  
   /**
    * Construct a ScalyrService.
    * 
@@ -114,14 +153,103 @@ public abstract class ScalyrService {
     
     return this;
   }
+  
+  /**
+   * Specify how request bodies are compressed before being sent to the server. Log events typically
+   * compress by a large factor, so compression substantially reduces upload bandwidth, at some CPU
+   * cost. By default, requests are not compressed.
+   * 
+   * @param compression The encoding to apply to request bodies.
+   * @param level Compression level, from 0 (fastest) to 9 (smallest), or -1 for the default level.
+   *     Ignored if compression is none.
+   * 
+   * @return this ScalyrService object.
+   */
+  public synchronized ScalyrService setRequestCompression(Compression compression, int level) {
+    if (level < -1 || level > 9)
+      throw new RuntimeException("Compression level must be between -1 and 9 (was " + level + ")");
+    
+    requestCompression = compression;
+    requestCompressionLevel = level;
+    return this;
+  }
+  
+  /**
+   * Specify the HttpTransport used to communicate with the server. By default, all ScalyrService
+   * instances share a single transport; see getTransport.
+   * 
+   * @param value The transport to use, or null to revert to the default.
+   * 
+   * @return this ScalyrService object.
+   */
+  public synchronized ScalyrService setTransport(HttpTransport value) {
+    transport = value;
+    return this;
+  }
+  
+  /**
+   * Return the HttpTransport used to communicate with the server. Unless one has been specified with
+   * setTransport, this is a transport shared by all ScalyrService instances: an HttpClientTransport
+   * if we're running on Java 11 or later, and otherwise an HttpURLConnectionTransport.
+   */
+  public HttpTransport getTransport() {
+    HttpTransport result = transport;
+    if (result != null)
+      return result;
+    
+    synchronized (ScalyrService.class) {
+      if (defaultTransport == null)
+        defaultTransport = createDefaultTransport();
+      return defaultTransport;
+    }
+  }
+  
+  /**
+   * Name of the java.net.http-based transport. It is compiled separately, for Java 11 (see src11),
+   * so we load it by name.
+   */
+  private static final String HTTP_CLIENT_TRANSPORT_CLASS = "com.scalyr.api.internal.HttpClientTransport";
+  
+  /**
+   * Construct the default transport: an HttpClientTransport if it's present and this JVM supports
+   * it, and otherwise an HttpURLConnectionTransport.
+   */
+  private static HttpTransport createDefaultTransport() {
+    try {
+      return (HttpTransport) Class.forName(HTTP_CLIENT_TRANSPORT_CLASS).getConstructor().newInstance();
+    } catch (ReflectiveOperationException ex) {
+      // Not included in this build.
+    } catch (LinkageError ex) {
+      // Compiled for a newer JVM than this one.
+    }
+    
+    return new HttpURLConnectionTransport();
+  }
+  
+  /**
+   * Return the total size, in bytes, of all request bodies sent by this service object, before
+   * compression.
+   */
+  public long getRequestBytesUncompressed() {
+    return requestBytesUncompressed.get();
+  }
+  
+  /**
+   * Return the total number of request body bytes sent by this service object, after compression.
+   * Comparing this with getRequestBytesUncompressed() gives the achieved compression ratio.
+   */
+  public long getRequestBytesSent() {
+    return requestBytesSent.get();
+  }
 
   /**
    * Invoke methodName on a selected server, sending the specified parameters as the request
    * body. Return the (JSON-format) response.
    * <p>
-   * If "retriable" error (e.g. a network error) occurs, we retry on another server. We continue
-   * retrying until a non-retriable error occurs, there are no more servers to try, or a reasonable
-   * deadline (TuningConstants.MAXIMUM_RETRY_PERIOD_MS) expires.
+   * If "retriable" error (e.g. a network error) occurs, we retry on another server, after a short
+   * randomized backoff (see TuningConstants.API_RETRY_INITIAL_BACKOFF_MS). We continue retrying until
+   * a non-retriable error occurs, there are no more servers to try, or a reasonable deadline
+   * (TuningConstants.MAXIMUM_RETRY_PERIOD_MS) expires.
    * <p>
    * This method should not be called directly. Instead, work through method-specific wrappers.
    * 
@@ -129,172 +257,420 @@ public abstract class ScalyrService {
    * @throws ScalyrNetworkException
    */
   public String invokeApi(String methodName, JSONObject parameters) {
-    // Produce a shuffled copy of the server addresses, so that load is distributed
-    // across the servers.
-    int N = serverAddresses.length;
-    String[] shuffled = new String[N];
-    System.arraycopy(serverAddresses, 0, shuffled, 0, N);
-           
-    for (int i = 0; i < N - 1; i++) {
-      int j = i + random.nextInt(N - i);
-      String temp = shuffled[i];
-      shuffled[i] = shuffled[j];
-      shuffled[j] = temp;
-    }
-    
-    // Try the operation on each server in turn.
-    long startTimeMs = ScalyrUtil.currentTimeMillis();
-    int serverIndex = 0;
-    while (true) {
-      String serverAddress = shuffled[serverIndex];
-      long requestStartTimeMs = ScalyrUtil.currentTimeMillis();
-      try {
-        return invokeApiOnServer(serverAddress, methodName, parameters);
-      } catch (ScalyrNetworkException ex) {
-        // Fall into the loop and retry the operation on the next server.
-        // If there are no more servers, or our deadline has expired, then
-        // rethrow the exception.
-        serverIndex++;
-        
-        long totalElapsedMs = ScalyrUtil.currentTimeMillis() - startTimeMs;
-        
-        if (serverIndex >= N) {
-          long requestElapsedMs = ScalyrUtil.currentTimeMillis() - requestStartTimeMs;
-          Logging.log(Severity.warning, Logging.tagServerError,
-              "invokeApi: " + methodName + " failed on " + serverAddress
-              + " (after " + requestElapsedMs + " milliseconds); no more servers to try, so giving up", ex);
-          throw ex;
-        } else if (totalElapsedMs >= TuningConstants.MAXIMUM_RETRY_PERIOD_MS) {
-          Logging.log(Severity.warning, Logging.tagServerError,
-              "invokeApi: " + methodName + " failed on " + serverAddress
-              + "; maximum retry period of " + TuningConstants.MAXIMUM_RETRY_PERIOD_MS
-              + " ms exceeded, so giving up", ex);
-          throw ex;
+    // Serialize (and, if requested, compress) the request once, for use in every attempt.
+    ApiInvocation invocation = new ApiInvocation(methodName, encodeRequest(parameters));
+    try {
+      // Try the operation on each server in turn.
+      while (true) {
+        try {
+          return invocation.attempt();
+        } catch (ScalyrNetworkException ex) {
+          if (!invocation.shouldRetry(ex))
+            throw ex;
+          
+          try {
+            Thread.sleep(invocation.retryDelayMs());
+          } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw ex;
+          }
         }
-        
-        Logging.log(Severity.warning, Logging.tagServerError,
-            "invokeApi: " + methodName + " failed on " + serverAddress + "; will retry", ex);
       }
+    } finally {
+      invocation.request.release();
     }
   }
-
-  private InetSocketAddress socketAddressFromName(String proxyName) {
-    // trim off protocol part
-    int ssdx;
-    if ((ssdx = proxyName.indexOf("//")) > -1) {
-      proxyName = proxyName.substring(ssdx + 2);
-    }
-    int proxyPort = 443;
-    if ((ssdx = proxyName.indexOf(":")) > -1) {
-      int ssdx2 = proxyName.indexOf("/", ssdx);
-      if (ssdx2 < 0) {
-        ssdx2 = proxyName.length();
-      }
-      proxyPort = Integer.parseInt(proxyName.substring(ssdx + 1, ssdx2));
-      proxyName = proxyName.substring(0, ssdx);
+  
+  /**
+   * Asynchronous variant of invokeApi. Returns immediately, with a future which completes with the
+   * server's (JSON-format) response, or exceptionally (typically with a ScalyrException or
+   * ScalyrNetworkException) if the operation could not be completed. The retry policy is the same
+   * as for invokeApi.
+   * <p>
+   * Requests are sent with HttpTransport.postAsync. Retries are scheduled on
+   * ScalyrUtil.asyncApiScheduler, so no thread waits out the backoff; with a non-blocking transport
+   * (HttpClientTransport), no thread waits for the server either. Dependent actions attached to the
+   * future may run on an internal thread, and should return promptly.
+   * <p>
+   * This method should not be called directly. Instead, work through method-specific wrappers.
+   */
+  public CompletableFuture<String> invokeApiAsync(String methodName, JSONObject parameters) {
+    CompletableFuture<String> result = new CompletableFuture<String>();
+    
+    ApiInvocation invocation;
+    EncodedRequest request = null;
+    try {
+      request = encodeRequest(parameters);
+      invocation = new ApiInvocation(methodName, request);
+    } catch (Throwable ex) {
+      if (request != null)
+        request.release();
+      result.completeExceptionally(ex);
+      return result;
     }
-    return new InetSocketAddress(proxyName, proxyPort);
+    
+    invocation.attemptAsync(0, result);
+    return result;
   }
-
+  
   /**
-   * Invoke serverAddress/methodName on the server, sending the specified parameters as the request
-   * body. Return the (JSON-format) response.
-   * 
-   * @throws ScalyrException
-   * @throws ScalyrNetworkException
+   * Tracks the progress of one invocation of invokeApi or invokeApiAsync across its attempts on
+   * successive servers.
    */
-  protected String invokeApiOnServer(String serverAddress, String methodName, JSONObject parameters) {
-    HttpURLConnection connection = null;  
-    try {
-      // Send the request.
-      long startTimeMs = ScalyrUtil.currentTimeMillis();
-      URL url = new URL(serverAddress + methodName);
-      String proxyName = System.getenv("https_proxy");
-      if (null == proxyName) {
-        connection = (HttpURLConnection) url.openConnection();
-      } else {
-        InetSocketAddress inet = socketAddressFromName(proxyName);
-        Logging.log(Severity.warning, Logging.tagServerCommunication, "Using proxy " + proxyName);
-        connection = (HttpURLConnection) url.openConnection(new Proxy(Proxy.Type.HTTP, inet));
-      }
-      connection.setRequestMethod("POST");
-      connection.setUseCaches(false);
-      connection.setDoInput(true);
-      connection.setConnectTimeout(TuningConstants.HTTP_CONNECT_TIMEOUT_MS);
-      connection.setReadTimeout(TuningConstants.MAXIMUM_RETRY_PERIOD_MS);
+  private class ApiInvocation {
+    final String methodName;
+    final EncodedRequest request;
+    
+    /**
+     * Shuffled copy of the server addresses, so that load is distributed across the servers.
+     */
+    final String[] shuffled;
+    
+    /**
+     * Index in shuffled of the server for the current attempt.
+     */
+    int serverIndex = 0;
+    
+    final long startTimeMs = ScalyrUtil.currentTimeMillis();
+    
+    /**
+     * Time when the current attempt began.
+     */
+    long requestStartTimeMs;
+    
+    ApiInvocation(String methodName, EncodedRequest request) {
+      this.methodName = methodName;
+      this.request = request;
       
-      CountingOutputStream countingStream = new CountingOutputStream();
-      parameters.writeJSONBytes(countingStream);
-      int requestLength = countingStream.bytesWritten;
+      String[] addresses;
+      synchronized (ScalyrService.this) {
+        addresses = serverAddresses;
+      }
       
-      connection.setRequestProperty("Content-Type", "application/json");
-      connection.setRequestProperty("Content-Length", "" + requestLength);
-      connection.setDoOutput(true);
+      int N = addresses.length;
+      shuffled = new String[N];
+      System.arraycopy(addresses, 0, shuffled, 0, N);
       
-      OutputStream output = connection.getOutputStream();
-      parameters.writeJSONBytes(output);
-      output.flush();
+      synchronized (random) {
+        for (int i = 0; i < N - 1; i++) {
+          int j = i + random.nextInt(N - i);
+          String temp = shuffled[i];
+          shuffled[i] = shuffled[j];
+          shuffled[j] = temp;
+        }
+      }
+    }
+    
+    /**
+     * Issue the request to the current server.
+     */
+    String attempt() {
+      requestStartTimeMs = ScalyrUtil.currentTimeMillis();
+      return invokeApiOnServer(shuffled[serverIndex], methodName, request);
+    }
+    
+    /**
+     * After delayMs, issue the request to the current server from ScalyrUtil.asyncApiExecutor (the
+     * transport's postAsync may block, if it has no asynchronous implementation). When the attempt
+     * completes, retry or complete result, and release our request once it is no longer needed.
+     */
+    void attemptAsync(long delayMs, final CompletableFuture<String> result) {
+      final Runnable attempt = new Runnable(){
+        @Override public void run() {
+          requestStartTimeMs = ScalyrUtil.currentTimeMillis();
+          invokeApiOnServerAsync(shuffled[serverIndex], methodName, request).whenComplete(
+              new BiConsumer<String, Throwable>(){
+                @Override public void accept(String response, Throwable ex) {
+                  attemptCompleted(response, ex, result);
+                }});
+        }};
       
-      // We no longer explicitly close, so that HTTP keepalive can function.
-      // output.close();
+      try {
+        if (delayMs <= 0) {
+          ScalyrUtil.asyncApiExecutor.execute(attempt);
+        } else {
+          ScalyrUtil.asyncApiScheduler.schedule(new Runnable(){
+            @Override public void run() {
+              try {
+                ScalyrUtil.asyncApiExecutor.execute(attempt);
+              } catch (Throwable ex) {
+                attemptCompleted(null, ex, result);
+              }
+            }}, delayMs, TimeUnit.MILLISECONDS);
+        }
+      } catch (Throwable ex) {
+        attemptCompleted(null, ex, result);
+      }
+    }
+    
+    private void attemptCompleted(String response, Throwable ex, CompletableFuture<String> result) {
+      if (ex instanceof CompletionException && ex.getCause() != null)
+        ex = ex.getCause();
       
-      // Retrieve the response.
-      int responseCode = connection.getResponseCode();
+      if (ex instanceof ScalyrNetworkException && shouldRetry((ScalyrNetworkException) ex)) {
+        attemptAsync(retryDelayMs(), result);
+        return;
+      }
       
-      InputStream input = connection.getInputStream();
-      BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
-      String responseText = readEntireStream(reader);
+      request.release();
+      if (ex != null)
+        result.completeExceptionally(ex);
+      else
+        result.complete(response);
+    }
+    
+    /**
+     * Called when the current attempt fails with a retriable error. If there is another server to try
+     * and our deadline has not expired, advance to that server and return true. Otherwise return false.
+     */
+    boolean shouldRetry(ScalyrNetworkException ex) {
+      String serverAddress = shuffled[serverIndex];
+      serverIndex++;
       
-      // We no longer explicitly close, so that HTTP keepalive can function.
-      // reader.close();
+      long totalElapsedMs = ScalyrUtil.currentTimeMillis() - startTimeMs;
       
-      long runtimeMs = ScalyrUtil.currentTimeMillis() - startTimeMs;
-      Logging.log(Severity.fine, Logging.tagServerCommunication,
-          serverAddress + "/" + methodName + ": "
-          + runtimeMs + " ms, "
-          + requestLength + " bytes up, "
-          + responseText.length() + " chars down, response status " + responseCode
-          );
+      if (serverIndex >= shuffled.length) {
+        long requestElapsedMs = ScalyrUtil.currentTimeMillis() - requestStartTimeMs;
+        Logging.log(Severity.warning, Logging.tagServerError,
+            "invokeApi: " + methodName + " failed on " + serverAddress
+            + " (after " + requestElapsedMs + " milliseconds); no more servers to try, so giving up", ex);
+        return false;
+      } else if (totalElapsedMs >= TuningConstants.MAXIMUM_RETRY_PERIOD_MS) {
+        Logging.log(Severity.warning, Logging.tagServerError,
+            "invokeApi: " + methodName + " failed on " + serverAddress
+            + "; maximum retry period of " + TuningConstants.MAXIMUM_RETRY_PERIOD_MS
+            + " ms exceeded, so giving up", ex);
+        return false;
+      }
       
-      if (responseCode != 200) {
-        // TODO: log StringUtil.noisyTruncate(response.responseBody.trim(), 1000));
-        // also do this in the "Malformed response" case
-        throw new ScalyrNetworkException("Scalyr server returned error code " + responseCode);
+      Logging.log(Severity.warning, Logging.tagServerError,
+          "invokeApi: " + methodName + " failed on " + serverAddress + "; will retry", ex);
+      return true;
+    }
+    
+    /**
+     * Return the delay before the next attempt, called after shouldRetry returns true. The backoff
+     * starts at API_RETRY_INITIAL_BACKOFF_MS and doubles with each retry, up to
+     * API_RETRY_MAXIMUM_BACKOFF_MS. It's randomized (between half and all of that value), so that
+     * clients which failed together don't retry in lockstep.
+     */
+    long retryDelayMs() {
+      long backoffMs = TuningConstants.API_RETRY_INITIAL_BACKOFF_MS << Math.min(serverIndex - 1, 20);
+      backoffMs = Math.min(backoffMs, TuningConstants.API_RETRY_MAXIMUM_BACKOFF_MS);
+      synchronized (random) {
+        return backoffMs / 2 + (long) (random.nextDouble() * (backoffMs / 2));
+      }
+    }
+  }
+
+  /**
+   * Take a buffer from requestBufferPool, or allocate one if the pool is empty.
+   */
+  private static ByteArrayBuilder allocateRequestBuffer() {
+    synchronized (requestBufferPool) {
+      ByteArrayBuilder buffer = requestBufferPool.pollLast();
+      if (buffer != null)
+        return buffer;
+    }
+    
+    return new ByteArrayBuilder(TuningConstants.REQUEST_BUFFER_INITIAL_BYTES);
+  }
+  
+  /**
+   * Return a buffer to requestBufferPool. The buffer must not be used afterwards.
+   */
+  private static void releaseRequestBuffer(ByteArrayBuilder buffer) {
+    buffer.reset(TuningConstants.REQUEST_BUFFER_INITIAL_BYTES, TuningConstants.MAX_POOLED_REQUEST_BUFFER_BYTES);
+    synchronized (requestBufferPool) {
+      if (requestBufferPool.size() < TuningConstants.MAX_POOLED_REQUEST_BUFFERS)
+        requestBufferPool.addLast(buffer);
+    }
+  }
+  
+  /**
+   * A request body, serialized and (optionally) compressed, ready to be sent.
+   */
+  protected static class EncodedRequest {
+    /**
+     * The bytes to send, in elements [0, body.size()).
+     */
+    final ByteArrayBuilder body;
+    
+    /**
+     * Encoding which was applied to the body.
+     */
+    final Compression compression;
+    
+    /**
+     * Length of the serialized request before compression.
+     */
+    final int uncompressedLength;
+    
+    EncodedRequest(ByteArrayBuilder body, Compression compression, int uncompressedLength) {
+      this.body = body;
+      this.compression = compression;
+      this.uncompressedLength = uncompressedLength;
+    }
+    
+    /**
+     * Return our buffer to the pool. The request must not be used afterwards.
+     */
+    void release() {
+      releaseRequestBuffer(body);
+    }
+  }
+  
+  /**
+   * Serialize the given request parameters, and compress them according to our
+   * requestCompression setting.
+   */
+  protected EncodedRequest encodeRequest(JSONObject parameters) {
+    Compression compression = requestCompression;
+    final int level = requestCompressionLevel;
+    
+    ByteArrayBuilder serialized = allocateRequestBuffer();
+    ByteArrayBuilder compressed = null;
+    try {
+      parameters.writeJSONBytes(serialized);
+      if (compression == Compression.none) {
+        EncodedRequest request = new EncodedRequest(serialized, compression, serialized.size());
+        serialized = null;
+        return request;
       }
       
-      Object responseJson = new JSONParser().parse(responseText);
-      if (responseJson instanceof JSONObject) {
-        Object status = ((JSONObject)responseJson).get("status");
-        Logging.log(Severity.finer, Logging.tagServerCommunication,
-            "Response status [" + (status == null ? "(none)" : status) + "]"
-            );
-        
-        return responseText;
+      compressed = allocateRequestBuffer();
+      if (compression == Compression.gzip) {
+        GZIPOutputStream gzipStream = new GZIPOutputStream(compressed, 8192) {{
+          def.setLevel(level);
+        }};
+        serialized.writeTo(gzipStream);
+        gzipStream.close();
       } else {
-        throw new ScalyrException("Malformed response from Scalyr server");
+        Deflater deflater = new Deflater(level);
+        try {
+          DeflaterOutputStream deflaterStream = new DeflaterOutputStream(compressed, deflater, 8192);
+          serialized.writeTo(deflaterStream);
+          deflaterStream.finish();
+        } finally {
+          deflater.end();
+        }
       }
-    } catch (Exception ex) {
-      if (ex instanceof SocketTimeoutException)
-        throw new ScalyrNetworkException("Timeout while communicating with Scalyr server", ex);
-      else
-        throw new ScalyrNetworkException("Error while communicating with Scalyr server", ex);
+      
+      EncodedRequest request = new EncodedRequest(compressed, compression, serialized.size());
+      compressed = null;
+      return request;
+    } catch (IOException ex) {
+      // Can't occur, as we are writing to in-memory buffers.
+      throw new RuntimeException(ex);
     } finally {
-      // We no longer explicitly disconnect, so that HTTP keepalive can function. 
-      // 
-      // if (connection != null)
-      //   connection.disconnect(); 
+      // Release any buffer which didn't make it into the result.
+      if (serialized != null)
+        releaseRequestBuffer(serialized);
+      if (compressed != null)
+        releaseRequestBuffer(compressed);
     }
   }
   
-  private String readEntireStream(Reader reader) throws IOException {
-    StringBuilder sb = new StringBuilder();
-    char[] buffer = new char[4096];
-    while (true) {
-      int count = reader.read(buffer, 0, buffer.length);
-      if (count <= 0)
-        break;
-      sb.append(buffer, 0, count);
+  /**
+   * Invoke serverAddress/methodName on the server, sending the specified request body. Return
+   * the (JSON-format) response.
+   * 
+   * @throws ScalyrException
+   * @throws ScalyrNetworkException
+   */
+  protected String invokeApiOnServer(String serverAddress, String methodName, EncodedRequest request) {
+    try {
+      long startTimeMs = ScalyrUtil.currentTimeMillis();
+      HttpTransport.Response response = getTransport().post(serverAddress + methodName, "application/json",
+          request.compression.getContentEncoding(), request.body);
+      return processResponse(serverAddress, methodName, request, response, startTimeMs);
+    } catch (Exception ex) {
+      throw networkException(ex);
     }
-    return sb.toString();
+  }
+  
+  /**
+   * Asynchronous variant of invokeApiOnServer. The returned future completes with the response, or
+   * exceptionally with the exception which invokeApiOnServer would have thrown.
+   */
+  protected CompletableFuture<String> invokeApiOnServerAsync(final String serverAddress, final String methodName,
+      final EncodedRequest request) {
+    final long startTimeMs = ScalyrUtil.currentTimeMillis();
+    CompletableFuture<HttpTransport.Response> response;
+    try {
+      response = getTransport().postAsync(serverAddress + methodName, "application/json",
+          request.compression.getContentEncoding(), request.body);
+    } catch (Throwable ex) {
+      response = new CompletableFuture<HttpTransport.Response>();
+      response.completeExceptionally(ex);
+    }
+    
+    return response.handle(new BiFunction<HttpTransport.Response, Throwable, String>(){
+      @Override public String apply(HttpTransport.Response value, Throwable ex) {
+        if (ex instanceof CompletionException && ex.getCause() != null)
+          ex = ex.getCause();
+        if (ex instanceof Error)
+          throw (Error) ex;
+        if (ex != null)
+          throw networkException(ex);
+        
+        try {
+          return processResponse(serverAddress, methodName, request, value, startTimeMs);
+        } catch (Exception processingException) {
+          throw networkException(processingException);
+        }
+      }});
+  }
+  
+  /**
+   * Record and log a response from serverAddress/methodName. Return its body if the request
+   * succeeded; otherwise throw.
+   */
+  private String processResponse(String serverAddress, String methodName, EncodedRequest request,
+      HttpTransport.Response response, long startTimeMs) throws Exception {
+    int requestLength = request.body.size();
+    requestBytesUncompressed.addAndGet(request.uncompressedLength);
+    requestBytesSent.addAndGet(requestLength);
+    
+    int responseCode = response.statusCode;
+    String responseText = response.body;
+    
+    long runtimeMs = ScalyrUtil.currentTimeMillis() - startTimeMs;
+    Logging.log(Severity.fine, Logging.tagServerCommunication,
+        serverAddress + "/" + methodName + ": "
+        + runtimeMs + " ms, "
+        + requestLength + " bytes up"
+        + (request.compression != Compression.none ? " (" + request.uncompressedLength + " uncompressed), " : ", ")
+        + responseText.length() + " chars down, response status " + responseCode
+        );
+    
+    if (responseCode != 200) {
+      // TODO: log StringUtil.noisyTruncate(response.responseBody.trim(), 1000));
+      // also do this in the "Malformed response" case
+      throw new ScalyrNetworkException("Scalyr server returned error code " + responseCode);
+    }
+    
+    Object responseJson = new JSONParser().parse(responseText);
+    if (responseJson instanceof JSONObject) {
+      Object status = ((JSONObject)responseJson).get("status");
+      Logging.log(Severity.finer, Logging.tagServerCommunication,
+          "Response status [" + (status == null ? "(none)" : status) + "]"
+          );
+      
+      return responseText;
+    } else {
+      throw new ScalyrException("Malformed response from Scalyr server");
+    }
+  }
+  
+  /**
+   * Wrap a failure to communicate with the server (or to make sense of its response) in a
+   * ScalyrNetworkException, making it eligible for retry.
+   */
+  private static ScalyrNetworkException networkException(Throwable ex) {
+    if (ex instanceof SocketTimeoutException)
+      return new ScalyrNetworkException("Timeout while communicating with Scalyr server", ex);
+    else
+      return new ScalyrNetworkException("Error while communicating with Scalyr server", ex);
   }
 }
@@ -31,6 +31,7 @@ import java.nio.charset.Charset;
 import java.util.Date;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -162,6 +163,19 @@ public class ScalyrUtil {
       return t;
     }});
   
+  /**
+   * Timer used to delay the retries of asynchronous API operations (see
+   * ScalyrService.invokeApiAsync). Its thread only hands each retry off to asyncApiExecutor, so a
+   * single thread suffices.
+   */
+  public static final ScheduledExecutorService asyncApiScheduler = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactory(){
+        @Override public Thread newThread(Runnable runnable) {
+          Thread t = new Thread(runnable, "Scalyr retry scheduler");
+          t.setDaemon(true);
+          return t;
+        }});
+  
   /**
    * Most recent value passed to setCustomTimeMs, or -1 if no setCustomTimeMs is in
    * effect.
@@ -0,0 +1,858 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.scalyr.api.TuningConstants;
+import com.scalyr.api.logs.Severity;
+
+/**
+ * A disk-backed queue of data chunks, used by EventUploader to hold event chunks which don't fit in
+ * memory (e.g. while the server is unreachable), and optionally as a write-ahead log so that chunks
+ * survive a process restart. Chunks are appended at one end and removed (in any order) once uploaded.
+ * <p>
+ * Data is stored in a series of memory-mapped segment files in a dedicated directory. Each segment
+ * begins with a header:
+ * 
+ *   [magic][format version][header length][header data]
+ * 
+ * where the header data is supplied by the client (see setSegmentHeader). This is followed by a
+ * sequence of records:
+ * 
+ *   [length][CRC32 of data][type][data]
+ * 
+ * A record's length is written last, so a zero length marks the end of the segment, and a record
+ * which was only partially written before a crash fails its CRC check. When a chunk record is removed,
+ * its length is negated in place, so that it won't be recovered after a restart. A segment file is
+ * deleted once every chunk in it has been removed, and we have moved on to a newer segment.
+ * <p>
+ * Besides chunks, a segment can hold metadata records. Each chunk is associated with the most recent
+ * metadata record before it in the same segment (see append).
+ * <p>
+ * A chunk may be "resident", meaning that the client also holds it in memory and will upload it from
+ * there; the log copy exists only for crash recovery. Other chunks are "spilled", and are uploaded
+ * from the log: they are checked out in order, and then either removed (on success) or returned to
+ * the queue (on failure).
+ * <p>
+ * Segment files left over from a previous process are not touched, except to choose new file names
+ * which sort after them. The client can retrieve them with takeLeftoverSegments and read them with
+ * LeftoverSegment.
+ * <p>
+ * All methods are thread-safe.
+ */
+public class SpillLog {
+  /**
+   * Magic number at the start of each segment file ("SCSP").
+   */
+  static final int SEGMENT_MAGIC = 0x53435350;
+  
+  static final int FORMAT_VERSION = 2;
+  
+  static final int RECORD_HEADER_BYTES = 12;
+  
+  static final int RECORD_TYPE_CHUNK = 1;
+  static final int RECORD_TYPE_METADATA = 2;
+  
+  /**
+   * Policies for forcing the log's contents to disk.
+   */
+  public static enum SyncPolicy {
+    /**
+     * Never explicitly force data to disk; leave it to the operating system. Data survives a process
+     * crash, but not necessarily a machine crash.
+     */
+    none,
+    
+    /**
+     * Force data to disk when sync() is called (EventUploader does so on each upload timer tick).
+     */
+    periodic,
+    
+    /**
+     * Force data to disk after every append. To keep disk I/O out of the client's critical sections,
+     * append doesn't do this itself: the client calls syncAppends() once it has released its locks.
+     */
+    always
+  }
+  
+  /**
+   * Directory holding our segment files.
+   */
+  private final File directory;
+  
+  /**
+   * Maximum total size of all segment files that we create, in bytes.
+   */
+  private final long quotaBytes;
+  
+  private final SyncPolicy syncPolicy;
+  
+  /**
+   * Client-supplied data written at the start of each new segment.
+   */
+  private byte[] segmentHeader = new byte[0];
+  
+  /**
+   * Segments which contain at least one live record (or are open for writing), oldest first.
+   * The last entry is the segment we are currently writing to.
+   */
+  private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+  
+  /**
+   * Live chunk records, oldest first.
+   */
+  private final ArrayDeque<Record> records = new ArrayDeque<Record>();
+  
+  /**
+   * Number of records in records which are not resident.
+   */
+  private int spilledRecordCount;
+  
+  /**
+   * Segment files found in our directory at construction, in order. Null once taken.
+   */
+  private List<File> leftoverSegments;
+  
+  /**
+   * Sequence number for the next segment file we create.
+   */
+  private long nextSegmentNumber;
+  
+  /**
+   * Segments which no longer hold any live records, but could not yet be unmapped and deleted
+   * because they are pinned (see Segment.pins).
+   */
+  private final List<Segment> retiredSegments = new ArrayList<Segment>();
+  
+  /**
+   * True once close() has been called.
+   */
+  private boolean closed;
+  
+  /**
+   * Total size of the segment files in segments and retiredSegments.
+   */
+  private long totalSegmentBytes;
+  
+  /**
+   * Total data length of all records in records.
+   */
+  private long totalRecordBytes;
+  
+  /**
+   * One segment file.
+   */
+  private static class Segment {
+    final File file;
+    final MappedByteBuffer buffer;
+    
+    /**
+     * Number of chunks in this segment which have not yet been removed.
+     */
+    int liveRecords;
+    
+    /**
+     * The most recent metadata written to this segment, or null.
+     */
+    byte[] metadata;
+    
+    /**
+     * True if we have written data which has not yet been forced to disk.
+     */
+    boolean dirty;
+    
+    /**
+     * Number of reasons the mapping must stay valid even if the segment dies: one for each
+     * checked-out record (whose data is read without our lock), and one for each force in progress.
+     */
+    int pins;
+    
+    /**
+     * True once the buffer has been unmapped. It must not be accessed after that point.
+     */
+    boolean unmapped;
+    
+    Segment(File file, MappedByteBuffer buffer) {
+      this.file = file;
+      this.buffer = buffer;
+    }
+  }
+  
+  /**
+   * A chunk stored in the log.
+   */
+  public static class Record {
+    private final Segment segment;
+    
+    /**
+     * Offset of the record header in the segment.
+     */
+    private final int headerOffset;
+    
+    /**
+     * Length of the record's data.
+     */
+    public final int length;
+    
+    /**
+     * See the class comment.
+     */
+    private boolean resident;
+    
+    /**
+     * True while the record is checked out (see checkOut).
+     */
+    private boolean checkedOut;
+    
+    /**
+     * The metadata associated with this record (see append), or null.
+     */
+    public final byte[] metadata;
+    
+    Record(Segment segment, int headerOffset, int length, boolean resident, byte[] metadata) {
+      this.segment = segment;
+      this.headerOffset = headerOffset;
+      this.length = length;
+      this.resident = resident;
+      this.metadata = metadata;
+    }
+  }
+  
+  /**
+   * Open a spill log in the given directory, creating the directory if necessary.
+   * 
+   * @param quotaBytes Maximum disk space to use for new segment files.
+   */
+  public SpillLog(File directory, long quotaBytes, SyncPolicy syncPolicy) throws IOException {
+    this.directory = directory;
+    this.quotaBytes = quotaBytes;
+    this.syncPolicy = syncPolicy;
+    
+    if (!directory.exists() && !directory.mkdirs())
+      throw new IOException("Unable to create spill directory [" + directory.getAbsolutePath() + "]");
+    
+    leftoverSegments = listSegmentFiles();
+    for (File file : leftoverSegments)
+      nextSegmentNumber = Math.max(nextSegmentNumber, segmentNumber(file) + 1);
+  }
+  
+  /**
+   * Return the segment files in our directory, sorted by sequence number.
+   */
+  private List<File> listSegmentFiles() {
+    List<File> result = new ArrayList<File>();
+    File[] files = directory.listFiles();
+    if (files != null)
+      for (File file : files)
+        if (segmentNumber(file) >= 0)
+          result.add(file);
+    
+    // Segment numbers are zero-padded, so lexical order is numeric order.
+    Collections.sort(result);
+    return result;
+  }
+  
+  /**
+   * If the file is named like a segment file, return its sequence number; otherwise -1.
+   */
+  private static long segmentNumber(File file) {
+    String name = file.getName();
+    if (!name.startsWith("spill-") || !name.endsWith(".dat"))
+      return -1;
+    
+    try {
+      return Long.parseLong(name.substring(6, name.length() - 4));
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+  
+  /**
+   * Return the segment files which were present when this log was opened (oldest first), and
+   * forget them. Subsequent calls return an empty list.
+   */
+  public synchronized List<File> takeLeftoverSegments() {
+    List<File> result = leftoverSegments;
+    leftoverSegments = new ArrayList<File>();
+    return result;
+  }
+  
+  /**
+   * Specify the header data written at the start of each new segment. Does not affect segments
+   * which have already been created.
+   */
+  public synchronized void setSegmentHeader(byte[] value) {
+    segmentHeader = value;
+  }
+  
+  /**
+   * Append a chunk to the log, and return its record. Return null if the chunk could not be stored,
+   * because it would exceed our quota or due to an I/O error.
+   * 
+   * @param metadata If not null, and not equal to the most recent metadata in the current segment,
+   *     we write a metadata record holding this data before the chunk.
+   * @param resident True if the chunk is resident (see the class comment).
+   */
+  public synchronized Record append(byte[] data, int offset, int length, byte[] metadata, boolean resident) {
+    if (closed)
+      return null;
+    
+    Segment segment = segments.peekLast();
+    int metadataBytes = (metadata != null) ? RECORD_HEADER_BYTES + metadata.length : 0;
+    int needed = RECORD_HEADER_BYTES + length + metadataBytes;
+    if (segment == null || segment.buffer.remaining() < needed) {
+      int segmentBytes = Math.max(TuningConstants.SPILL_SEGMENT_BYTES, 12 + segmentHeader.length + needed);
+      if (totalSegmentBytes + segmentBytes > quotaBytes)
+        return null;
+      
+      try {
+        segment = createSegment(segmentBytes);
+      } catch (IOException ex) {
+        Logging.log(Severity.warning, Logging.tagSpillFileError,
+            "Unable to create spill file in [" + directory.getAbsolutePath() + "]", ex);
+        return null;
+      }
+    }
+    
+    if (metadata != null && !Arrays.equals(metadata, segment.metadata)) {
+      writeRecord(segment.buffer, RECORD_TYPE_METADATA, metadata, 0, metadata.length);
+      segment.metadata = metadata;
+    }
+    
+    int headerOffset = writeRecord(segment.buffer, RECORD_TYPE_CHUNK, data, offset, length);
+    segment.dirty = true;
+    
+    Record record = new Record(segment, headerOffset, length, resident, segment.metadata);
+    segment.liveRecords++;
+    records.addLast(record);
+    totalRecordBytes += length;
+    if (!resident)
+      spilledRecordCount++;
+    
+    return record;
+  }
+  
+  /**
+   * Write a record at the buffer's current position, and return the record's offset.
+   */
+  private static int writeRecord(MappedByteBuffer buffer, int type, byte[] data, int offset, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(data, offset, length);
+    
+    // Write everything except the length, and then the length. See the class comment.
+    int headerOffset = buffer.position();
+    buffer.position(headerOffset + 4);
+    buffer.putInt((int) crc.getValue());
+    buffer.putInt(type);
+    buffer.put(data, offset, length);
+    buffer.putInt(headerOffset, length);
+    return headerOffset;
+  }
+  
+  private Segment createSegment(int segmentBytes) throws IOException {
+    // Skip any name in use: a log we replaced may still be writing to this directory.
+    File file;
+    do {
+      file = new File(directory, String.format("spill-%012d.dat", nextSegmentNumber++));
+    } while (file.exists());
+    
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    MappedByteBuffer buffer;
+    try {
+      raf.setLength(segmentBytes);
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    } finally {
+      // The mapping remains valid after the file is closed.
+      raf.close();
+    }
+    
+    buffer.putInt(SEGMENT_MAGIC);
+    buffer.putInt(FORMAT_VERSION);
+    buffer.putInt(segmentHeader.length);
+    buffer.put(segmentHeader);
+    
+    Segment segment = new Segment(file, buffer);
+    segments.addLast(segment);
+    totalSegmentBytes += segmentBytes;
+    deleteDeadSegments();
+    return segment;
+  }
+  
+  /**
+   * Unless our sync policy is none, force any recently written data to disk. EventUploader calls
+   * this on each upload timer tick.
+   */
+  public void sync() {
+    if (syncPolicy != SyncPolicy.none)
+      forceDirtySegments();
+  }
+  
+  /**
+   * If our sync policy is always, force any recently appended data to disk. The client calls this
+   * after appending, once it has released its own locks.
+   */
+  public void syncAppends() {
+    if (syncPolicy == SyncPolicy.always)
+      forceDirtySegments();
+  }
+  
+  /**
+   * Force each dirty segment to disk. We don't hold our lock during the (possibly slow) force
+   * itself, so that appends and removals can proceed; the segments are pinned meanwhile, so that
+   * they aren't unmapped.
+   */
+  private void forceDirtySegments() {
+    List<Segment> dirtySegments = new ArrayList<Segment>();
+    synchronized (this) {
+      for (Segment segment : segments) {
+        if (segment.dirty && !segment.unmapped) {
+          segment.dirty = false;
+          segment.pins++;
+          dirtySegments.add(segment);
+        }
+      }
+    }
+    
+    for (Segment segment : dirtySegments) {
+      boolean forced = false;
+      try {
+        segment.buffer.force();
+        forced = true;
+      } finally {
+        synchronized (this) {
+          if (!forced)
+            segment.dirty = true;
+          unpin(segment);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Return true if the log contains any spilled (non-resident) records.
+   */
+  public synchronized boolean hasSpilledRecords() {
+    return spilledRecordCount > 0;
+  }
+  
+  /**
+   * Return the total data length of all records in the log.
+   */
+  public synchronized long getTotalRecordBytes() {
+    return totalRecordBytes;
+  }
+  
+  /**
+   * Mark a resident record as spilled: the client no longer holds it in memory, and it should be
+   * uploaded from the log.
+   */
+  public synchronized void spill(Record record) {
+    if (record.resident) {
+      record.resident = false;
+      spilledRecordCount++;
+    }
+  }
+  
+  /**
+   * Return the oldest spilled record which isn't checked out, and mark it as checked out. If there
+   * is no such record, return null.
+   */
+  public synchronized Record checkOut() {
+    for (Record record : records) {
+      if (!record.resident && !record.checkedOut) {
+        record.checkedOut = true;
+        record.segment.pins++;
+        return record;
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Return a checked-out record. If remove is true, the record is deleted from the log; otherwise
+   * it becomes available to be checked out again.
+   */
+  public synchronized void checkIn(Record record, boolean remove) {
+    record.checkedOut = false;
+    if (remove)
+      remove(record);
+    unpin(record.segment);
+  }
+  
+  /**
+   * Return the spilled records which are not checked out, oldest first. Used to hand records over
+   * to another log; see EventUploader.setSpillLog.
+   */
+  public synchronized List<Record> getAvailableSpilledRecords() {
+    List<Record> result = new ArrayList<Record>();
+    for (Record record : records)
+      if (!record.resident && !record.checkedOut)
+        result.add(record);
+    return result;
+  }
+  
+  /**
+   * Delete a record from the log.
+   */
+  public synchronized void remove(Record record) {
+    if (!records.remove(record))
+      return;
+    
+    // Mark the record as removed on disk, so that it isn't recovered after a restart.
+    if (!record.segment.unmapped) {
+      record.segment.buffer.putInt(record.headerOffset, -record.length);
+      record.segment.dirty = true;
+    }
+    
+    totalRecordBytes -= record.length;
+    if (!record.resident)
+      spilledRecordCount--;
+    record.segment.liveRecords--;
+    
+    deleteDeadSegments();
+  }
+  
+  /**
+   * Delete segments which no longer hold any live records. We keep the segment currently being
+   * written to, even if it's empty, so that a log which is drained as fast as it's filled (as when
+   * used as a write-ahead log) doesn't create a new file for each record. Until the log is closed,
+   * we delete only from the oldest end, so that the remaining files stay in order for recovery.
+   * <p>
+   * A segment's file is unmapped before it's deleted; otherwise the mapping, and the disk space
+   * behind it, would persist until the buffer happened to be garbage collected. A pinned segment
+   * is retired instead, and deleted once unpinned.
+   */
+  private void deleteDeadSegments() {
+    Iterator<Segment> iterator = segments.iterator();
+    while (iterator.hasNext()) {
+      Segment segment = iterator.next();
+      if (segment.liveRecords > 0) {
+        if (closed)
+          continue;
+        break;
+      }
+      if (!closed && segment == segments.peekLast())
+        break;
+      
+      iterator.remove();
+      if (segment.pins > 0)
+        retiredSegments.add(segment);
+      else
+        deleteSegment(segment);
+    }
+  }
+  
+  /**
+   * Release a pin on the given segment (see Segment.pins). If it was the last pin, and the segment
+   * is retired or the log is closed, unmap (and if dead, delete) the segment.
+   */
+  private void unpin(Segment segment) {
+    if (--segment.pins > 0)
+      return;
+    
+    if (retiredSegments.remove(segment))
+      deleteSegment(segment);
+    else if (closed && !segment.unmapped)
+      unmapSegment(segment);
+  }
+  
+  private void deleteSegment(Segment segment) {
+    unmapSegment(segment);
+    totalSegmentBytes -= segment.buffer.capacity();
+    if (!segment.file.delete())
+      Logging.log(Severity.warning, Logging.tagSpillFileError,
+          "Unable to delete spill file [" + segment.file.getAbsolutePath() + "]");
+  }
+  
+  private static void unmapSegment(Segment segment) {
+    if (!segment.unmapped) {
+      segment.unmapped = true;
+      unmap(segment.buffer);
+    }
+  }
+  
+  /**
+   * Close the log. No further records can be appended. Segments without live records are deleted,
+   * and the rest are unmapped but left on disk, to be recovered by the next log opened in this
+   * directory. Checked-out records remain readable until they are checked in.
+   */
+  public synchronized void close() {
+    if (closed)
+      return;
+    
+    closed = true;
+    deleteDeadSegments();
+    for (Segment segment : segments)
+      if (segment.pins == 0)
+        unmapSegment(segment);
+  }
+  
+  /**
+   * Return the files of segments which have not been deleted. Used to avoid replaying a closed
+   * log's files while it still owns them; see EventUploader.setSpillLog.
+   */
+  public synchronized List<File> getSegmentFiles() {
+    List<File> result = new ArrayList<File>();
+    for (Segment segment : segments)
+      result.add(segment.file.getAbsoluteFile());
+    for (Segment segment : retiredSegments)
+      result.add(segment.file.getAbsoluteFile());
+    return result;
+  }
+  
+  /**
+   * Release the mapping behind the given buffer immediately, rather than when the buffer is
+   * garbage collected. The buffer must not be accessed afterward. Java provides no public API for
+   * this, so we use the JDK's internal one (sun.misc.Unsafe.invokeCleaner on Java 9 and later,
+   * the buffer's cleaner on Java 8). If neither is available, we leave the mapping to the garbage
+   * collector.
+   */
+  static void unmap(MappedByteBuffer buffer) {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner;
+      try {
+        invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      } catch (NoSuchMethodException ex) {
+        invokeCleaner = null;
+      }
+      
+      if (invokeCleaner != null) {
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      } else {
+        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(buffer);
+        if (cleaner != null)
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch (Exception ex) {
+      if (!warnedOfUnmapFailure) {
+        warnedOfUnmapFailure = true;
+        Logging.log(Severity.info, Logging.tagSpillFileError,
+            "Unable to unmap spill files explicitly; their disk space will be released when they are garbage collected", ex);
+      }
+    }
+  }
+  
+  private static volatile boolean warnedOfUnmapFailure = false;
+  
+  /**
+   * Copy the first count bytes of the given record's data to the stream. The record must be checked
+   * out, or the caller must otherwise ensure that it isn't removed meanwhile.
+   */
+  public void writeRecord(OutputStream out, Record record, int count) throws IOException {
+    ScalyrUtil.Assert(count <= record.length, "writing " + count + " bytes from a record of " + record.length);
+    copy(record.segment.buffer, record.headerOffset + RECORD_HEADER_BYTES, count, out);
+  }
+  
+  /**
+   * Copy count bytes, beginning at the given offset in the buffer, to the stream.
+   */
+  private static void copy(ByteBuffer buffer, int offset, int count, OutputStream out) throws IOException {
+    // Use a private view of the buffer, so that we needn't synchronize with appenders.
+    ByteBuffer view = buffer.duplicate();
+    view.position(offset);
+    
+    byte[] temp = new byte[Math.min(count, 8192)];
+    int remaining = count;
+    while (remaining > 0) {
+      int n = Math.min(remaining, temp.length);
+      view.get(temp, 0, n);
+      out.write(temp, 0, n);
+      remaining -= n;
+    }
+  }
+  
+  /**
+   * Provides access to the contents of a segment file written by a previous process. Reading stops
+   * at the end of the valid data: the first zero-length record, or the first record which is
+   * truncated or fails its CRC check (e.g. because the process crashed while writing it).
+   * <p>
+   * Chunk data is not copied out of the file: each record's CRC is checked against the mapped file
+   * as it's parsed, and LeftoverChunk.writeData reads the data from the mapping when it's needed.
+   * Thus replaying a segment holds at most one chunk's worth of data on the heap (in the request
+   * being sent), however large the segment.
+   */
+  public static class LeftoverSegment {
+    public final File file;
+    
+    /**
+     * The header data passed to setSegmentHeader by the process which wrote the segment.
+     */
+    public final byte[] header;
+    
+    /**
+     * Chunks in the segment which were not removed, in order.
+     */
+    public final List<LeftoverChunk> chunks = new ArrayList<LeftoverChunk>();
+    
+    private final MappedByteBuffer buffer;
+    
+    private boolean closed;
+    
+    /**
+     * Open and parse the given file. Throws IOException if the file is unreadable or is not a
+     * segment file.
+     */
+    public LeftoverSegment(File file) throws IOException {
+      this.file = file;
+      
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+      } finally {
+        raf.close();
+      }
+      
+      boolean parsed = false;
+      try {
+        header = parse(file);
+        parsed = true;
+      } finally {
+        if (!parsed)
+          close();
+      }
+    }
+    
+    /**
+     * Read the header and chunks from buffer, adding the chunks to the chunks list, and return
+     * the header data.
+     */
+    private byte[] parse(File file) throws IOException {
+      if (buffer.remaining() < 12 || buffer.getInt() != SEGMENT_MAGIC || buffer.getInt() != FORMAT_VERSION)
+        throw new IOException("[" + file.getAbsolutePath() + "] is not a valid spill file");
+      
+      int headerLength = buffer.getInt();
+      if (headerLength < 0 || headerLength > buffer.remaining())
+        throw new IOException("[" + file.getAbsolutePath() + "] has a corrupt header");
+      byte[] header = new byte[headerLength];
+      buffer.get(header);
+      
+      byte[] metadata = null;
+      while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+        int headerOffset = buffer.position();
+        int length = buffer.getInt();
+        int crc = buffer.getInt();
+        int type = buffer.getInt();
+        int dataLength = Math.abs(length);
+        if (length == 0 || dataLength > buffer.remaining())
+          break;
+        
+        // Check the CRC in place, through a view covering just this record's data.
+        int dataOffset = buffer.position();
+        ByteBuffer data = buffer.duplicate();
+        data.limit(dataOffset + dataLength);
+        CRC32 computedCrc = new CRC32();
+        computedCrc.update(data);
+        if ((int) computedCrc.getValue() != crc)
+          break;
+        
+        if (type == RECORD_TYPE_METADATA) {
+          // Metadata records are small, and parsed by the client, so we do copy them.
+          metadata = new byte[dataLength];
+          buffer.get(metadata);
+        } else {
+          if (type == RECORD_TYPE_CHUNK && length > 0)
+            chunks.add(new LeftoverChunk(this, headerOffset, dataLength, metadata));
+          buffer.position(dataOffset + dataLength);
+        }
+      }
+      return header;
+    }
+    
+    /**
+     * Unmap the file, so that it can be deleted. The segment's chunks can no longer be read or
+     * marked as removed.
+     */
+    public synchronized void close() {
+      if (!closed) {
+        closed = true;
+        unmap(buffer);
+      }
+    }
+  }
+  
+  /**
+   * A chunk from a LeftoverSegment. Its data remains in the segment file until read with writeData.
+   */
+  public static class LeftoverChunk {
+    private final LeftoverSegment segment;
+    private final int headerOffset;
+    
+    /**
+     * Length of the chunk's data.
+     */
+    public final int length;
+    
+    /**
+     * The metadata associated with this chunk (see append), or null.
+     */
+    public final byte[] metadata;
+    
+    LeftoverChunk(LeftoverSegment segment, int headerOffset, int length, byte[] metadata) {
+      this.segment = segment;
+      this.headerOffset = headerOffset;
+      this.length = length;
+      this.metadata = metadata;
+    }
+    
+    /**
+     * Copy the first count bytes of the chunk's data to the stream. Throws IOException if the
+     * segment has been closed.
+     */
+    public void writeData(OutputStream out, int count) throws IOException {
+      ScalyrUtil.Assert(count <= length, "writing " + count + " bytes from a chunk of " + length);
+      
+      // We hold the segment's lock so that it can't be unmapped while we read.
+      synchronized (segment) {
+        if (segment.closed)
+          throw new IOException("Spill file [" + segment.file.getAbsolutePath() + "] has been closed");
+        copy(segment.buffer, headerOffset + RECORD_HEADER_BYTES, count, out);
+      }
+    }
+    
+    /**
+     * Mark the chunk as removed in the segment file, so that it won't be read again.
+     */
+    public void markRemoved() {
+      synchronized (segment) {
+        if (!segment.closed)
+          segment.buffer.putInt(headerOffset, -length);
+      }
+    }
+  }
+}
@@ -22,14 +22,17 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.function.BiConsumer;
 
 import com.scalyr.api.Converter;
 import com.scalyr.api.TuningConstants;
 import com.scalyr.api.internal.Logging;
 import com.scalyr.api.internal.ScalyrUtil;
-import com.scalyr.api.internal.Sleeper;
 import com.scalyr.api.json.JSONObject;
 import com.scalyr.api.json.JSONParser;
+import com.scalyr.api.json.ParseException;
 import com.scalyr.api.logs.Severity;
 
 /**
@@ -136,88 +139,125 @@ class HostedConfigurationFile extends ConfigurationFile {
     }
   }
   
-  // private static final AtomicInteger idCounter = new AtomicInteger(0);
+  /**
+   * Timer used to schedule each fetch after the previous one completes. Shared by all hosted files;
+   * its thread only initiates requests, and never waits for them.
+   */
+  private static final Timer fetchTimer = new Timer("HostedConfigurationFile", true);
+  
+  /**
+   * Delay before we issue our next fetch. Accessed only by the fetch sequence (a chain of
+   * asynchronous requests and timer tasks, each of which begins after the previous one ends).
+   */
+  private int retryInterval = TuningConstants.MINIMUM_FETCH_INTERVAL;
   
-  private void initiateAsyncFetch(final Long expectedVersion_) {
-    // final int id = idCounter.incrementAndGet();
-    // Logging.log("initiateAsyncFetch " + id + ": path [" + filePath + "], expectedVersion " + expectedVersion);
+  /**
+   * Issue an asynchronous request for the file. When it completes, we schedule the next request,
+   * and so on until the file is closed.
+   */
+  private void initiateAsyncFetch(Long expectedVersion) {
+    final long startTime = ScalyrUtil.currentTimeMillis();
     
-    ScalyrUtil.asyncApiExecutor.execute(new Runnable(){
-      Long expectedVersion = expectedVersion_;
-      
-      @Override public void run() {
-        int retryInterval = TuningConstants.MINIMUM_FETCH_INTERVAL;
-        
-        while (!isClosed()) {
-          try {
-            long startTime = ScalyrUtil.currentTimeMillis();
-            String rawResponse = knobService.getFile(getPathname(), expectedVersion, MAX_WAIT_TIME);
-          
-            JSONObject response = (JSONObject) new JSONParser().parse(rawResponse);
-          
-            Object statusObj = response.get("status");
-            String status = (statusObj != null) ? statusObj.toString() : "error/server/missingStatus";
-          
-            Object stalenessSlop = response.get("stalenessSlop");
-            long stalenessSlopLong = (stalenessSlop != null) ? Converter.toLong(stalenessSlop) : 0;
-          
-            // Logging.log("initiateAsyncFetch " + id + ": status " + status);
-          
-            if (status.startsWith("success")) {
-              // After a successful response, we quickly issue a new request. We pause slightly
-              // simply as a safety measure. Normally, we would not expect a rapid-fire sequence
-              // of successful responses -- we should usually wait for MAX_WAIT_TIME. The delay
-              // here ensures that even if something goes wrong, we'll still issue at most a
-              // couple of requests per second.
-              retryInterval = TuningConstants.MINIMUM_FETCH_INTERVAL;
-              
-              if (status.startsWith("success/noSuchFile")) {
-                updateStalenessBound(stalenessSlopLong + ScalyrUtil.currentTimeMillis() - startTime);
-                setFileState(new FileState(0, null, null, null));
-              } else if (status.startsWith("success/unchanged")) {
-                updateStalenessBound(stalenessSlopLong + ScalyrUtil.currentTimeMillis() - startTime);
-              } else {
-                updateStalenessBound(stalenessSlopLong + ScalyrUtil.currentTimeMillis() - startTime);
-                setFileState(new FileState(Converter.toLong(response.get("version")),
-                    (String) response.get("content"),
-                    new Date((long)Converter.toLong(response.get("createDate"))),
-                    new Date((long)Converter.toLong(response.get("modDate"   )))));
-              }
-            } else {
-              // After any sort of error or backoff response, retry after 5 seconds, successively
-              // doubling up to a maximum of 1 minute. 
-              if (retryInterval < TuningConstants.MINIMUM_FETCH_INTERVAL_AFTER_ERROR)
-                retryInterval = TuningConstants.MINIMUM_FETCH_INTERVAL_AFTER_ERROR;
+    knobService.getFileAsync(getPathname(), expectedVersion, MAX_WAIT_TIME).whenComplete(
+        new BiConsumer<String, Throwable>(){
+          @Override public void accept(String rawResponse, Throwable failure) {
+            try {
+              if (failure != null)
+                logFetchError(failure);
               else
-                retryInterval = Math.min(retryInterval*2, TuningConstants.MAXIMUM_FETCH_INTERVAL);
-              
-              if (status.startsWith("error/server/backoff")) {
-                Logging.log(Severity.warning, Logging.tagServerBackoff,
-                    "Configuration server returned status [" + status + "], message [" +
-                    response.get("message") + "]; backing off");
-                
-              } else {
-                Logging.log(Severity.warning, Logging.tagServerError,
-                    "Bad response from configuration server (status [" + status + "], message [" +
-                    response.get("message") + "])");
-              }
+                processResponse(rawResponse, startTime);
+            } catch (Exception ex) {
+              logFetchError(ex);
+            } finally {
+              // Keep polling even if processing failed with an Error.
+              scheduleNextFetch();
             }
-          } catch (Exception ex) {
-            Logging.log(Severity.warning, Logging.tagServerError,
-                "Error communicating with the configuration server(s) [" +
-                knobService.getServerAddresses() + "] to fetch file [" + getPathname() + "]",
-                ex);
-          }
+          }});
+  }
+  
+  private void processResponse(String rawResponse, long startTime) throws ParseException {
+    JSONObject response = (JSONObject) new JSONParser().parse(rawResponse);
+    
+    Object statusObj = response.get("status");
+    String status = (statusObj != null) ? statusObj.toString() : "error/server/missingStatus";
+    
+    Object stalenessSlop = response.get("stalenessSlop");
+    long stalenessSlopLong = (stalenessSlop != null) ? Converter.toLong(stalenessSlop) : 0;
+    
+    if (status.startsWith("success")) {
+      // After a successful response, we quickly issue a new request. We pause slightly
+      // simply as a safety measure. Normally, we would not expect a rapid-fire sequence
+      // of successful responses -- we should usually wait for MAX_WAIT_TIME. The delay
+      // here ensures that even if something goes wrong, we'll still issue at most a
+      // couple of requests per second.
+      retryInterval = TuningConstants.MINIMUM_FETCH_INTERVAL;
+      
+      if (status.startsWith("success/noSuchFile")) {
+        updateStalenessBound(stalenessSlopLong + ScalyrUtil.currentTimeMillis() - startTime);
+        setFileState(new FileState(0, null, null, null));
+      } else if (status.startsWith("success/unchanged")) {
+        updateStalenessBound(stalenessSlopLong + ScalyrUtil.currentTimeMillis() - startTime);
+      } else {
+        updateStalenessBound(stalenessSlopLong + ScalyrUtil.currentTimeMillis() - startTime);
+        setFileState(new FileState(Converter.toLong(response.get("version")),
+            (String) response.get("content"),
+            new Date((long)Converter.toLong(response.get("createDate"))),
+            new Date((long)Converter.toLong(response.get("modDate"   )))));
+      }
+    } else {
+      // After any sort of error or backoff response, retry after 5 seconds, successively
+      // doubling up to a maximum of 1 minute. 
+      if (retryInterval < TuningConstants.MINIMUM_FETCH_INTERVAL_AFTER_ERROR)
+        retryInterval = TuningConstants.MINIMUM_FETCH_INTERVAL_AFTER_ERROR;
+      else
+        retryInterval = Math.min(retryInterval*2, TuningConstants.MAXIMUM_FETCH_INTERVAL);
+      
+      if (status.startsWith("error/server/backoff")) {
+        Logging.log(Severity.warning, Logging.tagServerBackoff,
+            "Configuration server returned status [" + status + "], message [" +
+            response.get("message") + "]; backing off");
         
-          // TODO: throttle requests, to avoid runaway loops in the case of connectivity problems or
-          // other systemic problems. E.g. we might limit ourselves to 5 invocations per minute.
-          Sleeper.instance.sleep(retryInterval);
+      } else {
+        Logging.log(Severity.warning, Logging.tagServerError,
+            "Bad response from configuration server (status [" + status + "], message [" +
+            response.get("message") + "])");
+      }
+    }
+  }
+  
+  private void logFetchError(Throwable ex) {
+    Logging.log(Severity.warning, Logging.tagServerError,
+        "Error communicating with the configuration server(s) [" +
+        knobService.getServerAddresses() + "] to fetch file [" + getPathname() + "]",
+        ex);
+  }
+  
+  /**
+   * Arrange for the next fetch to be issued after retryInterval, unless we've been closed.
+   */
+  private void scheduleNextFetch() {
+    if (isClosed())
+      return;
+    
+    // TODO: throttle requests, to avoid runaway loops in the case of connectivity problems or
+    // other systemic problems. E.g. we might limit ourselves to 5 invocations per minute.
+    fetchTimer.schedule(new TimerTask(){
+      @Override public void run() {
+        if (isClosed())
+          return;
+        
+        Long expectedVersion;
+        synchronized (HostedConfigurationFile.this) {
+          expectedVersion = (fileState != null ? fileState.version : null);
+        }
         
-          // Logging.log("initiateAsyncFetch " + id + ": recursing");
-          synchronized (this) {
-            expectedVersion = (fileState != null ? fileState.version : null);
-          }
+        try {
+          initiateAsyncFetch(expectedVersion);
+        } catch (Exception ex) {
+          // Don't let an exception kill the shared timer thread.
+          logFetchError(ex);
+          scheduleNextFetch();
         }
-      }});
+      }}, retryInterval);
   }
 }
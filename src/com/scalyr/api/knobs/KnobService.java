@@ -18,9 +18,12 @@
 package com.scalyr.api.knobs;
 
 import java.io.File;
+import java.util.concurrent.CompletableFuture;
 
+import com.scalyr.api.Compression;
 import com.scalyr.api.ScalyrException;
 import com.scalyr.api.ScalyrNetworkException;
+import com.scalyr.api.internal.HttpTransport;
 import com.scalyr.api.internal.ScalyrService;
 import com.scalyr.api.json.JSONObject;
 
@@ -42,6 +45,14 @@ public class KnobService extends ScalyrService {
     return (KnobService) super.setServerAddress(value);
   }
   
+  public @Override synchronized KnobService setRequestCompression(Compression compression, int level) {
+    return (KnobService) super.setRequestCompression(compression, level);
+  }
+  
+  public @Override synchronized KnobService setTransport(HttpTransport value) {
+    return (KnobService) super.setTransport(value);
+  }
+  
   /**
    * Return a ConfigurationFileFactory that retrieves files via this KnobService instance.
    * 
@@ -79,6 +90,18 @@ public class KnobService extends ScalyrService {
    */
   public String getFile(String path, Long expectedVersion, Integer waitTime)
       throws ScalyrException, ScalyrNetworkException {
+    return invokeApi("getFile", getFileParameters(path, expectedVersion, waitTime));
+  }
+  
+  /**
+   * Asynchronous variant of getFile. Returns immediately, with a future for the server's response
+   * (see ScalyrService.invokeApiAsync).
+   */
+  public CompletableFuture<String> getFileAsync(String path, Long expectedVersion, Integer waitTime) {
+    return invokeApiAsync("getFile", getFileParameters(path, expectedVersion, waitTime));
+  }
+  
+  private JSONObject getFileParameters(String path, Long expectedVersion, Integer waitTime) {
     JSONObject parameters = new JSONObject();
     parameters.put("token", apiToken);
     parameters.put("path", path);
@@ -88,7 +111,7 @@ public class KnobService extends ScalyrService {
     if (waitTime != null)
       parameters.put("waitTime", waitTime);
     
-    return invokeApi("getFile", parameters);
+    return parameters;
   }
   
   /**
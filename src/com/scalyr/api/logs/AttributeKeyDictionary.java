@@ -0,0 +1,154 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.logs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.scalyr.api.TuningConstants;
+import com.scalyr.api.internal.ByteArrayBuilder;
+import com.scalyr.api.internal.ScalyrUtil;
+import com.scalyr.api.json.JSONArray;
+import com.scalyr.api.json.JSONObject;
+
+/**
+ * Assigns small integer IDs to event field names and attribute keys, for the compact event
+ * encoding (see Events.setCompactAttributeKeys).
+ * <p>
+ * In the compact encoding, each key in an event -- the fixed fields ("sev", "thread", and so on)
+ * as well as attribute names -- is written as "~N", where N is the key's index in the session's
+ * key table. The table is sent in the sessionInfo of each upload, as "attributeKeys". IDs are
+ * assigned on first use and never change during a session, so the table only grows. Once the
+ * table reaches MAX_ATTRIBUTE_KEY_IDS entries, further keys are written literally; a literal key
+ * which begins with '~' is escaped by doubling the '~'.
+ * <p>
+ * decodeEvent converts a compact event back to the standard form. The Scalyr Logs server must
+ * support the compact encoding for it to be used; decodeEvent serves as a reference decoder, for
+ * tests and for tools that read uploaded events.
+ */
+public final class AttributeKeyDictionary {
+  /**
+   * Keys for the fixed event fields, in ID order. Every table begins with these.
+   */
+  private static final String[] FIXED_KEYS = {"sev", "thread", "ts", "type", "attrs", "startTS"};
+  
+  /**
+   * Encoded form of each key which has been assigned an ID: "~N" in quotes, followed by a colon.
+   */
+  private final Map<String, byte[]> encodedKeys = new ConcurrentHashMap<String, byte[]>();
+  
+  /**
+   * All keys which have been assigned an ID, in ID order. Synchronized on this.
+   */
+  private final List<String> keys = new ArrayList<String>();
+  
+  AttributeKeyDictionary() {
+    for (String key : FIXED_KEYS)
+      encode(key);
+  }
+  
+  /**
+   * Return the encoded form of the given key ("~N" in quotes, followed by a colon), assigning an
+   * ID if necessary. If the table is full, return null.
+   */
+  byte[] encode(String key) {
+    byte[] encoded = encodedKeys.get(key);
+    if (encoded != null)
+      return encoded;
+    
+    synchronized (this) {
+      encoded = encodedKeys.get(key);
+      if (encoded == null && keys.size() < TuningConstants.MAX_ATTRIBUTE_KEY_IDS) {
+        encoded = ("\"~" + keys.size() + "\":").getBytes(ScalyrUtil.utf8);
+        keys.add(key);
+        encodedKeys.put(key, encoded);
+      }
+      return encoded;
+    }
+  }
+  
+  /**
+   * Return the number of keys which have been assigned IDs.
+   */
+  synchronized int size() {
+    return keys.size();
+  }
+  
+  /**
+   * Return the key table, for inclusion in sessionInfo.
+   */
+  synchronized JSONArray toJSON() {
+    JSONArray result = new JSONArray();
+    result.addAll(keys);
+    return result;
+  }
+  
+  /**
+   * Write an attribute key in the compact encoding, followed by a colon. key must not be null.
+   */
+  void writeKey(ByteArrayBuilder out, String key) {
+    byte[] encoded = encode(key);
+    if (encoded != null) {
+      out.write(encoded, 0, encoded.length);
+      return;
+    }
+    
+    out.write('"');
+    if (key.length() > 0 && key.charAt(0) == '~')
+      out.write('~');
+    EventSerializer.writeEscaped(out, key, 0, key.length());
+    out.write('"');
+    out.write(':');
+  }
+  
+  /**
+   * Convert an event in the compact encoding back to the standard form, using the key table from
+   * the upload's sessionInfo.
+   */
+  public static JSONObject decodeEvent(JSONObject event, JSONArray keyTable) {
+    JSONObject result = decodeKeys(event, keyTable);
+    Object attrs = result.get("attrs");
+    if (attrs instanceof JSONObject)
+      result.put("attrs", decodeKeys((JSONObject) attrs, keyTable));
+    return result;
+  }
+  
+  private static JSONObject decodeKeys(JSONObject object, JSONArray keyTable) {
+    JSONObject result = new JSONObject();
+    for (Map.Entry<String, Object> entry : object.entrySet())
+      result.put(decodeKey(entry.getKey(), keyTable), entry.getValue());
+    return result;
+  }
+  
+  private static String decodeKey(String key, JSONArray keyTable) {
+    if (key.startsWith("~~"))
+      return key.substring(1);
+    
+    if (key.startsWith("~")) {
+      try {
+        return (String) keyTable.get(Integer.parseInt(key.substring(1)));
+      } catch (RuntimeException ex) {
+        throw new RuntimeException("Invalid key [" + key + "] for a table of " + keyTable.size() + " keys");
+      }
+    }
+    
+    return key;
+  }
+}
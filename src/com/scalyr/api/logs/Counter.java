@@ -0,0 +1,80 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.logs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.scalyr.api.TuningConstants;
+
+/**
+ * A Counter accumulates a count (e.g. of requests handled), and records the total once per
+ * sampling interval, as a Gauge. The count is reset after each sample, so each event reports
+ * the amount counted during one interval. Sample usage:
+ * 
+ * <pre>
+ *   Counter requests = new Counter();
+ *   Gauge.register(requests, new EventAttributes("tag", "requests"));
+ *   ...
+ *   requests.increment();
+ * </pre>
+ * 
+ * Counting is lock-free. Threads add to separate cells (each on its own cache line), which are
+ * only summed when the counter is sampled, so a heavily used counter does not become a point of
+ * contention.
+ */
+public class Counter extends Gauge {
+  /**
+   * Number of longs from one cell to the next, so that cells fall in separate cache lines.
+   */
+  private static final int CELL_SPACING = 8;
+  
+  private final AtomicLongArray cells = new AtomicLongArray(TuningConstants.METRIC_STRIPES * CELL_SPACING);
+  
+  /**
+   * Add 1 to the count.
+   */
+  public void increment() {
+    add(1);
+  }
+  
+  /**
+   * Add the given amount to the count.
+   */
+  public void add(long delta) {
+    cells.getAndAdd(stripeIndex() * CELL_SPACING, delta);
+  }
+  
+  /**
+   * Return the amount counted since the previous call, and reset the count to zero.
+   */
+  @Override public Object sample() {
+    long total = 0;
+    for (int i = 0; i < TuningConstants.METRIC_STRIPES; i++)
+      total += cells.getAndSet(i * CELL_SPACING, 0);
+    
+    return total;
+  }
+  
+  /**
+   * Return the stripe used by the calling thread, in the range [0, METRIC_STRIPES).
+   */
+  static int stripeIndex() {
+    long threadId = Thread.currentThread().getId();
+    return (int) (threadId ^ (threadId >>> 32)) & (TuningConstants.METRIC_STRIPES - 1);
+  }
+}
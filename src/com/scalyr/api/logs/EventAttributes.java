@@ -29,6 +29,15 @@ import java.util.Map;
 public class EventAttributes {
   final Map<String, Object> values = new HashMap<String, Object>();
   
+  /**
+   * Incremented whenever a value is stored, so that EventUploader can tell when the server
+   * attributes it has serialized are out of date. EventUploader reads this from its upload thread
+   * while the application may be storing values in another, so it is volatile: a reader which sees
+   * a new count also sees the value stored before it was incremented. The increment itself is not
+   * atomic; as for the rest of this class, stores from several threads at once are not supported.
+   */
+  volatile int modCount;
+  
   /**
    * Construct an empty attribute list.
    */
@@ -124,6 +133,7 @@ public class EventAttributes {
    */
   public EventAttributes put(String key, Object value) {
     values.put(key, toValueType(value));
+    modCount++;
     return this;
   }
   
@@ -0,0 +1,214 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.logs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import com.scalyr.api.TuningConstants;
+
+/**
+ * Folds repeated leaf events into occurrence counts. See Events.setEventCoalescingWindow.
+ * <p>
+ * The first occurrence of an event (a given severity and set of attributes, from a given thread) is
+ * recorded normally, and opens a window. Identical events recorded during the window are absorbed, and counted. Once
+ * the window has passed, sweep returns the counts, and EventUploader records a single summary
+ * event in place of the absorbed events.
+ * <p>
+ * The table is divided into stripes, each with its own lock and a bounded number of entries.
+ * When a stripe is full, events which would need a new entry are simply recorded normally.
+ */
+class EventCoalescer {
+  private static final int STRIPE_COUNT = 16;
+  
+  /**
+   * Length of the coalescing window, in nanoseconds.
+   */
+  private final long windowNs;
+  
+  private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+  
+  EventCoalescer(int windowMs) {
+    this.windowNs = windowMs * 1000000L;
+    
+    for (int i = 0; i < STRIPE_COUNT; i++)
+      stripes[i] = new Stripe();
+  }
+  
+  /**
+   * Called for each leaf event that has passed the EventFilter. Return true if the event was
+   * absorbed into an open window (in which case it should not be recorded), false if it should
+   * be recorded normally.
+   * 
+   * source identifies the thread which recorded the event (see Entry.getSource); events are only
+   * coalesced with others from the same source.
+   */
+  boolean absorb(Object source, long timestampNs, Severity severity, EventAttributes attributes) {
+    Key key = new Key(source, severity, attributes);
+    Stripe stripe = stripes[(key.hash ^ (key.hash >>> 16)) & (STRIPE_COUNT - 1)];
+    
+    synchronized (stripe) {
+      Entry entry = stripe.entries.get(key);
+      if (entry != null) {
+        if (timestampNs - entry.windowStartNs < windowNs) {
+          if (entry.repeatCount == 0)
+            entry.firstRepeatNs = timestampNs;
+          entry.lastRepeatNs = timestampNs;
+          entry.repeatCount++;
+          return true;
+        }
+        
+        // The window has passed, but the entry has not yet been swept. Set it aside for the next
+        // sweep, and open a new window with this event.
+        stripe.entries.remove(key);
+        if (entry.repeatCount > 0)
+          stripe.closedEntries.add(entry);
+      }
+      
+      if (stripe.entries.size() < TuningConstants.MAX_COALESCED_EVENTS / STRIPE_COUNT) {
+        // Take a copy of the attributes, as the caller may reuse the EventAttributes object.
+        Key ownKey = new Key(source, severity, new EventAttributes(attributes), key.hash);
+        stripe.entries.put(ownKey, new Entry(ownKey, timestampNs));
+      }
+      
+      return false;
+    }
+  }
+  
+  /**
+   * Remove all entries whose window has passed as of nowNs (or all entries, if closeAll is true),
+   * and return those which absorbed at least one event.
+   */
+  List<Entry> sweep(long nowNs, boolean closeAll) {
+    List<Entry> result = new ArrayList<Entry>();
+    
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        result.addAll(stripe.closedEntries);
+        stripe.closedEntries.clear();
+        
+        Iterator<Entry> iterator = stripe.entries.values().iterator();
+        while (iterator.hasNext()) {
+          Entry entry = iterator.next();
+          if (closeAll || nowNs - entry.windowStartNs >= windowNs) {
+            iterator.remove();
+            if (entry.repeatCount > 0)
+              result.add(entry);
+          }
+        }
+      }
+    }
+    
+    return result;
+  }
+  
+  private static class Stripe {
+    final HashMap<Key, Entry> entries = new HashMap<Key, Entry>();
+    
+    /**
+     * Entries whose window has been closed by absorb, awaiting the next sweep.
+     */
+    final List<Entry> closedEntries = new ArrayList<Entry>();
+  }
+  
+  /**
+   * Identifies events which may be coalesced: those from the same source, with the same severity
+   * and attributes. Sources are compared by identity.
+   */
+  private static class Key {
+    final Object source;
+    final Severity severity;
+    final EventAttributes attributes;
+    final int hash;
+    
+    Key(Object source, Severity severity, EventAttributes attributes) {
+      this(source, severity, attributes,
+          (System.identityHashCode(source) * 31 + severity.ordinal()) * 31 + attributes.values.hashCode());
+    }
+    
+    Key(Object source, Severity severity, EventAttributes attributes, int hash) {
+      this.source = source;
+      this.severity = severity;
+      this.attributes = attributes;
+      this.hash = hash;
+    }
+    
+    @Override public int hashCode() {
+      return hash;
+    }
+    
+    @Override public boolean equals(Object o) {
+      if (!(o instanceof Key))
+        return false;
+      
+      Key other = (Key) o;
+      return hash == other.hash && source == other.source && severity == other.severity
+          && attributes.values.equals(other.attributes.values);
+    }
+  }
+  
+  /**
+   * A coalescing window: the event which opened it, and the events it has absorbed.
+   */
+  static class Entry {
+    private final Key key;
+    
+    /**
+     * Timestamp of the event which opened the window.
+     */
+    final long windowStartNs;
+    
+    /**
+     * Number of events absorbed, and the timestamps of the first and last of them.
+     */
+    int repeatCount;
+    long firstRepeatNs, lastRepeatNs;
+    
+    Entry(Key key, long windowStartNs) {
+      this.key = key;
+      this.windowStartNs = windowStartNs;
+    }
+    
+    /**
+     * Return the source passed to absorb for the window's events. The summary event should be
+     * recorded under it, so that it is attributed to the thread which recorded the absorbed events.
+     */
+    Object getSource() {
+      return key.source;
+    }
+    
+    Severity getSeverity() {
+      return key.severity;
+    }
+    
+    /**
+     * Return the attributes for the summary event which replaces the absorbed events: those of
+     * the original event, plus repeatCount, firstTs, and lastTs. The timestamps are in the same
+     * form as an event's ts field (nanoseconds since the epoch, as a string).
+     */
+    EventAttributes getSummaryAttributes() {
+      EventAttributes attributes = new EventAttributes(key.attributes);
+      attributes.put("repeatCount", repeatCount);
+      attributes.put("firstTs", Long.toString(firstRepeatNs));
+      attributes.put("lastTs", Long.toString(lastRepeatNs));
+      return attributes;
+    }
+  }
+}
@@ -21,8 +21,33 @@ package com.scalyr.api.logs;
  * This class defines an interface through which you can intercept and modify events as
  * they flow into Scalyr Logs. To use this interface, define a subclass of EventFilter,
  * override the filter() method, and pass an instance to Events.setEventFilter().
+ * <p>
+ * A filter which discards all events below some severity should say so by calling
+ * setMinimumSeverity. Such events are then discarded without invoking filter(), and
+ * Events.isEnabled reports them as disabled, so that callers can skip building them.
+ * <p>
+ * A filter which only keeps or discards events (never modifying them) can override decide(),
+ * which is invoked before filter() and avoids allocating a FilterInput and FilterOutput.
  */
 public class EventFilter {
+  /**
+   * Return value for decide().
+   */
+  public enum Decision {
+    keep,
+    discard,
+    
+    /**
+     * Invoke filter() to decide.
+     */
+    invokeFilter
+  }
+  
+  /**
+   * Events below this severity are discarded without invoking filter().
+   */
+  private volatile Severity minimumSeverity = Severity.finest;
+  
   public static class FilterInput {
     /**
      * ID of the thread which generated this event.
@@ -98,4 +123,43 @@ public class EventFilter {
   public void filter(FilterInput input, FilterOutput output) {
     // default implementation allows all events to pass unmodified
   }
+  
+  /**
+   * This method is invoked for each event, before filter(). It can keep or discard the event
+   * outright, or return Decision.invokeFilter to have filter() invoked. The parameters are as
+   * for FilterInput, and attributes must not be mutated. The default implementation returns
+   * invokeFilter.
+   */
+  public Decision decide(long timestampNs, int spanType, Severity severity, EventAttributes attributes,
+      boolean isTopLevel, boolean inDiscardedSpan) {
+    return Decision.invokeFilter;
+  }
+  
+  /**
+   * Return false if this filter would discard every event with the given severity and "tag"
+   * attribute. This is used by Events.isEnabled(Severity, String); it should be fast, and
+   * needn't be exact (returning true is always safe). Only invoked for events at or above
+   * the minimum severity.
+   */
+  public boolean isTagEnabled(Severity severity, String tag) {
+    return true;
+  }
+  
+  /**
+   * Return the severity below which this filter discards all events. The exception is the end of
+   * a span whose start event was recorded (e.g. before the minimum was raised); such events are
+   * passed to decide() and filter() as usual, so that the span is not left open.
+   */
+  public final Severity getMinimumSeverity() {
+    return minimumSeverity;
+  }
+  
+  /**
+   * Specify that this filter discards all events below the given severity. This may be
+   * called at any time, e.g. when the filter's configuration changes.
+   */
+  protected final void setMinimumSeverity(Severity value) {
+    minimumSeverity = value;
+    Events.minimumSeverityChanged(this);
+  }
 }
@@ -0,0 +1,45 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.logs;
+
+/**
+ * Result of recording an event with Events.tryEvent.
+ */
+public enum EventOutcome {
+  /**
+   * The event was added to the upload buffer (or counted in a coalesced event; see
+   * Events.setEventCoalescingWindow).
+   */
+  recorded,
+  
+  /**
+   * The event was discarded by the EventFilter.
+   */
+  discardedByFilter,
+  
+  /**
+   * The event was discarded because the upload buffer was full, and no space became available
+   * within the allowed wait.
+   */
+  bufferFull,
+  
+  /**
+   * The event was not recorded because Events.init has not been called, or due to an internal error.
+   */
+  notRecorded
+}
@@ -0,0 +1,259 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.logs;
+
+import java.util.Map;
+
+import com.scalyr.api.TuningConstants;
+import com.scalyr.api.internal.ByteArrayBuilder;
+import com.scalyr.api.internal.ScalyrUtil;
+
+/**
+ * Serializes events directly to UTF-8 JSON in a ByteArrayBuilder.
+ * <p>
+ * The output is byte-for-byte identical to what we would get by building a JSONObject for the
+ * event and calling writeJSONBytes (on a platform whose default charset is UTF-8), including
+ * field order and string escaping. However, we don't allocate any intermediate objects for
+ * the common value types (strings, integers, and booleans).
+ * <p>
+ * Alternatively, events can be written in the compact encoding described in
+ * AttributeKeyDictionary, which differs only in the representation of keys.
+ */
+class EventSerializer {
+  // Fixed portions of the event JSON. Fields appear in the order that a JSONObject (HashMap)
+  // containing these keys would enumerate them.
+  private static final byte[] SEV_PREFIX      = ascii("{\"sev\":");
+  private static final byte[] START_TS_PREFIX = ascii(",\"startTS\":");
+  private static final byte[] TYPE_PREFIX     = ascii(",\"type\":");
+  private static final byte[] TS_PREFIX       = ascii(",\"ts\":\"");
+  private static final byte[] ATTRS_PREFIX    = ascii(",\"attrs\":{");
+  
+  // The same, for the compact encoding. The IDs are fixed; see AttributeKeyDictionary.
+  private static final byte[] COMPACT_SEV_PREFIX      = ascii("{\"~0\":");
+  private static final byte[] COMPACT_START_TS_PREFIX = ascii(",\"~5\":");
+  private static final byte[] COMPACT_TYPE_PREFIX     = ascii(",\"~3\":");
+  private static final byte[] COMPACT_TS_PREFIX       = ascii(",\"~2\":\"");
+  private static final byte[] COMPACT_ATTRS_PREFIX    = ascii(",\"~4\":{");
+  
+  private static final byte[] NULL            = ascii("null");
+  private static final byte[] TRUE            = ascii("true");
+  private static final byte[] FALSE           = ascii("false");
+  private static final byte[] ELLIPSIS        = ascii("...");
+  
+  private static final byte[] HEX_DIGITS = ascii("0123456789ABCDEF");
+  
+  /**
+   * Return the serialized "thread" field for the given thread ID. Computed once per thread, and
+   * passed to writeEvent.
+   * 
+   * @param compact True for the compact encoding.
+   */
+  static byte[] threadField(long threadId, boolean compact) {
+    return ascii(",\"" + (compact ? "~1" : "thread") + "\":\"" + threadId + "\"");
+  }
+  
+  /**
+   * Append the JSON form of an event to out. startTs is used only for span-end events.
+   * 
+   * @param keys If not null, we write the event in the compact encoding, using this dictionary.
+   *     threadField must then also be in the compact encoding.
+   */
+  static void writeEvent(ByteArrayBuilder out, byte[] threadField, long timestamp, int spanType,
+      Severity severity, EventAttributes attributes, long startTs, AttributeKeyDictionary keys) {
+    // Note that we store the timestamp as a string, not a number. This is because some JSON packages
+    // convert all numbers to floating point, and a 64-bit floating point value doesn't have sufficient
+    // precision to represent a nanosecond timestamp. We take a similar precaution for the thread ID.
+    writeBytes(out, (keys != null) ? COMPACT_SEV_PREFIX : SEV_PREFIX);
+    writeLong(out, severity.ordinal());
+    
+    if (spanType == LogService.SPAN_TYPE_END) {
+      writeBytes(out, (keys != null) ? COMPACT_START_TS_PREFIX : START_TS_PREFIX);
+      writeLong(out, startTs);
+    }
+    
+    writeBytes(out, threadField);
+    
+    writeBytes(out, (keys != null) ? COMPACT_TYPE_PREFIX : TYPE_PREFIX);
+    writeLong(out, spanType);
+    
+    writeBytes(out, (keys != null) ? COMPACT_TS_PREFIX : TS_PREFIX);
+    writeLong(out, timestamp);
+    out.write('"');
+    
+    if (attributes != null && attributes.values.size() > 0) {
+      writeBytes(out, (keys != null) ? COMPACT_ATTRS_PREFIX : ATTRS_PREFIX);
+      
+      boolean first = true;
+      for (Map.Entry<String, Object> entry : attributes.values.entrySet()) {
+        if (first)
+          first = false;
+        else
+          out.write(',');
+        
+        String key = entry.getKey();
+        if (keys != null && key != null) {
+          keys.writeKey(out, key);
+        } else {
+          out.write('"');
+          if (key != null)
+            writeEscaped(out, key, 0, key.length());
+          else
+            writeBytes(out, NULL);
+          out.write('"');
+          out.write(':');
+        }
+        
+        writeValue(out, entry.getValue());
+      }
+      
+      out.write('}');
+    }
+    
+    out.write('}');
+  }
+  
+  /**
+   * Append an attribute value, truncating long strings as EventUploader always has.
+   */
+  private static void writeValue(ByteArrayBuilder out, Object value) {
+    if (value == null) {
+      writeBytes(out, NULL);
+    } else if (value instanceof String) {
+      String s = (String) value;
+      out.write('"');
+      if (s.length() > TuningConstants.MAXIMUM_EVENT_ATTRIBUTE_LENGTH) {
+        writeEscaped(out, s, 0, TuningConstants.MAXIMUM_EVENT_ATTRIBUTE_LENGTH - 3);
+        writeBytes(out, ELLIPSIS);
+      } else {
+        writeEscaped(out, s, 0, s.length());
+      }
+      out.write('"');
+    } else if (value instanceof Integer || value instanceof Long) {
+      writeLong(out, ((Number) value).longValue());
+    } else if (value instanceof Boolean) {
+      writeBytes(out, ((Boolean) value) ? TRUE : FALSE);
+    } else if (value instanceof Double
+        && (((Double) value).isInfinite() || ((Double) value).isNaN())) {
+      writeBytes(out, NULL);
+    } else if (value instanceof Float
+        && (((Float) value).isInfinite() || ((Float) value).isNaN())) {
+      writeBytes(out, NULL);
+    } else {
+      // Other numbers, and any other type, are written unquoted, as JSONValue does.
+      String s = value.toString();
+      writeUnescaped(out, s, 0, s.length());
+    }
+  }
+  
+  /**
+   * Append the decimal representation of value.
+   */
+  static void writeLong(ByteArrayBuilder out, long value) {
+    if (value < 0) {
+      if (value == Long.MIN_VALUE) {
+        writeBytes(out, ascii(Long.toString(value)));
+        return;
+      }
+      out.write('-');
+      value = -value;
+    }
+    
+    long divisor = 1;
+    while (divisor <= value / 10)
+      divisor *= 10;
+    
+    while (divisor > 0) {
+      out.write((int) ('0' + (value / divisor) % 10));
+      divisor /= 10;
+    }
+  }
+  
+  /**
+   * Append s[start, end) as UTF-8, applying the same escaping rules as JSONValue.escape.
+   */
+  static void writeEscaped(ByteArrayBuilder out, String s, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char ch = s.charAt(i);
+      switch (ch) {
+      case '"':  out.write('\\'); out.write('"');  break;
+      case '\\': out.write('\\'); out.write('\\'); break;
+      case '\b': out.write('\\'); out.write('b');  break;
+      case '\f': out.write('\\'); out.write('f');  break;
+      case '\n': out.write('\\'); out.write('n');  break;
+      case '\r': out.write('\\'); out.write('r');  break;
+      case '\t': out.write('\\'); out.write('t');  break;
+      case '/':  out.write('\\'); out.write('/');  break;
+      default:
+        if (ch <= '\u001F' || (ch >= '\u007F' && ch <= '\u009F') || (ch >= '\u2000' && ch <= '\u20FF')) {
+          out.write('\\');
+          out.write('u');
+          out.write(HEX_DIGITS[(ch >> 12) & 0xF]);
+          out.write(HEX_DIGITS[(ch >>  8) & 0xF]);
+          out.write(HEX_DIGITS[(ch >>  4) & 0xF]);
+          out.write(HEX_DIGITS[ ch        & 0xF]);
+        } else {
+          i = writeUtf8Char(out, s, i, end);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Append s[start, end) as UTF-8, without escaping.
+   */
+  private static void writeUnescaped(ByteArrayBuilder out, String s, int start, int end) {
+    for (int i = start; i < end; i++)
+      i = writeUtf8Char(out, s, i, end);
+  }
+  
+  /**
+   * Append the UTF-8 encoding of the character at s[i]. If it is the first half of a surrogate pair,
+   * consume the second half as well. Return the index of the last char consumed. Unpaired
+   * surrogates are written as '?', matching the JDK's UTF-8 encoder.
+   */
+  private static int writeUtf8Char(ByteArrayBuilder out, String s, int i, int end) {
+    char ch = s.charAt(i);
+    if (ch < 0x80) {
+      out.write(ch);
+    } else if (ch < 0x800) {
+      out.write(0xC0 | (ch >> 6));
+      out.write(0x80 | (ch & 0x3F));
+    } else if (Character.isHighSurrogate(ch) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+      int codePoint = Character.toCodePoint(ch, s.charAt(++i));
+      out.write(0xF0 | (codePoint >> 18));
+      out.write(0x80 | ((codePoint >> 12) & 0x3F));
+      out.write(0x80 | ((codePoint >>  6) & 0x3F));
+      out.write(0x80 | (codePoint & 0x3F));
+    } else if (Character.isSurrogate(ch)) {
+      out.write('?');
+    } else {
+      out.write(0xE0 | (ch >> 12));
+      out.write(0x80 | ((ch >> 6) & 0x3F));
+      out.write(0x80 | (ch & 0x3F));
+    }
+    return i;
+  }
+  
+  private static void writeBytes(ByteArrayBuilder out, byte[] bytes) {
+    out.write(bytes, 0, bytes.length);
+  }
+  
+  private static byte[] ascii(String s) {
+    return s.getBytes(ScalyrUtil.utf8);
+  }
+}
@@ -17,27 +17,36 @@
 
 package com.scalyr.api.logs;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.scalyr.api.ScalyrException;
 import com.scalyr.api.TuningConstants;
+import com.scalyr.api.internal.ByteArrayBuilder;
 import com.scalyr.api.internal.ChunkSizeList;
 import com.scalyr.api.internal.CircularByteArray;
 import com.scalyr.api.internal.Logging;
 import com.scalyr.api.internal.Logging.LogLimiter;
 import com.scalyr.api.internal.ScalyrUtil;
+import com.scalyr.api.internal.SpillLog;
 import com.scalyr.api.json.JSONArray;
 import com.scalyr.api.json.JSONObject;
 import com.scalyr.api.json.JSONParser;
+import com.scalyr.api.json.JSONStreamAware;
 import com.scalyr.api.json.ParseException;
 import com.scalyr.api.json.RawJson;
 import com.scalyr.api.logs.EventFilter.FilterInput;
@@ -68,6 +77,23 @@ public class EventUploader {
    */
   private final EventAttributes serverAttributes;
   
+  /**
+   * If not null, then repeated leaf events are folded into summary events; see
+   * Events.setEventCoalescingWindow.
+   */
+  private volatile EventCoalescer coalescer;
+  
+  /**
+   * SpanSummarizer for each span tag being summarized (see Events.setSpanSummarization), or null
+   * if there are none. Replaced, never modified.
+   */
+  volatile Map<String, SpanSummarizer> spanSummarizers;
+  
+  /**
+   * Most recent result of sessionInfoJson, or null.
+   */
+  private volatile CachedSessionInfo cachedSessionInfo;
+  
   /**
    * If true, then we automatically upload events using a timer. If false, then the client must
    * manually initiate upload. Always true except during tests.
@@ -90,27 +116,42 @@ public class EventUploader {
   final ThreadLocal<PerThreadState> threadEvents = new ThreadLocal<PerThreadState>() {
     @Override protected PerThreadState initialValue() {
       Thread thread = Thread.currentThread();
-      PerThreadState temp = new PerThreadState(thread.getId(), thread.getName());
-      synchronized (threads) {
-        ScalyrUtil.Assert(!threads.containsKey(thread), "collision in threads table");
-        threads.put(thread, temp);
-      }
-      return temp;
+      return new PerThreadState(thread.getId(), thread.getName());
     }
   };
   
   /**
-   * All outstanding threads for which we have recorded at least one event.
-   * 
-   * TODO: should scavenge records for idle threads.
+   * Threads which have recorded events recently, so that publishAllStagedEvents can find their
+   * staged events. A thread is registered when it stages an event, and removed by
+   * scavengeIdleThreads once it has been idle for a while. We don't reference the Thread objects
+   * themselves, so dead threads can be collected. Synchronized on itself.
    */
-  private Map<Thread, PerThreadState> threads = new HashMap<Thread, PerThreadState>();
+  private final Set<PerThreadState> threads = new LinkedHashSet<PerThreadState>();
+  
+  /**
+   * Time when scavengeIdleThreads last ran. Accessed only by uploadTimerTick.
+   */
+  private long lastThreadScavengeMs = ScalyrUtil.currentTimeMillis();
+  
+  /**
+   * Metadata from a spill log record, and the thread table parsed from it, for the most recent
+   * spilled chunk uploaded (see threadInfosForChunk). Synchronized on uploadChunks.
+   */
+  private byte[] parsedMetadata;
+  private JSONArray parsedMetadataThreads;
   
   /**
    * Holds the serialized form of all events which have been recorded since the last call to uploadBuffer.
    * Each event is followed by a comma, so the contents of the buffer always look like this:
    * 
    *   {...},{...},{...}, ...
+   * 
+   * (If an append fails partway, its range is left unwritten and recorded in chunkSizes as a skipped chunk,
+   * which is discarded without being read; see CircularByteArray.append and closeNextChunk.)
+   * 
+   * Events are appended without locking, from any thread (see CircularByteArray), and become visible
+   * to the upload path when publishCommittedEvents is called. Data is published and discarded only
+   * while holding the lock on uploadChunks.
    */
   private final CircularByteArray pendingEventBuffer;
   
@@ -123,29 +164,29 @@ public class EventUploader {
    * 
    * This array is used to partition the buffer into upload-sized chunks.
    * 
-   * Operations that modify chunkSizes, and/or add or remove data from pendingEventBuffer,
-   * are synchronized on chunkSizes.
+   * chunkSizes is appended to by pendingEventBuffer as events are published (see
+   * publishCommittedEvents). It is accessed only while holding the lock on uploadChunks.
    */
   private final ChunkSizeList chunkSizes = new ChunkSizeList();
   
-  /**
-   * Total number of bytes written to pendingEventBuffer (and added to chunkSizes). Synchronized
-   * on chunkSizes.
-   */
-  private long totalBytesWritten = 0;
-  
   /**
    * True if we've discarded at least one event because we reached pendingEventBuffer
    * is full. Reset whenever an upload completes (thus freeing up memory). This ensures
    * that we don't "stutter" at the edge of the memory boundary, yielding a
    * confusing situation where events are dropped intermittently.
    */
-  private boolean pendingEventsReachedLimit = false;
+  private volatile boolean pendingEventsReachedLimit = false;
   
   /**
    * Incremented each time pendingEventsReachedLimit transitions from false to true.
    */
-  private volatile int pendingEventsLimitCounter = 0;
+  private final AtomicInteger pendingEventsLimitCounter = new AtomicInteger(0);
+  
+  /**
+   * Number of events discarded because pendingEventBuffer was full, including staged events which
+   * were discarded because their batch didn't fit when published.
+   */
+  private final AtomicLong overflowDiscardCount = new AtomicLong();
   
   /**
    * Used to rate-limit buffer overflow warnings.
@@ -153,32 +194,157 @@ public class EventUploader {
   private static LogLimiter memoryWarnLimiter = new LogLimiter();
   
   /**
-   * True if we have an in-flight upload request to the server.
+   * Chunks of pendingEventBuffer which have been closed for upload, but not yet uploaded
+   * successfully, in buffer order. The first entry begins at the oldest byte in pendingEventBuffer,
+   * and each subsequent entry begins where the previous one ends; the entries correspond one-to-one
+   * with the closed chunks in chunkSizes.
+   * 
+   * Up to maxConcurrentUploads chunks may be in flight at once, and they can complete in any order.
+   * However, buffer space is reclaimed strictly in order: a chunk is discarded only once it, and every
+   * chunk before it, has been uploaded successfully. A chunk whose upload fails remains in the list,
+   * and is retried before any new chunk is closed.
+   * 
+   * Chunks may also leave the head of this list by being moved to spillLog.
+   * 
+   * This list, lastUploadStartMs, and updates to minUploadIntervalMs are synchronized on uploadChunks.
+   */
+  private final List<UploadChunk> uploadChunks = new ArrayList<UploadChunk>();
+  
+  /**
+   * Maximum number of upload requests we allow to be in flight at once. If 1, uploads are issued
+   * synchronously from uploadTimerTick; otherwise they are issued on ScalyrUtil.asyncApiExecutor.
+   */
+  volatile int maxConcurrentUploads = TuningConstants.MAX_CONCURRENT_EVENT_UPLOADS;
+  
+  /**
+   * Time (in milliseconds) for which a leaf event waits for buffer space when the buffer is full,
+   * before being discarded. See Events.setBufferFullWait.
+   */
+  volatile long bufferFullWaitMs = 0;
+  
+  /**
+   * Incremented (and bufferSpaceMonitor notified, if there are waiters) whenever space is released
+   * in pendingEventBuffer. See awaitBufferSpace.
+   */
+  private final AtomicInteger bufferSpaceGeneration = new AtomicInteger();
+  private final AtomicInteger bufferSpaceWaiters = new AtomicInteger();
+  private final Object bufferSpaceMonitor = new Object();
+  
+  /**
+   * If not null, then when pendingEventBuffer fills beyond EVENT_SPILL_THRESHOLD_PERCENT, we move
+   * chunks from the head of the buffer into this log (see spillChunks). Spilled chunks are older
+   * than anything remaining in pendingEventBuffer, so they are uploaded first. Set via setSpillLog.
+   */
+  private volatile SpillLog spillLog;
+  
+  /**
+   * If true (and spillLog is not null), then we also write each chunk to spillLog as soon as it is
+   * closed for upload, and remove it once the upload succeeds. This allows events to be recovered
+   * if the process dies before they are uploaded; see replayLeftoverSegments.
+   */
+  private volatile boolean writeAhead;
+  
+  /**
+   * Serialized thread table (see buildThreadInfos) and attribute key table, most recently written
+   * to spillLog as metadata for a chunk, and the threads and number of keys it covers. Synchronized
+   * on uploadChunks.
+   */
+  private byte[] threadMetadata;
+  private Set<PerThreadState> metadataThreads;
+  private int keyMetadataCount = -1;
+  
+  /**
+   * If not null, then events are written in the compact encoding, using this dictionary (see
+   * Events.setCompactAttributeKeys).
+   */
+  final AttributeKeyDictionary attributeKeys;
+  
+  /**
+   * Peak value of pendingEventBuffer.numReservedBytes() observed (at upload timer ticks) since
+   * lastPageReleaseCheckMs, when we last considered releasing buffer pages. See
+   * releaseIdleBufferPages. Synchronized on uploadChunks.
    */
-  private boolean uploadInProgress = false;
+  private int peakBufferedBytes = 0;
+  private long lastPageReleaseCheckMs = ScalyrUtil.currentTimeMillis();
+  
+  /**
+   * Set by terminate.
+   */
+  private volatile boolean terminated = false;
+  
+  /**
+   * Number of chunks from spillLog which are currently being uploaded. Synchronized on uploadChunks.
+   */
+  private int spilledChunksInFlight = 0;
+  
+  /**
+   * True if a call to spillChunks has been queued on ScalyrUtil.asyncApiExecutor, but has not yet
+   * started.
+   */
+  private final AtomicBoolean spillScheduled = new AtomicBoolean(false);
+  
+  /**
+   * Scratch buffer used to copy chunks from pendingEventBuffer into spillLog. Allocated on first use;
+   * synchronized on uploadChunks.
+   */
+  private ByteArrayBuilder spillScratch;
   
   /**
    * Timer used to generate upload events. Allocated when the first event is recorded.
    */
   private Timer uploadTimer = null;
-  private TimerTask uploadTask = null;
   
   /**
-   * Time when we last initiated an event batch upload, or null if we have not yet
-   * started one.
+   * The next scheduled invocation of uploadTimerTick (see UploadTick), and the time for which it
+   * is scheduled. Null if none is scheduled. Synchronized on tickLock.
    */
-  private Long lastUploadStartMs = ScalyrUtil.currentTimeMillis();
+  private TimerTask scheduledTick = null;
+  private long scheduledTickMs;
+  
+  /**
+   * Guards scheduledTick. This is a separate lock, rather than this uploader, because ticks are
+   * requested from the event recording path, where we may hold the lock on a PerThreadState.
+   */
+  private final Object tickLock = new Object();
+  
+  /**
+   * True if requestTick has been called since the last UploadTick began.
+   */
+  private final AtomicBoolean tickRequested = new AtomicBoolean(false);
+  
+  /**
+   * Earliest time at which our upload spacing rules (minUploadIntervalMs) allow another upload, as
+   * of the most recent tick. Used by requestTick, which can't take the lock on uploadChunks.
+   */
+  private volatile long earliestUploadMs = 0;
+  
+  /**
+   * Logical position in pendingEventBuffer just past the last chunk closed for upload. Written
+   * while holding the lock on uploadChunks.
+   */
+  private volatile long closedPosition = 0;
   
   /**
-   * Object used to synchronize access to pendingEventBuffer, pendingEventsReachedLimit,
-   * and uploadInProgress.
+   * Exponentially weighted moving averages of the rate at which data is published to
+   * pendingEventBuffer (bytes per millisecond), and of the latency of upload requests
+   * (milliseconds; zero until the first upload completes). Used to schedule upload ticks; see
+   * nextTickDelayMs. Synchronized on uploadChunks, along with the previous fill rate sample.
    */
-  private final Object uploadSynchronizer = new Object(); 
+  private double fillRateEwma = 0;
+  private double uploadLatencyEwma = 0;
+  private long lastFillSampleMs = ScalyrUtil.currentTimeMillis();
+  private long lastFillSampleBytes = 0;
+  
+  /**
+   * Time when we last initiated an event batch upload, or null if we have not yet
+   * started one.
+   */
+  private Long lastUploadStartMs = ScalyrUtil.currentTimeMillis();
   
   /**
    * Service we upload to.
    */
-  private final LogService logService;
+  final LogService logService;
   
   /**
    * Limit If not null, then we limit memory usage (for buffering events to be uploaded)
@@ -195,24 +361,34 @@ public class EventUploader {
   
   /**
    * Construct an EventUploader to buffer events and upload them to the given LogService instance.
+   * 
+   * @param offHeap If true, then we allocate our event buffer outside the Java heap (see
+   *     Events.setOffHeapEventBuffer).
+   * @param compactKeys If true, then we write events in the compact encoding (see
+   *     Events.setCompactAttributeKeys).
    */
   EventUploader(LogService logService, int memoryLimit, String sessionId, boolean autoUpload,
-      EventAttributes serverAttributes) {
+      EventAttributes serverAttributes, boolean offHeap, boolean compactKeys) {
     this.logService = logService;
     this.autoUpload = autoUpload;
     
     this.memoryLimit = memoryLimit;
-    pendingEventBuffer = new CircularByteArray(memoryLimit);
+    pendingEventBuffer = new CircularByteArray(memoryLimit, offHeap);
     
     this.sessionId = sessionId;
     this.serverAttributes = serverAttributes;
+    this.attributeKeys = compactKeys ? new AttributeKeyDictionary() : null;
     
     launchUploadTimer();
   }
   
   synchronized void terminate() {
-    if (uploadTask != null)
-      uploadTask.cancel();
+    terminated = true;
+    
+    synchronized (tickLock) {
+      if (scheduledTick != null)
+        scheduledTick.cancel();
+    }
     
     if (uploadTimer != null)
       uploadTimer.cancel();
@@ -225,21 +401,20 @@ public class EventUploader {
    * when we are called, some events may not be uploaded. This method is only used in tests.)
    */
   synchronized void flush() {
-    long bytesWrittenPriorToFlush;
-    synchronized (chunkSizes) {
-      bytesWrittenPriorToFlush = totalBytesWritten;
-    }
+    emitCoalescedEvents(coalescer, true);
+    publishAllStagedEvents();
+    long bytesWrittenPriorToFlush = pendingEventBuffer.totalBytesReserved();
     
     // Upload a chunk at a time until all data prior to our invocation is gone. Sleep briefly
     // between invocations, in part to avoid frantic spinning if an upload is already in progress
     // (in which case uploadTimerTick returns immediately).
     long sleepMs = 100;
     while (true) {
-      synchronized (chunkSizes) {
-        long bytesWrittenSinceFlush = totalBytesWritten - bytesWrittenPriorToFlush;
-        if (pendingEventBuffer.numBufferedBytes() <= bytesWrittenSinceFlush) {
-          break;
-        }
+      long bytesWrittenSinceFlush = pendingEventBuffer.totalBytesReserved() - bytesWrittenPriorToFlush;
+      SpillLog localSpillLog = spillLog;
+      if (pendingEventBuffer.numReservedBytes() <= bytesWrittenSinceFlush
+          && (localSpillLog == null || !localSpillLog.hasSpilledRecords())) {
+        break;
       }
       
       uploadTimerTick(true);
@@ -257,47 +432,96 @@ public class EventUploader {
    * This method is called periodically by a timer. If it's been long enough since we last
    * sent a batch of events to the server, we snapshot the events currently buffered (or
    * a portion thereof, if there are too many to upload all at once) and initiate an upload.
+   * If concurrent uploads are enabled, we may initiate several uploads, each covering a
+   * separate chunk of the buffer.
    */
-  synchronized void uploadTimerTick(boolean bypassWaitTimers) {
-    final int bufferedBytes;
-    RawJson eventsToUpload;
+  void uploadTimerTick(boolean bypassWaitTimers) {
+    emitCoalescedEvents(coalescer, false);
+    publishAllStagedEvents();
+    spillChunks();
+    releaseIdleBufferPages();
     
-    synchronized (uploadSynchronizer) {
-      bufferedBytes = timeToUpload(bypassWaitTimers);
-      if (bufferedBytes < 0)
-        return;
-      
-      eventsToUpload = new RawJson(){
-        @Override public void writeJSONBytes(OutputStream out) throws IOException {
-          out.write('[');
-          
-          // We subtract 1 here to eliminate the trailing comma after the last buffered event.
-          pendingEventBuffer.writeOldestBytes(out, bufferedBytes - 1);
-          
-          out.write(']');
-        }};
-      
-      uploadInProgress = true;
-      pendingEventsReachedLimit = false;
+    long nowMs = ScalyrUtil.currentTimeMillis();
+    if (nowMs - lastThreadScavengeMs >= TuningConstants.THREAD_SCAVENGE_INTERVAL_MS) {
+      scavengeIdleThreads();
+      lastThreadScavengeMs = nowMs;
     }
     
-    List<PerThreadState> threadsSnapshot;
-    synchronized (threads) {
-      threadsSnapshot = new ArrayList<PerThreadState>(threads.values());
+    List<UploadChunk> chunksToUpload = chunksToUpload(bypassWaitTimers);
+    
+    SpillLog localSpillLog = spillLog;
+    if (localSpillLog != null)
+      localSpillLog.sync();
+    
+    if (chunksToUpload.isEmpty())
+      return;
+    
+    final JSONStreamAware sessionInfo = sessionInfoJson();
+    
+    if (maxConcurrentUploads <= 1) {
+      for (UploadChunk chunk : chunksToUpload)
+        uploadChunk(chunk, sessionInfo);
+    } else {
+      for (final UploadChunk chunk : chunksToUpload) {
+        ScalyrUtil.asyncApiExecutor.execute(new Runnable(){
+          @Override public void run() {
+            try {
+              uploadChunk(chunk, sessionInfo);
+            } catch (Throwable ex) {
+              Logging.log(Severity.warning, Logging.tagInternalError, "Exception in Logs upload", ex);
+            }
+          }});
+      }
     }
+  }
+  
+  /**
+   * Fold repeated leaf events recorded within windowMs of one another into a single summary event,
+   * or stop doing so if windowMs is 0. Windows left open in the previous coalescer are summarized
+   * immediately.
+   */
+  void setCoalescingWindow(int windowMs) {
+    EventCoalescer previous = coalescer;
+    coalescer = (windowMs > 0) ? new EventCoalescer(windowMs) : null;
+    emitCoalescedEvents(previous, true);
+  }
+  
+  /**
+   * Record a summary event for each of the given coalescer's windows which has closed (or for
+   * every window, if closeAll is true). Each event is recorded under the thread which recorded the
+   * events it summarizes, not the calling thread.
+   */
+  private void emitCoalescedEvents(EventCoalescer localCoalescer, boolean closeAll) {
+    if (localCoalescer == null)
+      return;
     
-    // Sort the threads alphabetically by name -- this ensures a stable order when
-    // uploading, which is helpful for tests.
-    Collections.sort(threadsSnapshot, new Comparator<PerThreadState>(){
-      @Override public int compare(PerThreadState a, PerThreadState b) {
-        if (a.name == null || b.name == null) {
-          if (a.name == null && b.name == null)
-            return 0;
-          return (a.name == null) ? -1 : 1;
-        }
-        return a.name.compareTo(b.name);
-      }});
+    for (EventCoalescer.Entry window : localCoalescer.sweep(ScalyrUtil.nanoTime(), closeAll))
+      ((PerThreadState) window.getSource()).coalescedEvent(window.getSeverity(), window.getSummaryAttributes());
+  }
+  
+  /**
+   * Return the sessionInfo parameter for uploadEvents, in serialized form. This is rebuilt only
+   * when serverAttributes or the attribute key table have changed since the previous call.
+   */
+  private JSONStreamAware sessionInfoJson() {
+    int attributesModCount = (serverAttributes != null) ? serverAttributes.modCount : 0;
+    int keyCount = (attributeKeys != null) ? attributeKeys.size() : 0;
+    
+    // Concurrent callers may both rebuild the cache; this is harmless.
+    CachedSessionInfo cached = cachedSessionInfo;
+    if (cached == null || cached.attributesModCount != attributesModCount || cached.keyCount != keyCount) {
+      cached = new CachedSessionInfo(new SerializedJson(utf8Bytes(buildSessionInfo().toJSONString())),
+          attributesModCount, keyCount);
+      cachedSessionInfo = cached;
+    }
     
+    return cached.json;
+  }
+  
+  /**
+   * Return the sessionInfo parameter for uploadEvents.
+   */
+  private JSONObject buildSessionInfo() {
     JSONObject sessionInfo = new JSONObject();
     sessionInfo.put("session", sessionId);
     sessionInfo.put("launchTime", launchTimeNs);
@@ -312,44 +536,116 @@ public class EventUploader {
       for (Map.Entry<String, Object> entry : serverAttributes.values.entrySet())
         sessionInfo.put(entry.getKey(), entry.getValue());
     
+    // The key table only grows, so a table built now covers every event already serialized.
+    if (attributeKeys != null)
+      sessionInfo.put("attributeKeys", attributeKeys.toJSON());
+    
+    return sessionInfo;
+  }
+  
+  /**
+   * Return the threadInfos parameter for uploadEvents, covering the given threads, in serialized
+   * form. Returns null if the list is empty.
+   */
+  private static JSONStreamAware threadInfosJson(final List<PerThreadState> threadList) {
+    if (threadList.isEmpty())
+      return null;
+    
+    return new RawJson(){
+      @Override public void writeJSONBytes(OutputStream out) throws IOException {
+        out.write('[');
+        for (int i = 0; i < threadList.size(); i++) {
+          if (i > 0)
+            out.write(',');
+          out.write(threadList.get(i).threadInfoJson);
+        }
+        out.write(']');
+      }};
+  }
+  
+  /**
+   * Return the threadInfos parameter for uploadEvents, covering the given threads.
+   */
+  private static JSONArray buildThreadInfos(List<PerThreadState> threadList) {
     JSONArray threadInfos = new JSONArray();
+    for (PerThreadState thread : threadList)
+      threadInfos.add(thread.threadInfo);
+    
+    return threadInfos;
+  }
+  
+  /**
+   * Return the threadInfos parameter for uploading the given chunk, covering the threads which
+   * recorded events in the chunk. For a spilled chunk, this is the thread table stored with it.
+   */
+  private JSONStreamAware threadInfosForChunk(UploadChunk chunk) {
+    if (chunk.spillRecord == null)
+      return threadInfosJson(chunk.threads);
+    
+    byte[] metadata = chunk.spillRecord.metadata;
+    if (metadata == null)
+      return null;
     
-    // TODO: only include threads for which we are uploading at least one event.
-    for (PerThreadState thread : threadsSnapshot) {
-      JSONObject threadInfo = new JSONObject();
-      threadInfo.put("id", Long.toString(thread.threadId));
-      threadInfo.put("name", thread.name);
-      threadInfos.add(threadInfo);
+    synchronized (uploadChunks) {
+      if (metadata != parsedMetadata) {
+        try {
+          JSONObject parsed = (JSONObject) new JSONParser().parse(new String(metadata, "UTF-8"));
+          parsedMetadataThreads = (JSONArray) parsed.get("threads");
+        } catch (Exception ex) {
+          // Can't occur, as we wrote the metadata ourselves.
+          throw new RuntimeException(ex);
+        }
+        parsedMetadata = metadata;
+      }
+      return parsedMetadataThreads;
     }
+  }
+  
+  /**
+   * Upload the given chunk of pendingEventBuffer, and record the outcome. The chunk must already
+   * have been marked as in flight.
+   */
+  private void uploadChunk(final UploadChunk chunk, JSONStreamAware sessionInfo) {
+    JSONStreamAware threadInfos = threadInfosForChunk(chunk);
     
+    RawJson eventsToUpload = new RawJson(){
+      @Override public void writeJSONBytes(OutputStream out) throws IOException {
+        out.write('[');
+        
+        // We subtract 1 here to eliminate the trailing comma after the last buffered event.
+        if (chunk.spillRecord != null)
+          chunk.spillLog.writeRecord(out, chunk.spillRecord, chunk.size - 1);
+        else
+          pendingEventBuffer.writeBytes(out, chunk.position, chunk.size - 1);
+        
+        out.write(']');
+      }};
+    
+    boolean success = false;
     try {
-      lastUploadStartMs = ScalyrUtil.currentTimeMillis();
+      long startMs = ScalyrUtil.currentTimeMillis();
       String rawResponse = logService.uploadEvents(sessionId, sessionInfo, eventsToUpload, threadInfos);
+      long latencyMs = ScalyrUtil.currentTimeMillis() - startMs;
       try {
         JSONObject parsedResponse = (JSONObject) new JSONParser().parse(rawResponse);
         
         // Adjust our upload interval based on the success or failure of this upload request.
         Object rawStatus = parsedResponse.get("status");
         String status = (rawStatus instanceof String) ? (String)rawStatus : "error/server";
-        if (status.startsWith("success")) {
-          minUploadIntervalMs *= TuningConstants.UPLOAD_SPACING_FACTOR_ON_SUCCESS;
-          minUploadIntervalMs = Math.max(minUploadIntervalMs, TuningConstants.MIN_EVENT_UPLOAD_SPACING_MS);
+        synchronized (uploadChunks) {
+          uploadLatencyEwma = (uploadLatencyEwma == 0) ? latencyMs
+              : ewma(uploadLatencyEwma, latencyMs);
           
-          synchronized (uploadSynchronizer) {
-            synchronized (chunkSizes) {
-              ScalyrUtil.Assert(chunkSizes.getFirst() == bufferedBytes,
-                  "event buffer chunk was resized while being uploaded");
-              chunkSizes.removeFirst();
-            }
-            
-            pendingEventBuffer.discardOldestBytes(bufferedBytes);
-            pendingEventsReachedLimit = false;
+          if (status.startsWith("success")) {
+            minUploadIntervalMs *= TuningConstants.UPLOAD_SPACING_FACTOR_ON_SUCCESS;
+            minUploadIntervalMs = Math.max(minUploadIntervalMs, TuningConstants.MIN_EVENT_UPLOAD_SPACING_MS);
+            success = true;
+          } else {
+            // Note that we back off for all errors, not just error/server/backoff. Other errors are liable to
+            // be systemic, and there's little reason to retry an upload frequently in the face of systemic errors.
+            minUploadIntervalMs *= TuningConstants.UPLOAD_SPACING_FACTOR_ON_BACKOFF;
+            minUploadIntervalMs = Math.min(minUploadIntervalMs, TuningConstants.MAX_EVENT_UPLOAD_SPACING_MS);
           }
-        } else {
-          // Note that we back off for all errors, not just error/server/backoff. Other errors are liable to
-          // be systemic, and there's little reason to retry an upload frequently in the face of systemic errors.
-          minUploadIntervalMs *= TuningConstants.UPLOAD_SPACING_FACTOR_ON_BACKOFF;
-          minUploadIntervalMs = Math.min(minUploadIntervalMs, TuningConstants.MAX_EVENT_UPLOAD_SPACING_MS);
         }
       } catch (ParseException ex) {
         // This shouldn't occur, as the underlying service framework verifies that the server's
@@ -357,55 +653,753 @@ public class EventUploader {
         throw new RuntimeException(ex);
       }
     } finally {
-      synchronized (uploadSynchronizer) {
-        uploadInProgress = false;
+      uploadCompleted(chunk, success);
+    }
+  }
+  
+  /**
+   * Record the outcome of an upload request. If the chunk was uploaded successfully, discard it
+   * from pendingEventBuffer -- together with any following chunks which had already completed --
+   * provided that all earlier chunks have also been uploaded. Otherwise, the chunk will be retried
+   * by a later call to uploadTimerTick.
+   */
+  private void uploadCompleted(UploadChunk chunk, boolean success) {
+    synchronized (uploadChunks) {
+      chunk.inFlight = false;
+      
+      if (chunk.spillRecord != null) {
+        spilledChunksInFlight--;
+        
+        // If the spill log was replaced while this chunk was in flight, a failed chunk moves to the
+        // new log, as the others did in setSpillLog.
+        SpillLog localSpillLog = spillLog;
+        boolean remove = success || (localSpillLog != null && localSpillLog != chunk.spillLog
+            && copyRecord(chunk.spillLog, chunk.spillRecord, localSpillLog));
+        chunk.spillLog.checkIn(chunk.spillRecord, remove);
+        return;
+      }
+      
+      if (!success)
+        return;
+      
+      chunk.uploaded = true;
+      if (chunk.walRecord != null) {
+        chunk.spillLog.remove(chunk.walRecord);
+        chunk.walRecord = null;
       }
+      
+      // When uploads are pipelined, a full chunk may have been waiting for this request to
+      // finish; don't leave it until the next scheduled tick.
+      if (maxConcurrentUploads > 1 && unclosedBytes() >= _eventUploadByteThreshold)
+        requestTick();
+      
+      discardUploadedChunks();
+    }
+  }
+  
+  /**
+   * Discard chunks from the head of uploadChunks (and pendingEventBuffer) for as long as they are
+   * marked uploaded. Caller must hold the lock on uploadChunks.
+   */
+  private void discardUploadedChunks() {
+    while (!uploadChunks.isEmpty() && uploadChunks.get(0).uploaded) {
+      UploadChunk first = uploadChunks.remove(0);
+      
+      ScalyrUtil.Assert(chunkSizes.getFirst() == first.size,
+          "event buffer chunk was resized while being uploaded");
+      chunkSizes.removeFirst();
+      
+      pendingEventBuffer.discardOldestBytes(first.size);
+      bufferSpaceReleased();
+    }
+  }
+  
+  /**
+   * Called after discarding bytes from pendingEventBuffer. Clears pendingEventsReachedLimit, and
+   * wakes any threads waiting in awaitBufferSpace.
+   */
+  private void bufferSpaceReleased() {
+    pendingEventsReachedLimit = false;
+    
+    bufferSpaceGeneration.incrementAndGet();
+    if (bufferSpaceWaiters.get() > 0) {
+      synchronized (bufferSpaceMonitor) {
+        bufferSpaceMonitor.notifyAll();
+      }
+    }
+  }
+  
+  /**
+   * Wait until space has been released in pendingEventBuffer since bufferSpaceGeneration had the
+   * given value, or until maxWaitMs has passed. Return true if space was released. We also request
+   * an upload tick, so that the wait is not prolonged by the upload schedule.
+   */
+  private boolean awaitBufferSpace(int generation, long maxWaitMs) {
+    requestTick();
+    
+    long deadlineMs = ScalyrUtil.currentTimeMillis() + maxWaitMs;
+    
+    // We register as a waiter before checking the generation, and bufferSpaceReleased updates the
+    // generation before checking for waiters, so a release can't slip between the two unnoticed.
+    bufferSpaceWaiters.incrementAndGet();
+    try {
+      synchronized (bufferSpaceMonitor) {
+        while (bufferSpaceGeneration.get() == generation) {
+          long remainingMs = deadlineMs - ScalyrUtil.currentTimeMillis();
+          if (remainingMs <= 0)
+            return false;
+          
+          bufferSpaceMonitor.wait(remainingMs);
+        }
+      }
+      return true;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      bufferSpaceWaiters.decrementAndGet();
+    }
+  }
+  
+  /**
+   * If a spill log is configured and pendingEventBuffer is more than EVENT_SPILL_THRESHOLD_PERCENT
+   * full, move chunks from the head of the buffer into the spill log until it's back under the
+   * threshold. We stop at the first chunk which is being uploaded, as buffer space must be reclaimed
+   * in order, or when the spill log reaches its quota.
+   */
+  private void spillChunks() {
+    SpillLog localSpillLog = spillLog;
+    if (localSpillLog == null)
+      return;
+    
+    long threshold = (long) memoryLimit * TuningConstants.EVENT_SPILL_THRESHOLD_PERCENT / 100;
+    
+    synchronized (uploadChunks) {
+      // The log may have been replaced meanwhile; see setSpillLog.
+      if (spillLog != localSpillLog)
+        return;
+      
+      publishCommittedEvents();
+      while (pendingEventBuffer.numBufferedBytes() > threshold) {
+        UploadChunk chunk;
+        if (!uploadChunks.isEmpty()) {
+          chunk = uploadChunks.get(0);
+          if (chunk.inFlight)
+            break;
+        } else {
+          chunk = closeNextChunk(pendingEventBuffer.oldestPosition());
+          if (chunk == null)
+            break;
+        }
+        
+        // If the chunk is already in the log (see writeAhead), we need only hand it over. A skipped
+        // chunk (see closeNextChunk) is simply discarded.
+        if (!chunk.uploaded) {
+          if (chunk.walRecord != null && chunk.spillLog == localSpillLog)
+            localSpillLog.spill(chunk.walRecord);
+          else if (appendToLog(localSpillLog, chunk, false) == null)
+            break;
+        }
+        
+        uploadChunks.remove(0);
+        
+        ScalyrUtil.Assert(chunkSizes.getFirst() == chunk.size, "event buffer chunk was resized while being spilled");
+        chunkSizes.removeFirst();
+        
+        pendingEventBuffer.discardOldestBytes(chunk.size);
+        bufferSpaceReleased();
+      }
+      
+      if (spillScratch != null)
+        spillScratch.reset(0, TuningConstants.EVENT_STAGING_BUFFER_BYTES);
+    }
+    
+    localSpillLog.syncAppends();
+  }
+  
+  /**
+   * pendingEventBuffer allocates memory as it fills. If, for the last
+   * EVENT_BUFFER_PAGE_RELEASE_INTERVAL_MS, it has used much less memory than it holds, release the
+   * excess so that a burst of events doesn't tie up memory indefinitely.
+   */
+  private void releaseIdleBufferPages() {
+    synchronized (uploadChunks) {
+      peakBufferedBytes = Math.max(peakBufferedBytes, pendingEventBuffer.numReservedBytes());
+      
+      long nowMs = ScalyrUtil.currentTimeMillis();
+      if (nowMs - lastPageReleaseCheckMs < TuningConstants.EVENT_BUFFER_PAGE_RELEASE_INTERVAL_MS)
+        return;
+      
+      if (pendingEventBuffer.allocatedBytes() > peakBufferedBytes + 2L * TuningConstants.EVENT_BUFFER_PAGE_BYTES)
+        pendingEventBuffer.releaseIdlePages();
+      
+      peakBufferedBytes = pendingEventBuffer.numReservedBytes();
+      lastPageReleaseCheckMs = nowMs;
+    }
+  }
+  
+  /**
+   * Copy the given chunk of pendingEventBuffer into a spill log, and return the new record (null if
+   * the log is full). Caller must hold the lock on uploadChunks.
+   */
+  private SpillLog.Record appendToLog(SpillLog log, UploadChunk chunk, boolean resident) {
+    if (spillScratch == null)
+      spillScratch = new ByteArrayBuilder(chunk.size);
+    
+    spillScratch.reset();
+    try {
+      pendingEventBuffer.writeBytes(spillScratch, chunk.position, chunk.size);
+    } catch (IOException ex) {
+      // Can't occur, as we are writing to an in-memory buffer.
+      throw new RuntimeException(ex);
+    }
+    
+    // Store the thread table (and key table, if any) along with the chunk, so that the chunk can
+    // be uploaded in full once it has left pendingEventBuffer, and by replayLeftoverSegments. The
+    // previous table is reused if it covers all of this chunk's threads and keys.
+    int keyCount = (attributeKeys != null) ? attributeKeys.size() : 0;
+    if (metadataThreads == null || !metadataThreads.containsAll(chunk.threads) || keyCount != keyMetadataCount) {
+      JSONObject metadata = new JSONObject();
+      metadata.put("threads", buildThreadInfos(chunk.threads));
+      if (attributeKeys != null)
+        metadata.put("attributeKeys", attributeKeys.toJSON());
+      
+      threadMetadata = utf8Bytes(metadata.toString());
+      metadataThreads = new HashSet<PerThreadState>(chunk.threads);
+      keyMetadataCount = keyCount;
+    }
+    
+    return log.append(spillScratch.getBuffer(), 0, chunk.size, threadMetadata, resident);
+  }
+  
+  /**
+   * Copy a spilled record from one log to another, as a spilled record. Return false if the
+   * destination log is full. Caller must hold the lock on uploadChunks, and must ensure that the
+   * record isn't removed meanwhile.
+   */
+  private boolean copyRecord(SpillLog from, SpillLog.Record record, SpillLog to) {
+    if (spillScratch == null)
+      spillScratch = new ByteArrayBuilder(record.length);
+    
+    spillScratch.reset();
+    try {
+      from.writeRecord(spillScratch, record, record.length);
+    } catch (IOException ex) {
+      // Can't occur, as we are writing to an in-memory buffer.
+      throw new RuntimeException(ex);
+    }
+    
+    return to.append(spillScratch.getBuffer(), 0, record.length, record.metadata, false) != null;
+  }
+  
+  private static byte[] utf8Bytes(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+  
+  /**
+   * Specify the spill log to use, or null for none. If writeAhead is true, every chunk is written to
+   * the log before it is uploaded (see the writeAhead field). Any segments which the log found left
+   * over from a previous process are uploaded in the background, under their original session ID.
+   * <p>
+   * If we were using a different log, its contents are handed over to the new one (see
+   * handOverSpillLog), and it's closed.
+   */
+  void setSpillLog(SpillLog log, boolean writeAhead) {
+    if (log != null) {
+      JSONObject header = new JSONObject();
+      header.put("session", sessionId);
+      header.put("sessionInfo", buildSessionInfo());
+      log.setSegmentHeader(utf8Bytes(header.toString()));
+    }
+    
+    SpillLog previous;
+    synchronized (uploadChunks) {
+      previous = spillLog;
+      this.spillLog = log;
+      this.writeAhead = writeAhead;
+      
+      if (previous == log)
+        previous = null;
+      else if (previous != null)
+        handOverSpillLog(previous, log);
+    }
+    
+    if (previous != null)
+      previous.close();
+    
+    if (log != null) {
+      log.syncAppends();
+      
+      // If the new log shares a directory with the previous one, the previous log's remaining files
+      // (e.g. holding chunks which are being uploaded) are still its own; don't replay them.
+      List<File> leftovers = log.takeLeftoverSegments();
+      if (previous != null) {
+        List<File> previousFiles = previous.getSegmentFiles();
+        for (Iterator<File> iterator = leftovers.iterator(); iterator.hasNext(); )
+          if (previousFiles.contains(iterator.next().getAbsoluteFile()))
+            iterator.remove();
+      }
+      
+      if (!leftovers.isEmpty())
+        replayLeftoverSegments(leftovers);
+    }
+  }
+  
+  /**
+   * Move the contents of a spill log we are ceasing to use into its replacement (which may be null).
+   * Write-ahead records for chunks still in pendingEventBuffer are rewritten to the new log if it is
+   * also used for write-ahead, and otherwise dropped. Spilled records are copied to the new log, as
+   * far as its quota allows; any left over remain in the previous log's directory, for the next
+   * process to use it. Records which are being uploaded are moved if their upload fails (see
+   * uploadCompleted). Caller must hold the lock on uploadChunks.
+   */
+  private void handOverSpillLog(SpillLog previous, SpillLog log) {
+    for (UploadChunk chunk : uploadChunks) {
+      if (chunk.walRecord == null || chunk.spillLog != previous)
+        continue;
+      
+      SpillLog.Record walRecord = chunk.walRecord;
+      chunk.walRecord = null;
+      chunk.spillLog = null;
+      if (log != null && writeAhead) {
+        chunk.walRecord = appendToLog(log, chunk, true);
+        if (chunk.walRecord != null)
+          chunk.spillLog = log;
+      }
+      previous.remove(walRecord);
+    }
+    
+    long strandedBytes = 0;
+    for (SpillLog.Record record : previous.getAvailableSpilledRecords()) {
+      if (log != null && copyRecord(previous, record, log))
+        previous.remove(record);
+      else
+        strandedBytes += record.length;
+    }
+    
+    if (spillScratch != null)
+      spillScratch.reset(0, TuningConstants.EVENT_STAGING_BUFFER_BYTES);
+    
+    if (strandedBytes > 0)
+      Logging.log(Severity.warning, Logging.tagSpillFileError,
+          "Replacing the event spill directory; " + strandedBytes + " bytes of spilled events could not be"
+          + " moved, and will be uploaded by the next process to use the previous directory");
+  }
+  
+  /**
+   * Upload the chunks in the given segment files (written by a previous process), oldest first, and
+   * then delete the files. This runs on a background thread, and retries each chunk until it is
+   * uploaded successfully (or this uploader is terminated), backing off as for regular uploads.
+   * Each chunk is marked as removed in its file once uploaded, so that it won't be uploaded again
+   * if we are interrupted.
+   */
+  private void replayLeftoverSegments(final List<File> files) {
+    ScalyrUtil.asyncApiExecutor.execute(new Runnable(){
+      @Override public void run() {
+        try {
+          for (File file : files) {
+            if (!replaySegment(file))
+              return;
+            
+            if (!file.delete())
+              Logging.log(Severity.warning, Logging.tagSpillFileError,
+                  "Unable to delete spill file [" + file.getAbsolutePath() + "]");
+          }
+        } catch (Throwable ex) {
+          Logging.log(Severity.warning, Logging.tagInternalError, "Exception while uploading recovered events", ex);
+        }
+      }});
+  }
+  
+  /**
+   * Upload the chunks in one leftover segment file. Return false if we were terminated before
+   * finishing.
+   */
+  private boolean replaySegment(File file) throws InterruptedException {
+    SpillLog.LeftoverSegment segment = null;
+    try {
+      String originalSessionId;
+      JSONObject originalSessionInfo;
+      try {
+        segment = new SpillLog.LeftoverSegment(file);
+        JSONObject header = (JSONObject) new JSONParser().parse(new String(segment.header, "UTF-8"));
+        originalSessionId = (String) header.get("session");
+        originalSessionInfo = (JSONObject) header.get("sessionInfo");
+      } catch (Exception ex) {
+        // Leave the file in place, in case it's of use to a human.
+        Logging.log(Severity.warning, Logging.tagSpillFileError,
+            "Unable to read spill file [" + file.getAbsolutePath() + "]; its events will not be uploaded", ex);
+        return true;
+      }
+      
+      return replaySegment(segment, originalSessionId, originalSessionInfo);
+    } finally {
+      // Unmap the file before it's deleted.
+      if (segment != null)
+        segment.close();
+    }
+  }
+  
+  /**
+   * Upload the chunks in a leftover segment, under the given session. Return false if we were
+   * terminated before finishing.
+   */
+  private boolean replaySegment(SpillLog.LeftoverSegment segment, String originalSessionId,
+      JSONObject originalSessionInfo) throws InterruptedException {
+    double intervalMs = TuningConstants.MIN_EVENT_UPLOAD_SPACING_MS;
+    for (final SpillLog.LeftoverChunk chunk : segment.chunks) {
+      JSONArray threadInfos = null;
+      JSONObject sessionInfo = originalSessionInfo;
+      if (chunk.metadata != null) {
+        JSONObject metadata = null;
+        try {
+          metadata = (JSONObject) new JSONParser().parse(new String(chunk.metadata, "UTF-8"));
+        } catch (Exception ex) {
+          // Thread names are optional, so upload the events without them.
+        }
+        
+        if (metadata != null) {
+          threadInfos = (JSONArray) metadata.get("threads");
+          
+          // Compact events can't be decoded without the key table as of when they were written.
+          if (metadata.containsKey("attributeKeys")) {
+            sessionInfo = new JSONObject();
+            sessionInfo.putAll(originalSessionInfo);
+            sessionInfo.put("attributeKeys", metadata.get("attributeKeys"));
+          }
+        }
+      }
+      
+      RawJson events = new RawJson(){
+        @Override public void writeJSONBytes(OutputStream out) throws IOException {
+          // As in uploadChunk, we omit the trailing comma.
+          out.write('[');
+          chunk.writeData(out, chunk.length - 1);
+          out.write(']');
+        }};
+      
+      while (true) {
+        if (terminated)
+          return false;
+        
+        boolean success = false;
+        try {
+          String rawResponse = logService.uploadEvents(originalSessionId, sessionInfo, events, threadInfos);
+          Object status = ((JSONObject) new JSONParser().parse(rawResponse)).get("status");
+          success = (status instanceof String) && ((String) status).startsWith("success");
+        } catch (ScalyrException ex) {
+          // Retry below.
+        } catch (ParseException ex) {
+          // Retry below.
+        }
+        
+        if (success) {
+          chunk.markRemoved();
+          intervalMs = Math.max(intervalMs * TuningConstants.UPLOAD_SPACING_FACTOR_ON_SUCCESS,
+              TuningConstants.MIN_EVENT_UPLOAD_SPACING_MS);
+          break;
+        }
+        
+        intervalMs = Math.min(intervalMs * TuningConstants.UPLOAD_SPACING_FACTOR_ON_BACKOFF,
+            TuningConstants.MAX_EVENT_UPLOAD_SPACING_MS);
+        Thread.sleep((long) intervalMs);
+      }
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Move any events staged in per-thread buffers into pendingEventBuffer, so that they can be
+   * included in the next upload.
+   */
+  private void publishAllStagedEvents() {
+    List<PerThreadState> threadsSnapshot;
+    synchronized (threads) {
+      threadsSnapshot = new ArrayList<PerThreadState>(threads);
+    }
+    
+    for (PerThreadState thread : threadsSnapshot)
+      thread.publishStagedEvents();
+  }
+  
+  /**
+   * Remove threads from the threads table if they have recorded no events since the previous call.
+   */
+  private void scavengeIdleThreads() {
+    List<PerThreadState> threadsSnapshot;
+    synchronized (threads) {
+      threadsSnapshot = new ArrayList<PerThreadState>(threads);
+    }
+    
+    for (PerThreadState thread : threadsSnapshot)
+      thread.scavengeIfIdle();
+  }
+  
+  /**
+   * Decide which chunks of pendingEventBuffer to upload now, mark them as in flight, and return
+   * them (oldest first). Returns an empty list if it isn't time to initiate an upload.
+   * 
+   * Chunks whose earlier upload failed are retried first. Beyond that, if it's time to upload, we
+   * close the next chunk of the buffer and upload it. We close further chunks in the same call
+   * only if they have reached the upload threshold and the server hasn't asked us to back off, so
+   * that pipelining raises throughput under load without increasing the request rate otherwise.
+   */
+  private List<UploadChunk> chunksToUpload(boolean bypassWaitTimers) {
+    List<UploadChunk> result = new ArrayList<UploadChunk>();
+    
+    synchronized (uploadChunks) {
+      publishCommittedEvents();
+      
+      int inFlightCount = spilledChunksInFlight;
+      for (UploadChunk chunk : uploadChunks)
+        if (chunk.inFlight)
+          inFlightCount++;
+      
+      // If we have as many upload requests in flight as we allow, don't initiate another one now.
+      int maxNewUploads = maxConcurrentUploads - inFlightCount;
+      if (maxNewUploads <= 0)
+        return result;
+      
+      long nowMs = ScalyrUtil.currentTimeMillis();
+      
+      // Enforce a minimum start-to-start spacing between uploads, to avoid overloading the server.
+      if (!bypassWaitTimers && lastUploadStartMs != null) {
+        long msSinceLastUpload = nowMs - lastUploadStartMs;
+        if (msSinceLastUpload < minUploadIntervalMs)
+          return result;
+      }
+      
+      boolean backingOff = (minUploadIntervalMs > TuningConstants.MIN_EVENT_UPLOAD_SPACING_MS);
+      
+      // Chunks in the spill log are older than anything in pendingEventBuffer, so they go first. As
+      // with new chunks below, we only issue several uploads at once if we aren't backing off.
+      SpillLog localSpillLog = spillLog;
+      if (localSpillLog != null) {
+        while (result.size() < maxNewUploads && (result.isEmpty() || bypassWaitTimers || !backingOff)) {
+          SpillLog.Record record = localSpillLog.checkOut();
+          if (record == null)
+            break;
+          
+          result.add(new UploadChunk(localSpillLog, record));
+        }
+      }
+      
+      // Don't move on to pendingEventBuffer until the spill log has drained, so that events are
+      // uploaded in roughly the order they were recorded. (This also leaves the head of the buffer
+      // free to be spilled in turn.)
+      if (localSpillLog != null && localSpillLog.hasSpilledRecords()) {
+        markInFlight(result, nowMs);
+        return result;
+      }
+      
+      // Retry any chunks whose previous upload failed, oldest first.
+      for (UploadChunk chunk : uploadChunks) {
+        if (result.size() >= maxNewUploads)
+          break;
+        if (!chunk.inFlight && !chunk.uploaded)
+          result.add(chunk);
+      }
+      
+      boolean itsBeenAWhile = (lastUploadStartMs == null
+          || nowMs - lastUploadStartMs >= TuningConstants.EVENT_UPLOAD_TIME_THRESHOLD_MS);
+      
+      while (result.size() < maxNewUploads) {
+        // Get the size of the next chunk to upload.
+        int bufferedBytes = chunkSizes.getFirstUnclosed();
+        if (bufferedBytes == 0) {
+          // nothing more to upload
+          if (uploadChunks.isEmpty())
+            pendingEventsReachedLimit = false;
+          break;
+        }
+        
+        // Wait until the buffer is reasonably full, or it has been a fair while since we last initiated
+        // an upload. Additional uploads in the same tick require a full chunk.
+        boolean bufferFairlyFull = (bufferedBytes > _eventUploadByteThreshold);
+        boolean uploadNow;
+        if (result.isEmpty())
+          uploadNow = bypassWaitTimers || bufferFairlyFull || itsBeenAWhile;
+        else
+          uploadNow = bypassWaitTimers || (bufferFairlyFull && !backingOff);
+        
+        if (!uploadNow)
+          break;
+        
+        // Prevent further data from being added to this chunk.
+        long position = uploadChunks.isEmpty() ? pendingEventBuffer.oldestPosition()
+            : uploadChunks.get(uploadChunks.size() - 1).end();
+        UploadChunk chunk = closeNextChunk(position);
+        if (chunk.uploaded) {
+          discardUploadedChunks();
+          continue;
+        }
+        result.add(chunk);
+        
+        if (writeAhead && localSpillLog != null) {
+          chunk.walRecord = appendToLog(localSpillLog, chunk, true);
+          chunk.spillLog = localSpillLog;
+        }
+      }
+      
+      markInFlight(result, nowMs);
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Make events which have been appended to pendingEventBuffer visible to the upload path, and
+   * record them in chunkSizes; see CircularByteArray.publishCommitted. Caller must hold the lock on
+   * uploadChunks.
+   */
+  private void publishCommittedEvents() {
+    pendingEventBuffer.publishCommitted(chunkSizes, _maxEventUploadBytes);
+  }
+  
+  /**
+   * Close the next chunk of pendingEventBuffer, which begins at the given position, add it to
+   * uploadChunks, and return it. Return null if there is no unclosed data. Caller must hold the
+   * lock on uploadChunks.
+   * <p>
+   * If the chunk is a range which an appender failed to write (see ChunkSizeList.appendSkipped),
+   * it is marked as already uploaded, so that it's discarded in turn without ever being read.
+   */
+  private UploadChunk closeNextChunk(long position) {
+    Set<Object> sources = new LinkedHashSet<Object>();
+    int size = chunkSizes.closeNext(sources);
+    if (size == 0)
+      return null;
+    
+    boolean skipped = sources.remove(ChunkSizeList.SKIPPED);
+    
+    List<PerThreadState> chunkThreads = new ArrayList<PerThreadState>(sources.size());
+    for (Object source : sources)
+      chunkThreads.add((PerThreadState) source);
+    
+    UploadChunk chunk = new UploadChunk(position, size, chunkThreads);
+    chunk.uploaded = skipped;
+    uploadChunks.add(chunk);
+    closedPosition = chunk.end();
+    return chunk;
+  }
+  
+  /**
+   * Record that we are about to upload the given chunks. Caller must hold the lock on uploadChunks.
+   */
+  private void markInFlight(List<UploadChunk> chunks, long nowMs) {
+    if (chunks.isEmpty())
+      return;
+    
+    for (UploadChunk chunk : chunks) {
+      chunk.inFlight = true;
+      if (chunk.spillRecord != null)
+        spilledChunksInFlight++;
+    }
+    
+    lastUploadStartMs = nowMs;
+    pendingEventsReachedLimit = false;
+  }
+  
+  /**
+   * A serialized sessionInfo parameter, and the serverAttributes.modCount and attribute key count
+   * it reflects.
+   */
+  private static class CachedSessionInfo {
+    final JSONStreamAware json;
+    final int attributesModCount;
+    final int keyCount;
+    
+    CachedSessionInfo(JSONStreamAware json, int attributesModCount, int keyCount) {
+      this.json = json;
+      this.attributesModCount = attributesModCount;
+      this.keyCount = keyCount;
     }
   }
   
   /**
-   * Return if it's time to initiate a new upload batch, return the number of event payload bytes
-   * (from pendingEventBuffer) to upload. Otherwise return -1.
-   * 
-   * Caller must hold the locks on "this" and uploadSynchronizer.
+   * JSON value which has already been serialized to UTF-8.
    */
-  private int timeToUpload(boolean bypassWaitTimers) {
-    // If we have an upload request in flight, don't initiate another one now. 
-    if (uploadInProgress)
-      return -1;
+  private static class SerializedJson extends RawJson {
+    private final byte[] bytes;
     
-    long nowMs = ScalyrUtil.currentTimeMillis();
+    SerializedJson(byte[] bytes) {
+      this.bytes = bytes;
+    }
     
-    // Enforce a minimum start-to-start spacing between uploads, to avoid overloading the server.
-    if (!bypassWaitTimers && lastUploadStartMs != null) {
-      long msSinceLastUpload = nowMs - lastUploadStartMs;
-      if (msSinceLastUpload < minUploadIntervalMs)
-        return -1;
+    @Override public void writeJSONBytes(OutputStream out) throws IOException {
+      out.write(bytes);
     }
+  }
+  
+  /**
+   * A range of pendingEventBuffer which has been closed for upload, or a chunk from spillLog.
+   */
+  private static class UploadChunk {
+    /**
+     * Logical position in pendingEventBuffer at which the chunk begins. Unused for spilled chunks.
+     */
+    final long position;
     
-    // Get the size of the chunk to upload.
-    synchronized (chunkSizes) {
-      int bufferedBytes = chunkSizes.getFirst();
-      if (bufferedBytes == 0) {
-        // nothing to upload
-        pendingEventsReachedLimit = false;
-        return -1;
-      }
-      
-      // Wait until the buffer is reasonably full, or it has been a fair while since we last initiated
-      // an upload.
-      boolean bufferFairlyFull = (bufferedBytes > _eventUploadByteThreshold);
-      boolean itsBeenAWhile = (lastUploadStartMs == null
-          || nowMs - lastUploadStartMs >= TuningConstants.EVENT_UPLOAD_TIME_THRESHOLD_MS);
-      
-      if (bypassWaitTimers || bufferFairlyFull || itsBeenAWhile) {
-        // Prevent further data from being added to this chunk.
-        chunkSizes.closeFirst();
-        
-        return bufferedBytes;
-      } else {
-        return -1;
-      }
+    /**
+     * For a chunk taken from a spill log, our (checked-out) record in it; otherwise null.
+     */
+    final SpillLog.Record spillRecord;
+    
+    /**
+     * For a chunk of pendingEventBuffer which has also been written to spillLog (see writeAhead), its
+     * resident record there; otherwise null. Cleared once the chunk is uploaded.
+     */
+    SpillLog.Record walRecord;
+    
+    /**
+     * The log holding spillRecord or walRecord, if either is set.
+     */
+    SpillLog spillLog;
+    
+    /**
+     * Length of the chunk, in bytes (including the comma after the last event).
+     */
+    final int size;
+    
+    /**
+     * Threads which recorded the events in the chunk, in order of their first event. Null for
+     * spilled chunks, whose thread table is stored in the spill log.
+     */
+    final List<PerThreadState> threads;
+    
+    /**
+     * True while an upload request for this chunk is in progress.
+     */
+    boolean inFlight;
+    
+    /**
+     * True once the chunk has been uploaded successfully.
+     */
+    boolean uploaded;
+    
+    UploadChunk(long position, int size, List<PerThreadState> threads) {
+      this.position = position;
+      this.size = size;
+      this.threads = threads;
+      this.spillLog = null;
+      this.spillRecord = null;
+    }
+    
+    UploadChunk(SpillLog spillLog, SpillLog.Record spillRecord) {
+      this.position = -1;
+      this.size = spillRecord.length;
+      this.threads = null;
+      this.spillLog = spillLog;
+      this.spillRecord = spillRecord;
+    }
+    
+    long end() {
+      return position + size;
     }
   }
   
@@ -419,21 +1413,156 @@ public class EventUploader {
     if (uploadTimer == null) {
       ourHostname = ScalyrUtil.getHostname();
       ourIpAddress = ScalyrUtil.getIpAddress();
+      cachedSessionInfo = null;
       
       uploadTimer = new Timer("EventUploader", true);
-      if (autoUpload) {
-        uploadTask = new TimerTask(){
-          @Override public void run() {
-            try {
-              if (!_disableUploadTimer)
-                uploadTimerTick(false);
-            } catch (Throwable ex) {
-              Logging.log(Severity.warning, Logging.tagInternalError, "Exception in Logs upload timer", ex);
-            }
-          }};
-        uploadTimer.schedule(uploadTask, TuningConstants.EVENT_UPLOAD_CHECK_INTERVAL,
-            TuningConstants.EVENT_UPLOAD_CHECK_INTERVAL);
+      if (autoUpload)
+        scheduleTick(TuningConstants.EVENT_UPLOAD_CHECK_INTERVAL);
+    }
+  }
+  
+  /**
+   * Ensure that uploadTimerTick will be invoked (on uploadTimer) no later than delayMs from now.
+   * If a tick is already scheduled by then, we leave it be; otherwise we reschedule it.
+   */
+  private void scheduleTick(long delayMs) {
+    Timer localTimer = uploadTimer;
+    if (!autoUpload || localTimer == null)
+      return;
+    
+    long tickMs = ScalyrUtil.currentTimeMillis() + delayMs;
+    synchronized (tickLock) {
+      if (terminated)
+        return;
+      
+      if (scheduledTick != null) {
+        if (scheduledTickMs <= tickMs)
+          return;
+        scheduledTick.cancel();
+      }
+      
+      scheduledTick = new UploadTick();
+      scheduledTickMs = tickMs;
+      localTimer.schedule(scheduledTick, Math.max(delayMs, 0));
+    }
+  }
+  
+  /**
+   * Ask for uploadTimerTick to be invoked as soon as our upload spacing rules allow, rather than
+   * at the next scheduled time. Called when a chunk's worth of data is ready for upload. Cheap
+   * enough to call from the event recording path: after the first call, subsequent calls do
+   * nothing until the next tick begins.
+   */
+  private void requestTick() {
+    if (!tickRequested.get() && tickRequested.compareAndSet(false, true))
+      scheduleTick(earliestUploadMs - ScalyrUtil.currentTimeMillis());
+  }
+  
+  /**
+   * Runs uploadTimerTick, and then schedules the next tick.
+   */
+  private class UploadTick extends TimerTask {
+    @Override public void run() {
+      synchronized (tickLock) {
+        if (scheduledTick == this)
+          scheduledTick = null;
+      }
+      tickRequested.set(false);
+      
+      try {
+        if (!_disableUploadTimer)
+          uploadTimerTick(false);
+      } catch (Throwable ex) {
+        Logging.log(Severity.warning, Logging.tagInternalError, "Exception in Logs upload timer", ex);
+      }
+      
+      try {
+        scheduleTick(nextTickDelayMs());
+      } catch (Throwable ex) {
+        Logging.log(Severity.warning, Logging.tagInternalError, "Exception in Logs upload timer", ex);
+        scheduleTick(TuningConstants.EVENT_UPLOAD_CHECK_INTERVAL);
+      }
+    }
+  }
+  
+  /**
+   * Return the number of bytes appended to pendingEventBuffer (published or not) beyond the last
+   * closed chunk.
+   */
+  private long unclosedBytes() {
+    return pendingEventBuffer.totalBytesReserved() - closedPosition;
+  }
+  
+  private static double ewma(double average, double sample) {
+    return average + (sample - average) * TuningConstants.UPLOAD_SCHEDULER_EWMA_WEIGHT;
+  }
+  
+  /**
+   * Decide how long to wait before the next upload tick. Rather than polling at a fixed interval,
+   * we aim to wake up when there's likely to be something to do:
+   * 
+   * - Never before our upload spacing rules (minUploadIntervalMs, which reflects any backoff
+   *   requested by the server) would allow an upload.
+   * - If a failed or spilled chunk is waiting to be retried, as soon as that's allowed.
+   * - If every upload slot is busy, when the oldest request is expected to finish (based on
+   *   observed latency).
+   * - Otherwise, when the unuploaded data is expected to reach _eventUploadByteThreshold (based on
+   *   the observed fill rate), or when EVENT_UPLOAD_TIME_THRESHOLD_MS has passed since the last
+   *   upload, whichever is first.
+   * 
+   * In any case, we wait at least MIN_EVENT_UPLOAD_CHECK_INTERVAL. Events recorded faster than
+   * predicted cause an earlier tick, via requestTick.
+   */
+  private long nextTickDelayMs() {
+    long nowMs = ScalyrUtil.currentTimeMillis();
+    synchronized (uploadChunks) {
+      long totalBytes = pendingEventBuffer.totalBytesReserved();
+      long sampleMs = nowMs - lastFillSampleMs;
+      if (sampleMs > 0) {
+        fillRateEwma = ewma(fillRateEwma, (double) (totalBytes - lastFillSampleBytes) / sampleMs);
+        lastFillSampleMs = nowMs;
+        lastFillSampleBytes = totalBytes;
+      }
+      
+      long msSinceLastUpload = (lastUploadStartMs == null) ? Long.MAX_VALUE : nowMs - lastUploadStartMs;
+      long spacingWaitMs = (long) Math.max(0, minUploadIntervalMs - msSinceLastUpload);
+      earliestUploadMs = nowMs + spacingWaitMs;
+      
+      int inFlightCount = spilledChunksInFlight;
+      boolean retryPending = false;
+      for (UploadChunk chunk : uploadChunks) {
+        if (chunk.inFlight)
+          inFlightCount++;
+        else if (!chunk.uploaded)
+          retryPending = true;
+      }
+      SpillLog localSpillLog = spillLog;
+      if (localSpillLog != null && localSpillLog.hasSpilledRecords())
+        retryPending = true;
+      
+      long delayMs;
+      if (inFlightCount >= maxConcurrentUploads) {
+        long expectedMs = (uploadLatencyEwma > 0) ? (long) uploadLatencyEwma - msSinceLastUpload
+            : TuningConstants.EVENT_UPLOAD_CHECK_INTERVAL;
+        delayMs = expectedMs;
+      } else if (retryPending) {
+        delayMs = 0;
+      } else {
+        // If the time threshold has already passed, there was nothing to upload; check again
+        // after a full interval.
+        delayMs = (msSinceLastUpload < TuningConstants.EVENT_UPLOAD_TIME_THRESHOLD_MS)
+            ? TuningConstants.EVENT_UPLOAD_TIME_THRESHOLD_MS - msSinceLastUpload
+            : TuningConstants.EVENT_UPLOAD_TIME_THRESHOLD_MS;
+        
+        long bytesNeeded = _eventUploadByteThreshold - (totalBytes - closedPosition);
+        if (bytesNeeded <= 0)
+          delayMs = 0;
+        else if (fillRateEwma > 0)
+          delayMs = Math.min(delayMs, (long) (bytesNeeded / fillRateEwma));
       }
+      
+      delayMs = Math.max(delayMs, Math.max(spacingWaitMs, TuningConstants.MIN_EVENT_UPLOAD_CHECK_INTERVAL));
+      return Math.min(delayMs, TuningConstants.EVENT_UPLOAD_TIME_THRESHOLD_MS);
     }
   }
   
@@ -451,6 +1580,33 @@ public class EventUploader {
      */
     final String name;
     
+    /**
+     * Serialized "thread" field for events recorded in this thread; see EventSerializer.
+     */
+    private final byte[] threadIdField;
+    
+    /**
+     * Our entry in the threadInfos parameter for uploadEvents, and its serialized form.
+     */
+    final JSONObject threadInfo = new JSONObject();
+    final byte[] threadInfoJson;
+    
+    /**
+     * True while this PerThreadState is in the threads table. Synchronized on this PerThreadState.
+     */
+    private boolean registered;
+    
+    /**
+     * Number of events staged in this thread, and its value as of the previous scavengeIfIdle call.
+     * Synchronized on this PerThreadState.
+     */
+    private int stagedEventCount, stagedEventCountAtScavenge;
+    
+    /**
+     * Number of events currently in stagedEvents. Synchronized on this PerThreadState.
+     */
+    private int stagedBatchEventCount;
+    
     /**
      * Number of start events in this thread that haven't yet been balanced by an end event.
      * Includes events which are discarded by a filter or due to buffer overflow. Does not
@@ -483,18 +1639,52 @@ public class EventUploader {
      */
     private int eventDiscardGeneration = -1;
     
+    /**
+     * Serialized events (each followed by a comma, as in pendingEventBuffer) which have been
+     * recorded in this thread but not yet moved to pendingEventBuffer. Staging events here lets
+     * us publish them to the shared buffer in batches, rather than one at a time.
+     * 
+     * Events enter stagedEvents only after passing the same buffer-space check that would apply
+     * if they were appended directly, so a staged event is treated as having been recorded. Only
+     * leaf events are staged: span start and end events are appended directly, so that a discarded
+     * start is always reflected in bufferLimitDiscardSpanNesting. If a staged batch still fails to
+     * fit when published, its events are discarded and counted in overflowDiscardCount.
+     * 
+     * Synchronized on this PerThreadState. The lock is normally held only by the owning thread;
+     * uploadTimerTick and flush() take it briefly to publish the staged events.
+     */
+    private final ByteArrayBuilder stagedEvents = new ByteArrayBuilder(TuningConstants.EVENT_STAGING_BUFFER_BYTES);
+    
     PerThreadState(long threadId, String name) {
       this.threadId = threadId;
       this.name = name;
+      this.threadIdField = EventSerializer.threadField(threadId, attributeKeys != null);
+      
+      threadInfo.put("id", Long.toString(threadId));
+      threadInfo.put("name", name);
+      threadInfoJson = utf8Bytes(threadInfo.toJSONString());
     }
     
     /**
      * Add a span-start event to the buffer, and return its timestamp.
      */
     Span start(Severity severity, EventAttributes attributes) {
+      SpanSummarizer summarizer = null;
+      Map<String, SpanSummarizer> localSummarizers = spanSummarizers;
+      if (localSummarizers != null && attributes != null) {
+        Object tag = attributes.get("tag");
+        if (tag != null) {
+          summarizer = localSummarizers.get(tag);
+          
+          // Spans which are only summarized record no start event, and don't count toward nesting.
+          if (summarizer != null && !summarizer.sampleFullSpan())
+            return new Span(ScalyrUtil.nanoTime(), severity, summarizer, attributes);
+        }
+      }
+      
       long timestampNs = getMonotonicNanos();
       
-      ConvertAndAddResult result = convertAndAddToBuffer(timestampNs, LogService.SPAN_TYPE_START, severity, attributes, null,
+      ConvertAndAddResult result = convertAndAddToBuffer(timestampNs, LogService.SPAN_TYPE_START, severity, attributes, 0,
           memoryLimit * TuningConstants.EVENT_BUFFER_RESERVED_PERCENT / 100, false);
       
       switch (result) {
@@ -524,18 +1714,52 @@ public class EventUploader {
       
       spanNesting++;
       
-      return new Span(timestampNs, severity);
+      return new Span(timestampNs, severity, summarizer, null);
+    }
+    
+    /**
+     * Variant of start which builds the attributes only if the start event passes the minimum
+     * severity check in convertAndAddToBuffer. A start event which fails it is discarded whatever
+     * its attributes, but we still record the span, so that its end event is matched.
+     */
+    Span start(Severity severity, LazyEventAttributes attributes) {
+      EventFilter localFilter = eventFilter;
+      if (localFilter != null && severity.ordinal() < localFilter.getMinimumSeverity().ordinal())
+        return start(severity, (EventAttributes) null);
+    
+      return start(severity, attributes.build());
+    }
+    
+    /**
+     * Variant of end which builds the attributes only if the end event passes the minimum severity
+     * check in convertAndAddToBuffer (an end event below the minimum is discarded if its start was).
+     */
+    void end(Span span, LazyEventAttributes attributes) {
+      EventFilter localFilter = eventFilter;
+      if (localFilter != null && span.summarizedStartAttributes == null && filterDiscardSpanNesting > 0
+          && span.severity.ordinal() < localFilter.getMinimumSeverity().ordinal())
+        end(span, (EventAttributes) null);
+      else
+        end(span, attributes.build());
     }
     
     /**
      * Add an end-span event to the buffer.
      */
     void end(Span span, EventAttributes attributes) {
+      if (span.summarizedStartAttributes != null) {
+        endSummarizedSpan(span, attributes);
+        return;
+      }
+      
       long timestampNs = getMonotonicNanos();
       
       convertAndAddToBuffer(timestampNs, LogService.SPAN_TYPE_END, span.severity, attributes, span.startTime,
           memoryLimit * TuningConstants.EVENT_BUFFER_END_EVENT_RESERVED_PERCENT / 100, false);
       
+      if (span.summarizer != null)
+        span.summarizer.durations.record(timestampNs - span.startTime);
+      
       if (spanNesting > 0) {
         spanNesting--;
       } else {
@@ -549,6 +1773,27 @@ public class EventUploader {
         bufferLimitDiscardSpanNesting--;
     }
 
+    /**
+     * Finish a span for which no start event was recorded: record its duration, and if it ran for
+     * longer than the summarizer's threshold, record it as a single leaf event. (We can't record
+     * the start event at this point, as its timestamp would be out of order with events recorded
+     * since.) The leaf event has the start and end attributes, plus durationNs.
+     */
+    private void endSummarizedSpan(Span span, EventAttributes attributes) {
+      long durationNs = ScalyrUtil.nanoTime() - span.startTime;
+      span.summarizer.durations.record(durationNs);
+      
+      if (durationNs >= span.summarizer.slowThresholdNs) {
+        EventAttributes slowSpanAttributes = new EventAttributes(span.summarizedStartAttributes);
+        if (attributes != null)
+          for (Map.Entry<String, Object> entry : attributes.getEntries())
+            slowSpanAttributes.put(entry.getKey(), entry.getValue());
+        
+        slowSpanAttributes.put("durationNs", durationNs);
+        event(span.severity, slowSpanAttributes);
+      }
+    }
+    
     /**
      * Add a non-span event to the buffer.
      */
@@ -560,8 +1805,49 @@ public class EventUploader {
      * Add a non-span event to the buffer, with an explicitly specified timestamp.
      */
     void event(Severity severity, EventAttributes attributes, long timestampNs) {
-      convertAndAddToBuffer(timestampNs, LogService.SPAN_TYPE_LEAF, severity, attributes, null,
-          memoryLimit * TuningConstants.EVENT_BUFFER_RESERVED_PERCENT / 100, false);
+      long maxWaitMs = bufferFullWaitMs;
+      convertAndAddToBuffer(timestampNs, LogService.SPAN_TYPE_LEAF, severity, attributes, 0,
+          memoryLimit * TuningConstants.EVENT_BUFFER_RESERVED_PERCENT / 100, false, (maxWaitMs > 0) ? maxWaitMs : -1);
+    }
+    
+    /**
+     * Add a non-span event to the buffer, waiting up to maxWaitMs for space if the buffer is full.
+     * Return the outcome. The event is appended directly to pendingEventBuffer (see
+     * addEventWaitingForSpace), so success means that it is in the buffer.
+     */
+    ConvertAndAddResult tryEvent(Severity severity, EventAttributes attributes, long maxWaitMs) {
+      return convertAndAddToBuffer(getMonotonicNanos(), LogService.SPAN_TYPE_LEAF, severity, attributes, 0,
+          memoryLimit * TuningConstants.EVENT_BUFFER_RESERVED_PERCENT / 100, false, maxWaitMs);
+    }
+    
+    /**
+     * Add a summary event from EventCoalescer to the buffer. This bypasses the EventFilter (and the
+     * coalescer), as the events it summarizes have already been through them.
+     * 
+     * Unlike most methods here, this is called from other threads (see emitCoalescedEvents). It
+     * therefore touches only state guarded by our lock, staging the event as addEventToBuffer would.
+     */
+    void coalescedEvent(Severity severity, EventAttributes attributes) {
+      int reservedBufferSpace = memoryLimit * TuningConstants.EVENT_BUFFER_RESERVED_PERCENT / 100;
+      synchronized (this) {
+        if (!pendingEventsReachedLimit) {
+          int stagedSizeBefore = stagedEvents.size();
+          serializeToStagingBuffer(getMonotonicNanos(), LogService.SPAN_TYPE_LEAF, severity, attributes, 0);
+          
+          if (stagedEvents.size() <= pendingEventBuffer.availableSpace() - reservedBufferSpace) {
+            if (stagedEvents.size() >= Math.min(TuningConstants.EVENT_STAGING_BUFFER_BYTES, _maxEventUploadBytes))
+              publishStagedEvents();
+            return;
+          }
+          
+          stagedEvents.truncate(stagedSizeBefore);
+          stagedBatchEventCount--;
+          noteBufferFull();
+        }
+      }
+      
+      overflowDiscardCount.incrementAndGet();
+      warnOfOverflow("event");
     }
     
     /**
@@ -573,126 +1859,319 @@ public class EventUploader {
      * 
      * If isOverflowMessage is true, then this is a buffer-overflow message, which bypasses filters
      * and certain other checks.
+     * 
+     * startTs is the timestamp of the corresponding start event; it is used only for span-end events.
+     */
+    private ConvertAndAddResult convertAndAddToBuffer(long timestamp, int spanType, Severity severity,
+        EventAttributes attributes, long startTs, int reservedBufferSpace, boolean isOverflowMessage) {
+      return convertAndAddToBuffer(timestamp, spanType, severity, attributes, startTs, reservedBufferSpace,
+          isOverflowMessage, -1);
+    }
+    
+    /**
+     * Variant of convertAndAddToBuffer which, for a leaf event, waits up to maxWaitMs for buffer
+     * space if the buffer is full (see addEventWaitingForSpace). If maxWaitMs is negative, the event
+     * is staged as usual, and discarded without waiting if there is no room.
      */
     private ConvertAndAddResult convertAndAddToBuffer(long timestamp, int spanType, Severity severity,
-        EventAttributes attributes, Long startTs, int reservedBufferSpace, boolean isOverflowMessage) {
+        EventAttributes attributes, long startTs, int reservedBufferSpace, boolean isOverflowMessage,
+        long maxWaitMs) {
       EventFilter localFilter = eventFilter;
       if (localFilter != null && !isOverflowMessage) {
-        FilterInput filterInput = new FilterInput();
-        filterInput.threadId = Long.toString(threadId);
-        filterInput.timestampNs = timestamp;
-        filterInput.spanType = spanType;
-        filterInput.severity = severity;
-        filterInput.attributes = attributes != null ? attributes : emptyAttributes;
-        filterInput.isTopLevel = (spanNesting == 0);
-        filterInput.inDiscardedSpan = (filterDiscardSpanNesting > 0);
-      
-        FilterOutput filterOutput = new FilterOutput(filterInput);
-        localFilter.filter(filterInput, filterOutput);
+        // A span end below the minimum severity is still recorded if its start was, since the
+        // minimum may have been raised while the span was open.
+        if (severity.ordinal() < localFilter.getMinimumSeverity().ordinal()
+            && (spanType != LogService.SPAN_TYPE_END || filterDiscardSpanNesting > 0))
+          return ConvertAndAddResult.discardedByFilter;
         
-        if (filterOutput.discardEvent)
+        EventFilter.Decision decision = localFilter.decide(timestamp, spanType, severity,
+            attributes != null ? attributes : emptyAttributes, spanNesting == 0, filterDiscardSpanNesting > 0);
+        if (decision == EventFilter.Decision.discard)
           return ConvertAndAddResult.discardedByFilter;
         
+        if (decision == EventFilter.Decision.invokeFilter) {
+          FilterInput filterInput = new FilterInput();
+          filterInput.threadId = Long.toString(threadId);
+          filterInput.timestampNs = timestamp;
+          filterInput.spanType = spanType;
+          filterInput.severity = severity;
+          filterInput.attributes = attributes != null ? attributes : emptyAttributes;
+          filterInput.isTopLevel = (spanNesting == 0);
+          filterInput.inDiscardedSpan = (filterDiscardSpanNesting > 0);
+          
+          FilterOutput filterOutput = new FilterOutput(filterInput);
+          localFilter.filter(filterInput, filterOutput);
+          
+          if (filterOutput.discardEvent)
+            return ConvertAndAddResult.discardedByFilter;
+          
+          severity = filterOutput.severity;
+          if (filterOutput.attributes != null)
+            attributes = filterOutput.attributes;
+        }
+        
+        // Whether decided by decide() or filter(), an event the filter keeps within a span
+        // discarded for lack of buffer space is discarded too, before it reaches the coalescer.
         if (bufferLimitDiscardSpanNesting > 0)
           return ConvertAndAddResult.discardedByEventOverflow;
-        
-        severity = filterOutput.severity;
-        if (filterOutput.attributes != null)
-          attributes = filterOutput.attributes;
       }
       
-      JSONObject json = new JSONObject();
+      EventCoalescer localCoalescer = coalescer;
+      if (localCoalescer != null && spanType == LogService.SPAN_TYPE_LEAF && !isOverflowMessage
+          && bufferLimitDiscardSpanNesting == 0
+          && localCoalescer.absorb(this, timestamp, severity, attributes != null ? attributes : emptyAttributes))
+        return ConvertAndAddResult.success;
       
-      // Note that we store the timestamp as a string, not a number. This is because some JSON packages
-      // convert all numbers to floating point, and a 64-bit floating point value doesn't have sufficient
-      // precision to represent a nanosecond timestamp. We take a similar precaution for the thread ID.
-      json.put("thread", Long.toString(threadId));
-      json.put("ts", Long.toString(timestamp));
-      json.put("type", spanType);
-      json.put("sev", severity.ordinal());
+      if (maxWaitMs >= 0 && spanType == LogService.SPAN_TYPE_LEAF && !isOverflowMessage
+          && bufferLimitDiscardSpanNesting == 0)
+        return addEventWaitingForSpace(timestamp, severity, attributes, reservedBufferSpace, maxWaitMs);
       
-      if (attributes != null && attributes.values.size() > 0) {
-        JSONObject jsonAttrs = new JSONObject();
-        
-        for (Map.Entry<String, Object> entry : attributes.values.entrySet()) {
-          Object value = entry.getValue();
-          if (value instanceof String && ((String)value).length() > TuningConstants.MAXIMUM_EVENT_ATTRIBUTE_LENGTH) {
-            value = ((String)value).substring(0, TuningConstants.MAXIMUM_EVENT_ATTRIBUTE_LENGTH - 3) + "...";
+      return addEventToBuffer(timestamp, spanType, severity, attributes, startTs, reservedBufferSpace,
+          isOverflowMessage);
+    }
+    
+    /**
+     * Add a leaf event to the buffer. If the buffer is full, wait up to maxWaitMs for space to be
+     * released; if none is, discard the event as addEventToBuffer would.
+     * 
+     * Rather than staging the event, we append it directly to pendingEventBuffer, so that we know
+     * whether it fit (staged events are published later, and discarded if they don't fit).
+     */
+    private ConvertAndAddResult addEventWaitingForSpace(long timestamp, Severity severity,
+        EventAttributes attributes, int reservedBufferSpace, long maxWaitMs) {
+      long deadlineMs = ScalyrUtil.currentTimeMillis() + maxWaitMs;
+      while (true) {
+        int generation = bufferSpaceGeneration.get();
+        if (!pendingEventsReachedLimit) {
+          synchronized (this) {
+            // Hand off any previously staged events first, to preserve the order of events within
+            // this thread. If the event doesn't fit, publishStagedEvents discards it (and notes that
+            // the buffer is full); we serialize it again for the next attempt.
+            publishStagedEvents();
+            serializeToStagingBuffer(timestamp, LogService.SPAN_TYPE_LEAF, severity, attributes, 0);
+            if (publishStagedEvents(reservedBufferSpace))
+              return ConvertAndAddResult.success;
           }
-          jsonAttrs.put(entry.getKey(), value);
         }
         
-        json.put("attrs", jsonAttrs);
+        long remainingMs = deadlineMs - ScalyrUtil.currentTimeMillis();
+        if (remainingMs <= 0 || !awaitBufferSpace(generation, remainingMs))
+          return addEventToBuffer(timestamp, LogService.SPAN_TYPE_LEAF, severity, attributes, 0,
+              reservedBufferSpace, false);
       }
-      
-      if (startTs != null)
-        json.put("startTS", startTs);
-      
-      return addEventToBuffer(json, spanType == LogService.SPAN_TYPE_END, reservedBufferSpace, isOverflowMessage);
     }
     
-    private ConvertAndAddResult addEventToBuffer(JSONObject eventJson, boolean isEndEvent, int reservedBufferSpace,
-        boolean isOverflowMessage) {
+    private ConvertAndAddResult addEventToBuffer(long timestamp, int spanType, Severity severity,
+        EventAttributes attributes, long startTs, int reservedBufferSpace, boolean isOverflowMessage) {
+      boolean isEndEvent = (spanType == LogService.SPAN_TYPE_END);
       boolean discardingDueToMemoryLimit;
-      synchronized (uploadSynchronizer) {
-        if (pendingEventsReachedLimit && !isEndEvent && !isOverflowMessage) {
-          // If pendingEventsReachedLimit is true, we discard all events, to avoid
-          // "stuttering" (letting in some events and not others) at the memory boundary.
-          // However, we still let end events through, to maintain the integrity of span
-          // nesting.
-          discardingDueToMemoryLimit = true;
-        } else if (bufferLimitDiscardSpanNesting > 0 && !isOverflowMessage) {
-          // Don't upload any event that occurs inside a discarded span, including the
-          // end event.
-          discardingDueToMemoryLimit = true;
-        } else {
-          ByteArrayOutputStream stream = new ByteArrayOutputStream();
-          try {
-            eventJson.writeJSONBytes(stream);
-          } catch (IOException ex) {
-            // This should never happen, since we're working with in-memory data.
-            throw new RuntimeException(ex);
-          }
-          stream.write(',');
-          byte[] serialized = stream.toByteArray();
-          int serializedLen = serialized.length;
-          
-          synchronized (chunkSizes) {
-            if (pendingEventBuffer.append(serialized, 0, serializedLen, reservedBufferSpace)) {
-              chunkSizes.append(serializedLen, _maxEventUploadBytes);
-              totalBytesWritten += serializedLen;
-              discardingDueToMemoryLimit = false;
-            } else {
+      if (pendingEventsReachedLimit && !isEndEvent && !isOverflowMessage) {
+        // If pendingEventsReachedLimit is true, we discard all events, to avoid
+        // "stuttering" (letting in some events and not others) at the memory boundary.
+        // However, we still let end events through, to maintain the integrity of span
+        // nesting.
+        discardingDueToMemoryLimit = true;
+      } else if (bufferLimitDiscardSpanNesting > 0 && !isOverflowMessage) {
+        // Don't upload any event that occurs inside a discarded span, including the
+        // end event.
+        discardingDueToMemoryLimit = true;
+      } else {
+        synchronized (this) {
+          if (spanType != LogService.SPAN_TYPE_LEAF || isOverflowMessage) {
+            // Span events and overflow messages are appended directly: end events and overflow
+            // messages so that they can use the reserved portion of the buffer, and start events so
+            // that our caller learns whether they were discarded (see start). We first hand off any
+            // staged events, to preserve the order of events within this thread.
+            publishStagedEvents();
+            serializeToStagingBuffer(timestamp, spanType, severity, attributes, startTs);
+            discardingDueToMemoryLimit = !publishStagedEvents(reservedBufferSpace);
+          } else {
+            int stagedSizeBefore = stagedEvents.size();
+            serializeToStagingBuffer(timestamp, spanType, severity, attributes, startTs);
+            
+            if (stagedEvents.size() > pendingEventBuffer.availableSpace() - reservedBufferSpace) {
+              stagedEvents.truncate(stagedSizeBefore);
+              stagedBatchEventCount--;
+              noteBufferFull();
               discardingDueToMemoryLimit = true;
-              pendingEventsReachedLimit = true;
-              pendingEventsLimitCounter++;
+            } else {
+              discardingDueToMemoryLimit = false;
+              if (stagedEvents.size() >= Math.min(TuningConstants.EVENT_STAGING_BUFFER_BYTES, _maxEventUploadBytes))
+                publishStagedEvents();
             }
           }
         }
       }
       
+      if (discardingDueToMemoryLimit)
+        overflowDiscardCount.incrementAndGet();
+      
       if (discardingDueToMemoryLimit && !isOverflowMessage) {
-        int snapshot = pendingEventsLimitCounter;
+        int snapshot = pendingEventsLimitCounter.get();
         if (eventDiscardGeneration != snapshot) {
           eventDiscardGeneration = snapshot;
           
           // Record a log event noting that we had to discard some events.
           convertAndAddToBuffer(getMonotonicNanos(), LogService.SPAN_TYPE_LEAF, Severity.warning,
               new EventAttributes("tag", "eventBufferOverflow", "message", "Discarding log records due to buffer overflow"),
-              null, 0, true);
+              0, 0, true);
         }
         
-        if (memoryWarnLimiter.allow(TuningConstants.EVENT_UPLOAD_MEMORY_WARNING_INTERVAL_MS)) {
-          Logging.log(Severity.warning, Logging.tagLogBufferOverflow,
-              "com.scalyr.api.logs: Discarding event, as buffer size of "
-              + memoryLimit + " bytes has been reached.");
-        }
+        warnOfOverflow("event");
         
         return ConvertAndAddResult.discardedByEventOverflow;
       } else {
         return ConvertAndAddResult.success;
       }
     }
+    
+    /**
+     * Append the serialized form of the given event, followed by a comma, to stagedEvents.
+     * Caller must hold the lock on this PerThreadState.
+     */
+    private void serializeToStagingBuffer(long timestamp, int spanType, Severity severity,
+        EventAttributes attributes, long startTs) {
+      if (!registered) {
+        synchronized (threads) {
+          threads.add(this);
+        }
+        registered = true;
+      }
+      stagedEventCount++;
+      stagedBatchEventCount++;
+      
+      EventSerializer.writeEvent(stagedEvents, threadIdField, timestamp, spanType, severity, attributes, startTs,
+          attributeKeys);
+      stagedEvents.write(',');
+    }
+    
+    /**
+     * Move all staged events to pendingEventBuffer. Staged events have already passed a
+     * buffer-space check, so we allow them to use all but the space reserved for overflow
+     * messages. Return false if the events had to be discarded; they are counted in
+     * overflowDiscardCount.
+     */
+    synchronized boolean publishStagedEvents() {
+      int batchEventCount = stagedBatchEventCount;
+      if (publishStagedEvents(memoryLimit * TuningConstants.EVENT_BUFFER_END_EVENT_RESERVED_PERCENT / 100))
+        return true;
+      
+      overflowDiscardCount.addAndGet(batchEventCount);
+      warnOfOverflow(batchEventCount + " staged events");
+      return false;
+    }
+    
+    /**
+     * Move all staged events to pendingEventBuffer, provided that at least reservedBufferSpace bytes
+     * remain free afterward. Return false if the events had to be discarded; the caller is
+     * responsible for counting them.
+     */
+    private synchronized boolean publishStagedEvents(int reservedBufferSpace) {
+      int stagedBytes = stagedEvents.size();
+      if (stagedBytes == 0)
+        return true;
+      
+      // We pass ourselves as the source, so that each chunk knows which threads it covers; see
+      // publishCommittedEvents.
+      boolean success = pendingEventBuffer.append(stagedEvents.getBuffer(), 0, stagedBytes, reservedBufferSpace,
+          this);
+      stagedEvents.reset(TuningConstants.EVENT_STAGING_BUFFER_BYTES, TuningConstants.EVENT_STAGING_BUFFER_BYTES * 4);
+      stagedBatchEventCount = 0;
+      
+      if (success && unclosedBytes() >= _eventUploadByteThreshold)
+        requestTick();
+      
+      if (!success)
+        noteBufferFull();
+      else if (spillLog != null
+          && pendingEventBuffer.numReservedBytes() > (long) memoryLimit * TuningConstants.EVENT_SPILL_THRESHOLD_PERCENT / 100)
+        requestSpill();
+      
+      return success;
+    }
+    
+    /**
+     * Remove this thread from the threads table if it has staged no events since the previous
+     * call. (Chunks holding its events reference this PerThreadState directly, so they don't
+     * need the table.)
+     */
+    synchronized void scavengeIfIdle() {
+      if (stagedEventCount == stagedEventCountAtScavenge && stagedEvents.size() == 0) {
+        synchronized (threads) {
+          threads.remove(this);
+        }
+        registered = false;
+      }
+      
+      stagedEventCountAtScavenge = stagedEventCount;
+    }
+  }
+  
+  /**
+   * Log a (rate-limited) warning that the given events were discarded due to buffer overflow.
+   */
+  private void warnOfOverflow(String discarded) {
+    if (memoryWarnLimiter.allow(TuningConstants.EVENT_UPLOAD_MEMORY_WARNING_INTERVAL_MS)) {
+      Logging.log(Severity.warning, Logging.tagLogBufferOverflow,
+          "com.scalyr.api.logs: Discarding " + discarded + ", as buffer size of "
+          + memoryLimit + " bytes has been reached.");
+    }
+  }
+  
+  /**
+   * Return the number of events discarded so far because the event buffer was full.
+   */
+  long getOverflowDiscardCount() {
+    return overflowDiscardCount.get();
+  }
+  
+  /**
+   * Return the number of bytes held in pendingEventBuffer, i.e. recorded but not yet discarded
+   * after a successful upload (or spill). Used in tests.
+   */
+  int getBufferedBytes() {
+    return pendingEventBuffer.numReservedBytes();
+  }
+  
+  /**
+   * Return the number of upload requests currently in flight. Used in tests.
+   */
+  int getUploadsInFlight() {
+    synchronized (uploadChunks) {
+      int count = spilledChunksInFlight;
+      for (UploadChunk chunk : uploadChunks)
+        if (chunk.inFlight)
+          count++;
+      return count;
+    }
+  }
+  
+  /**
+   * Record that an event could not be added to pendingEventBuffer for lack of space.
+   */
+  private void noteBufferFull() {
+    pendingEventsReachedLimit = true;
+    pendingEventsLimitCounter.incrementAndGet();
+    
+    requestSpill();
+  }
+  
+  /**
+   * If we have a spill log, arrange for spillChunks to be called promptly, rather than waiting for the
+   * next timer tick. The spill involves disk I/O, so we don't perform it on the caller's thread.
+   */
+  private void requestSpill() {
+    if (spillLog != null && spillScheduled.compareAndSet(false, true)) {
+      ScalyrUtil.asyncApiExecutor.execute(new Runnable(){
+        @Override public void run() {
+          spillScheduled.set(false);
+          try {
+            spillChunks();
+          } catch (Throwable ex) {
+            Logging.log(Severity.warning, Logging.tagInternalError, "Exception while spilling events to disk", ex);
+          }
+        }});
+    }
   }
   
   /**
@@ -711,25 +2190,24 @@ public class EventUploader {
    * Most recently assigned timestamp. Used to ensure that timestamps are strictly increasing (within
    * a given process): nanoTime() can sometimes run backwards.
    */
-  private static long lastTimestamp = ScalyrUtil.nanoTime();
-  
-  /**
-   * Object used to synchronize access to lastTimestamp.
-   */
-  private static final Object timestampLocker = new Object();
+  private static final AtomicLong lastTimestamp = new AtomicLong(ScalyrUtil.nanoTime());
   
   /**
    * Return the current time (in nanoseconds since the epoch), but strictly greater than any
    * previous result from this method.
    */
-  private static long getMonotonicNanos() {
+  static long getMonotonicNanos() {
     long now = ScalyrUtil.nanoTime();
-    synchronized (timestampLocker) {
+    while (true) {
       // TODO: warn when nanoTime runs backwards.
-      long timestamp = Math.max(lastTimestamp + 1, now);
-      lastTimestamp = timestamp;
+      long last = lastTimestamp.get();
       
-      return timestamp;
+      // In the common case, our reading of the clock is already in the future, and we simply
+      // publish it. If some other thread got there first (or the clock ran backwards), we take
+      // the next nanosecond after the latest published value.
+      long timestamp = Math.max(last + 1, now);
+      if (lastTimestamp.compareAndSet(last, timestamp))
+        return timestamp;
     }
   }
   
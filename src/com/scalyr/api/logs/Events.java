@@ -17,11 +17,19 @@
 
 package com.scalyr.api.logs;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.zip.Deflater;
 import java.util.concurrent.atomic.AtomicReference;
 
+import com.scalyr.api.Compression;
+import com.scalyr.api.TuningConstants;
 import com.scalyr.api.internal.Logging;
 import com.scalyr.api.internal.ScalyrUtil;
+import com.scalyr.api.internal.SpillLog;
 
 /**
  * Interface for recording events in the Scalyr Logs service.
@@ -35,6 +43,57 @@ public class Events {
    */
   private static volatile EventFilter eventFilter;
   
+  /**
+   * Ordinal of the lowest severity for which isEnabled returns true. Integer.MAX_VALUE if init has
+   * not been called (so that all events are disabled). Updated by updateEnabledThreshold.
+   */
+  private static volatile int enabledThreshold = Integer.MAX_VALUE;
+  
+  /**
+   * The most recent value passed to setMaxConcurrentUploads. Stored here for the same reason as
+   * eventFilter.
+   */
+  private static volatile int maxConcurrentUploads = TuningConstants.MAX_CONCURRENT_EVENT_UPLOADS;
+  
+  /**
+   * The most recent value passed to setOffHeapEventBuffer.
+   */
+  private static volatile boolean offHeapEventBuffer = false;
+  
+  /**
+   * The most recent value passed to setCompactAttributeKeys.
+   */
+  private static volatile boolean compactAttributeKeys = false;
+  
+  /**
+   * The most recent value passed to setBufferFullWait.
+   */
+  private static volatile long bufferFullWaitMs = 0;
+  
+  /**
+   * The most recent value passed to setEventCoalescingWindow.
+   */
+  private static volatile int coalescingWindowMs = 0;
+  
+  /**
+   * SpanSummarizer for each tag passed to setSpanSummarization, or null if there are none. The map
+   * is replaced, rather than modified, when the settings change.
+   */
+  private static volatile Map<String, SpanSummarizer> spanSummarizers;
+  
+  /**
+   * The most recent values passed to setRequestCompression.
+   */
+  private static Compression requestCompression = Compression.none;
+  private static int requestCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+  
+  /**
+   * The spill log opened by the most recent call to setSpillDirectory, or null, and whether it is
+   * used as a write-ahead log.
+   */
+  private static SpillLog spillLog;
+  private static boolean spillWriteAhead;
+  
   /**
    * Initialize the Events reporting system. If this method has already been called, subsequent calls
    * are ignored.
@@ -79,12 +138,19 @@ public class Events {
     LogService logService = new LogService(apiToken);
     if (scalyrServerAddress != null)
       logService.setServerAddress(scalyrServerAddress);
+    logService.setRequestCompression(requestCompression, requestCompressionLevel);
     
     EventUploader instance = new EventUploader(logService, memoryLimit,
-        "sess_" + UUID.randomUUID(), true, serverAttributes);
+        "sess_" + UUID.randomUUID(), true, serverAttributes, offHeapEventBuffer, compactAttributeKeys);
     instance.eventFilter = eventFilter;
+    instance.maxConcurrentUploads = maxConcurrentUploads;
+    instance.bufferFullWaitMs = bufferFullWaitMs;
+    instance.setCoalescingWindow(coalescingWindowMs);
+    instance.spanSummarizers = spanSummarizers;
+    instance.setSpillLog(spillLog, spillWriteAhead);
     
     uploaderInstance.set(instance);
+    updateEnabledThreshold();
   }
   
   /**
@@ -102,6 +168,301 @@ public class Events {
     EventUploader instance = uploaderInstance.get();
     if (instance != null)
       instance.eventFilter = value;
+    
+    updateEnabledThreshold();
+  }
+  
+  /**
+   * Invoked by EventFilter.setMinimumSeverity.
+   */
+  static void minimumSeverityChanged(EventFilter filter) {
+    if (filter == eventFilter)
+      updateEnabledThreshold();
+  }
+  
+  /**
+   * Recompute enabledThreshold, from the current filter and uploader.
+   */
+  private static synchronized void updateEnabledThreshold() {
+    EventFilter filter = eventFilter;
+    if (uploaderInstance.get() == null)
+      enabledThreshold = Integer.MAX_VALUE;
+    else if (filter == null)
+      enabledThreshold = 0;
+    else
+      enabledThreshold = filter.getMinimumSeverity().ordinal();
+  }
+  
+  /**
+   * Return true if events at the given severity may be recorded; false if they would be discarded
+   * (because init has not been called, or the event filter discards all events at this severity).
+   * This costs a single volatile read, so it can be used to skip building the attributes for events
+   * which are disabled:
+   * 
+   * <pre>
+   *   if (Events.isEnabled(Severity.fine))
+   *     Events.fine(new EventAttributes("tag", "cacheMiss", "key", describe(key)));
+   * </pre>
+   * 
+   * An event for which this returns true may still be discarded by the event filter. See also
+   * LazyEventAttributes.
+   */
+  public static boolean isEnabled(Severity severity) {
+    return severity.ordinal() >= enabledThreshold;
+  }
+  
+  /**
+   * Like isEnabled(Severity), but also consults the event filter's isTagEnabled method, for events
+   * with the given "tag" attribute.
+   */
+  public static boolean isEnabled(Severity severity, String tag) {
+    if (severity.ordinal() < enabledThreshold)
+      return false;
+    
+    EventFilter filter = eventFilter;
+    return filter == null || filter.isTagEnabled(severity, tag);
+  }
+  
+  /**
+   * Specify the maximum number of upload requests which may be in flight to the Scalyr Logs server
+   * at once. Each request carries a separate chunk of buffered events. Raising this above 1 improves
+   * throughput when the server is distant (high network latency) and events are recorded at a high
+   * rate. Buffer space is still reclaimed in order, so the memory limit is unaffected.
+   * 
+   * @param value The new limit; must be at least 1. The default is 1.
+   */
+  public static void setMaxConcurrentUploads(int value) {
+    if (value < 1)
+      throw new RuntimeException("maxConcurrentUploads must be at least 1 (was " + value + ")");
+    
+    maxConcurrentUploads = value;
+    
+    EventUploader instance = uploaderInstance.get();
+    if (instance != null)
+      instance.maxConcurrentUploads = value;
+  }
+  
+  /**
+   * Specify whether the buffer holding events awaiting upload is allocated outside the Java heap.
+   * The buffer grows as needed, up to the memoryLimit passed to init; when memoryLimit is large,
+   * holding the buffer off-heap keeps it from lengthening garbage collections. Off-heap memory is
+   * limited by the JVM's -XX:MaxDirectMemorySize option; if it runs out, we fall back to the heap.
+   * <p>
+   * This takes effect at the next call to init, so it should be called beforehand. The default
+   * is false.
+   */
+  public static void setOffHeapEventBuffer(boolean value) {
+    offHeapEventBuffer = value;
+  }
+  
+  /**
+   * Specify whether events are uploaded in a compact encoding, in which event fields and attribute
+   * keys are replaced by small integer IDs. The table mapping IDs to keys is assigned per session
+   * and sent once with each upload, rather than repeating every key in every event, so the savings
+   * are greatest for events with many short attribute values. See AttributeKeyDictionary for
+   * details. The server must support the compact encoding.
+   * <p>
+   * This takes effect at the next call to init, so it should be called beforehand. The default
+   * is false.
+   */
+  public static void setCompactAttributeKeys(boolean value) {
+    compactAttributeKeys = value;
+  }
+  
+  /**
+   * Specify how long a thread recording an event waits for buffer space when the event buffer is
+   * full. By default (0), such events are discarded immediately, so that logging never slows the
+   * application down. With a positive value, the thread instead waits -- blocked, not spinning --
+   * until an upload (or a spill to disk) releases buffer space, for at most maxWaitMs; only then
+   * is the event discarded. This suits event streams, such as audit records, for which briefly
+   * slowing the application is preferable to losing events.
+   * <p>
+   * This applies to leaf events (not span start or end events). Events recorded with a wait are
+   * appended directly to the shared buffer rather than batched per thread, which costs somewhat
+   * more per event. To choose the policy per call, or to learn whether an event was recorded, use
+   * tryEvent.
+   * 
+   * @param maxWaitMs Maximum time to wait for buffer space, in milliseconds, or 0 not to wait.
+   */
+  public static void setBufferFullWait(long maxWaitMs) {
+    if (maxWaitMs < 0)
+      throw new RuntimeException("maxWaitMs must not be negative (was " + maxWaitMs + ")");
+    
+    bufferFullWaitMs = maxWaitMs;
+    
+    EventUploader instance = uploaderInstance.get();
+    if (instance != null)
+      instance.bufferFullWaitMs = maxWaitMs;
+  }
+  
+  /**
+   * Return the number of events which have been discarded because the event buffer was full (see
+   * init's memoryLimit parameter), since init was last called. Returns 0 if init has not been called.
+   */
+  public static long getOverflowDiscardCount() {
+    EventUploader instance = uploaderInstance.get();
+    return (instance != null) ? instance.getOverflowDiscardCount() : 0;
+  }
+  
+  /**
+   * Specify a window for coalescing repeated events. When a leaf event (not a span start or end) is
+   * recorded, identical events -- same severity and attributes -- recorded over the following
+   * windowMs milliseconds are counted rather than buffered. Once the window closes, if any events
+   * were counted, a single summary event is recorded in their place. The summary has the original
+   * attributes, plus "repeatCount" (the number of events it replaces), and "firstTs" and "lastTs"
+   * (the timestamps of the first and last of those events, in nanoseconds). This keeps a tight loop
+   * logging the same warning from filling the event buffer.
+   * <p>
+   * Coalescing applies after the EventFilter, so it sees events as modified by the filter. Events
+   * whose attributes vary (e.g. include a request ID) are never coalesced. By default, coalescing
+   * is disabled.
+   * 
+   * @param windowMs Length of the coalescing window, in milliseconds, or 0 to disable coalescing.
+   */
+  public static void setEventCoalescingWindow(int windowMs) {
+    if (windowMs < 0)
+      throw new RuntimeException("windowMs must not be negative (was " + windowMs + ")");
+    
+    coalescingWindowMs = windowMs;
+    
+    EventUploader instance = uploaderInstance.get();
+    if (instance != null)
+      instance.setCoalescingWindow(windowMs);
+  }
+  
+  /**
+   * Summarize spans with the given tag, rather than recording every start and end event. This is
+   * useful for frequent, short spans (cache lookups, database calls) whose latency distribution is
+   * of more interest than the individual spans.
+   * <p>
+   * The duration of every such span is recorded in a Histogram, which is registered as a Gauge with
+   * attributes tag (the span tag) and metric ("spanDurationNs"), so that once per sampling interval
+   * we record one event giving the count, sum, min, max, and quantiles of the span durations, in
+   * nanoseconds. In addition, a random sampleRate fraction of spans are recorded in full, as usual.
+   * Any other span which lasts at least slowThresholdMs is recorded as a single leaf event when it
+   * ends, with the attributes of its start and end events plus a durationNs attribute. Events
+   * recorded while a summarized span is open are recorded as if the span did not exist.
+   * <p>
+   * The tag is matched against the "tag" attribute passed to start(). Calling this again for the
+   * same tag replaces its settings (and starts a new histogram).
+   * 
+   * @param tag Tag of the spans to summarize.
+   * @param sampleRate Fraction of spans to record in full, from 0 to 1.
+   * @param slowThresholdMs Spans (not otherwise recorded in full) lasting at least this many
+   *     milliseconds are recorded as a leaf event. Long.MAX_VALUE disables this.
+   */
+  public static synchronized void setSpanSummarization(String tag, double sampleRate, long slowThresholdMs) {
+    if (sampleRate < 0 || sampleRate > 1)
+      throw new RuntimeException("sampleRate must be between 0 and 1 (was " + sampleRate + ")");
+    
+    long slowThresholdNs = (slowThresholdMs >= Long.MAX_VALUE / 1000000) ? Long.MAX_VALUE : slowThresholdMs * 1000000;
+    SpanSummarizer summarizer = new SpanSummarizer(sampleRate, slowThresholdNs);
+    
+    Map<String, SpanSummarizer> newSummarizers = new HashMap<String, SpanSummarizer>();
+    if (spanSummarizers != null)
+      newSummarizers.putAll(spanSummarizers);
+    
+    SpanSummarizer previous = newSummarizers.put(tag, summarizer);
+    if (previous != null)
+      Gauge.deregister(previous.durations);
+    
+    Gauge.register(summarizer.durations, new EventAttributes("tag", tag, "metric", "spanDurationNs"));
+    updateSpanSummarizers(newSummarizers);
+  }
+  
+  /**
+   * Stop summarizing spans with the given tag (see setSpanSummarization); they are once again
+   * recorded in full.
+   */
+  public static synchronized void clearSpanSummarization(String tag) {
+    if (spanSummarizers == null || !spanSummarizers.containsKey(tag))
+      return;
+    
+    Map<String, SpanSummarizer> newSummarizers = new HashMap<String, SpanSummarizer>(spanSummarizers);
+    Gauge.deregister(newSummarizers.remove(tag).durations);
+    updateSpanSummarizers(newSummarizers.isEmpty() ? null : newSummarizers);
+  }
+  
+  private static void updateSpanSummarizers(Map<String, SpanSummarizer> newSummarizers) {
+    spanSummarizers = newSummarizers;
+    
+    EventUploader instance = uploaderInstance.get();
+    if (instance != null)
+      instance.spanSummarizers = newSummarizers;
+  }
+  
+  /**
+   * Specify how batches of events are compressed when uploading them to the Scalyr Logs server.
+   * Events typically compress very well, so enabling compression greatly reduces upload bandwidth.
+   * By default, uploads are not compressed.
+   * 
+   * @param compression The encoding to apply to upload requests.
+   * @param level Compression level, from 0 (fastest) to 9 (smallest), or -1 for the default level.
+   */
+  public static synchronized void setRequestCompression(Compression compression, int level) {
+    EventUploader instance = uploaderInstance.get();
+    if (instance != null)
+      instance.logService.setRequestCompression(compression, level);
+    
+    requestCompression = compression;
+    requestCompressionLevel = level;
+  }
+  
+  /**
+   * Specify a directory in which to hold events that don't fit in memory. When the in-memory event
+   * buffer is more than half full -- typically because the Scalyr Logs server is unreachable or
+   * asking us to back off, or during a burst of events -- batches of events are moved to files in
+   * this directory, and uploaded (oldest first) once the server catches up. Events are discarded
+   * only once both the memory buffer and the disk quota are full.
+   * <p>
+   * The directory should be dedicated to this purpose, and not shared with other processes. Spill
+   * files left in the directory by a previous process (e.g. one which was killed before its spilled
+   * events could be uploaded) are uploaded in the background, under that process's session ID, and
+   * then deleted. By default, no spill directory is used.
+   * 
+   * @param directory The directory to use (created if necessary), or null to stop spilling to disk.
+   * @param quotaBytes Maximum disk space to use, in bytes.
+   */
+  public static void setSpillDirectory(File directory, long quotaBytes) {
+    setSpillDirectory(directory, quotaBytes, false, SpillLog.SyncPolicy.none);
+  }
+  
+  /**
+   * Variant of setSpillDirectory which can also use the directory as a write-ahead log. If writeAhead
+   * is true, each batch of events is appended to the spill directory before it is uploaded, and
+   * removed once the upload succeeds. If the process then dies (or is restarted) with events not
+   * yet uploaded, the next process to use the directory uploads them. Batches are written with
+   * sequential appends to memory-mapped files, so this costs little throughput, though it does
+   * roughly double the memory bandwidth used per event. Events which were recorded but not yet
+   * batched for upload when the process died -- normally, at most a second or so of events -- are
+   * still lost.
+   * 
+   * @param syncPolicy Controls how often spill files are forced to disk. With SyncPolicy.none,
+   *     batches survive a process crash, but not necessarily an operating system crash.
+   */
+  public static synchronized void setSpillDirectory(File directory, long quotaBytes, boolean writeAhead,
+      SpillLog.SyncPolicy syncPolicy) {
+    SpillLog newSpillLog = null;
+    if (directory != null) {
+      try {
+        newSpillLog = new SpillLog(directory, quotaBytes, syncPolicy);
+      } catch (IOException ex) {
+        Logging.log(Severity.warning, Logging.tagSpillFileError,
+            "Unable to open event spill directory [" + directory.getAbsolutePath() + "]", ex);
+      }
+    }
+    
+    SpillLog previousSpillLog = spillLog;
+    spillLog = newSpillLog;
+    spillWriteAhead = writeAhead;
+    
+    // The uploader hands the previous log's contents over to the new one, and closes it. If there is
+    // no uploader, the previous log holds nothing but files it hasn't yet replayed.
+    EventUploader instance = uploaderInstance.get();
+    if (instance != null)
+      instance.setSpillLog(newSpillLog, writeAhead);
+    else if (previousSpillLog != null)
+      previousSpillLog.close();
   }
   
   /**
@@ -167,6 +528,76 @@ public class Events {
     event(Severity.fatal, attributes);
   }
   
+  /**
+   * Record an event at "finest" severity, if enabled (see isEnabled). The attributes are built
+   * only if the event is enabled (see LazyEventAttributes).
+   * 
+   * @param attributes Attributes for this event.
+   */
+  public static void finest(LazyEventAttributes attributes) {
+    event(Severity.finest, attributes);
+  }
+  
+  /**
+   * Record an event at "finer" severity, if enabled (see isEnabled). The attributes are built
+   * only if the event is enabled (see LazyEventAttributes).
+   * 
+   * @param attributes Attributes for this event.
+   */
+  public static void finer(LazyEventAttributes attributes) {
+    event(Severity.finer, attributes);
+  }
+  
+  /**
+   * Record an event at "fine" severity, if enabled (see isEnabled). The attributes are built
+   * only if the event is enabled (see LazyEventAttributes).
+   * 
+   * @param attributes Attributes for this event.
+   */
+  public static void fine(LazyEventAttributes attributes) {
+    event(Severity.fine, attributes);
+  }
+  
+  /**
+   * Record an event at "info" severity, if enabled (see isEnabled). The attributes are built
+   * only if the event is enabled (see LazyEventAttributes).
+   * 
+   * @param attributes Attributes for this event.
+   */
+  public static void info(LazyEventAttributes attributes) {
+    event(Severity.info, attributes);
+  }
+  
+  /**
+   * Record an event at "warning" severity, if enabled (see isEnabled). The attributes are built
+   * only if the event is enabled (see LazyEventAttributes).
+   * 
+   * @param attributes Attributes for this event.
+   */
+  public static void warning(LazyEventAttributes attributes) {
+    event(Severity.warning, attributes);
+  }
+  
+  /**
+   * Record an event at "error" severity, if enabled (see isEnabled). The attributes are built
+   * only if the event is enabled (see LazyEventAttributes).
+   * 
+   * @param attributes Attributes for this event.
+   */
+  public static void error(LazyEventAttributes attributes) {
+    event(Severity.error, attributes);
+  }
+  
+  /**
+   * Record an event at "fatal" severity, if enabled (see isEnabled). The attributes are built
+   * only if the event is enabled (see LazyEventAttributes).
+   * 
+   * @param attributes Attributes for this event.
+   */
+  public static void fatal(LazyEventAttributes attributes) {
+    event(Severity.fatal, attributes);
+  }
+  
   /**
    * Record an event at "finest" severity. This event marks the beginning of a span; at the
    * end of the span, call end(span). Best practice is to place the end() call in a "finally"
@@ -244,6 +675,90 @@ public class Events {
     return start(Severity.fatal, attributes);
   }
   
+  /**
+   * Record an event at "finest" severity. This event marks the beginning of a span; at the
+   * end of the span, call end(span). Best practice is to place the end() call in a "finally"
+   * clause, so that spans are never left dangling. The attributes are built only if the event
+   * is enabled (see LazyEventAttributes).
+   * 
+   * @param attributes Attributes for this event.
+   */
+  public static Span startFinest(LazyEventAttributes attributes) {
+    return start(Severity.finest, attributes);
+  }
+  
+  /**
+   * Record an event at "finer" severity. This event marks the beginning of a span; at the
+   * end of the span, call end(span). Best practice is to place the end() call in a "finally"
+   * clause, so that spans are never left dangling. The attributes are built only if the event
+   * is enabled (see LazyEventAttributes).
+   * 
+   * @param attributes Attributes for this event.
+   */
+  public static Span startFiner(LazyEventAttributes attributes) {
+    return start(Severity.finer, attributes);
+  }
+  
+  /**
+   * Record an event at "fine" severity. This event marks the beginning of a span; at the
+   * end of the span, call end(span). Best practice is to place the end() call in a "finally"
+   * clause, so that spans are never left dangling. The attributes are built only if the event
+   * is enabled (see LazyEventAttributes).
+   * 
+   * @param attributes Attributes for this event.
+   */
+  public static Span startFine(LazyEventAttributes attributes) {
+    return start(Severity.fine, attributes);
+  }
+  
+  /**
+   * Record an event at "info" severity. This event marks the beginning of a span; at the
+   * end of the span, call end(span). Best practice is to place the end() call in a "finally"
+   * clause, so that spans are never left dangling. The attributes are built only if the event
+   * is enabled (see LazyEventAttributes).
+   * 
+   * @param attributes Attributes for this event.
+   */
+  public static Span startInfo(LazyEventAttributes attributes) {
+    return start(Severity.info, attributes);
+  }
+  
+  /**
+   * Record an event at "warning" severity. This event marks the beginning of a span; at the
+   * end of the span, call end(span). Best practice is to place the end() call in a "finally"
+   * clause, so that spans are never left dangling. The attributes are built only if the event
+   * is enabled (see LazyEventAttributes).
+   * 
+   * @param attributes Attributes for this event.
+   */
+  public static Span startWarning(LazyEventAttributes attributes) {
+    return start(Severity.warning, attributes);
+  }
+  
+  /**
+   * Record an event at "error" severity. This event marks the beginning of a span; at the
+   * end of the span, call end(span). Best practice is to place the end() call in a "finally"
+   * clause, so that spans are never left dangling. The attributes are built only if the event
+   * is enabled (see LazyEventAttributes).
+   * 
+   * @param attributes Attributes for this event.
+   */
+  public static Span startError(LazyEventAttributes attributes) {
+    return start(Severity.error, attributes);
+  }
+  
+  /**
+   * Record an event at "fatal" severity. This event marks the beginning of a span; at the
+   * end of the span, call end(span). Best practice is to place the end() call in a "finally"
+   * clause, so that spans are never left dangling. The attributes are built only if the event
+   * is enabled (see LazyEventAttributes).
+   * 
+   * @param attributes Attributes for this event.
+   */
+  public static Span startFatal(LazyEventAttributes attributes) {
+    return start(Severity.fatal, attributes);
+  }
+  
   /**
    * Record an event at the specified severity.
    * 
@@ -260,6 +775,69 @@ public class Events {
     }
   }
   
+  /**
+   * Record an event at the specified severity, and report whether it was recorded. If the event
+   * buffer is full, we wait for space as specified by setBufferFullWait.
+   * 
+   * @param attributes Attributes for this event.
+   * @param severity Severity for this event.
+   */
+  public static EventOutcome tryEvent(Severity severity, EventAttributes attributes) {
+    return tryEvent(severity, attributes, bufferFullWaitMs);
+  }
+  
+  /**
+   * Record an event at the specified severity, and report whether it was recorded. If the event
+   * buffer is full, wait up to maxWaitMs for space to become available (see setBufferFullWait).
+   * With maxWaitMs of 0, this fails fast: if there is no room, it returns bufferFull immediately.
+   * 
+   * @param attributes Attributes for this event.
+   * @param severity Severity for this event.
+   * @param maxWaitMs Maximum time to wait for buffer space, in milliseconds.
+   */
+  public static EventOutcome tryEvent(Severity severity, EventAttributes attributes, long maxWaitMs) {
+    try {
+      EventUploader instance = uploaderInstance.get();
+      if (instance == null)
+        return EventOutcome.notRecorded;
+      
+      switch (instance.threadEvents.get().tryEvent(severity, attributes, maxWaitMs)) {
+      case success:
+        return EventOutcome.recorded;
+      
+      case discardedByFilter:
+        return EventOutcome.discardedByFilter;
+      
+      default:
+        return EventOutcome.bufferFull;
+      }
+    } catch (Exception ex) {
+      Logging.log(Severity.warning, Logging.tagInternalError, "Internal exception in Logs client", ex);
+      
+      return EventOutcome.notRecorded;
+    }
+  }
+  
+  /**
+   * Record an event at the specified severity, if enabled (see isEnabled). The attributes are
+   * built only if the event is enabled (see LazyEventAttributes).
+   * 
+   * @param attributes Attributes for this event.
+   * @param severity Severity for this event.
+   */
+  public static void event(Severity severity, LazyEventAttributes attributes) {
+    if (severity.ordinal() < enabledThreshold)
+      return;
+    
+    try {
+      EventUploader instance = uploaderInstance.get();
+      if (instance != null)
+        instance.threadEvents.get().event(severity, attributes.build());
+    } catch (Exception ex) {
+      Logging.log(Severity.warning, Logging.tagInternalError, "Internal exception in Logs client", ex);
+    }
+  }
+  
   /**
    * Record an event at the specified severity, and with the specified timestamp.
    * <p>
@@ -305,6 +883,27 @@ public class Events {
     }
   }
   
+  /**
+   * Like start(Severity, EventAttributes), but the attributes are built only if the event is
+   * enabled (see LazyEventAttributes). A span is returned, and must be ended, either way.
+   * 
+   * @param attributes Attributes for this event.
+   * @param severity Severity for this event.
+   */
+  public static Span start(Severity severity, LazyEventAttributes attributes) {
+    try {
+      EventUploader instance = uploaderInstance.get();
+      if (instance != null)
+        return instance.threadEvents.get().start(severity, attributes);
+      else
+        return new Span(ScalyrUtil.nanoTime(), severity);
+    } catch (Exception ex) {
+      Logging.log(Severity.warning, Logging.tagInternalError, "Internal exception in Logs client", ex);
+      
+      return new Span(ScalyrUtil.nanoTime(), severity);
+    }
+  }
+  
   /**
    * Record an event, marking the end of a span initiated previously. You should call end()
    * exactly once for each span, and in the same thread as the start() call.
@@ -312,7 +911,7 @@ public class Events {
    * @param span Object returned by the corresponding call to start().
    */
   public static void end(Span span) {
-    end(span, null);
+    end(span, (EventAttributes) null);
   }
   
   /**
@@ -333,6 +932,24 @@ public class Events {
     }
   }
   
+  /**
+   * Like end(Span, EventAttributes), but the attributes are built only if the end event is
+   * enabled: that is, unless it is below the minimum severity and its start event was discarded
+   * (see LazyEventAttributes).
+   * 
+   * @param span Object returned by the corresponding call to start().
+   * @param attributes Attributes for this event.
+   */
+  public static void end(Span span, LazyEventAttributes attributes) {
+    try {
+      EventUploader instance = uploaderInstance.get();
+      if (instance != null)
+        instance.threadEvents.get().end(span, attributes);
+    } catch (Exception ex) {
+      Logging.log(Severity.warning, Logging.tagInternalError, "Internal exception in Logs client", ex);
+    }
+  }
+  
   /**
    * Force all events recorded so far to be uploaded to the server.
    * <p>
@@ -376,8 +993,15 @@ public class Events {
     if (uploaderInstance.get() != null)
       uploaderInstance.get().terminate();
     
-    EventUploader instance = new EventUploader(logService, memoryLimit, artificialSessionId, autoUpload, null);
+    EventUploader instance = new EventUploader(logService, memoryLimit, artificialSessionId, autoUpload, null,
+        offHeapEventBuffer, compactAttributeKeys);
     uploaderInstance.set(instance);
     instance.eventFilter = eventFilter;
+    instance.maxConcurrentUploads = maxConcurrentUploads;
+    instance.bufferFullWaitMs = bufferFullWaitMs;
+    instance.setCoalescingWindow(coalescingWindowMs);
+    instance.spanSummarizers = spanSummarizers;
+    instance.setSpillLog(spillLog, spillWriteAhead);
+    updateEnabledThreshold();
   }
 }
@@ -38,7 +38,9 @@ import com.scalyr.api.internal.Logging;
  */
 public abstract class Gauge {
   /**
-   * Report the current value for this gauge.
+   * Report the current value for this gauge, or null to skip this sample. The value is recorded
+   * as a "value" attribute. If the value is an EventAttributes, its attributes are recorded
+   * instead; this allows a gauge to report several related values in one event (see Histogram).
    */
   public abstract Object sample();
   
@@ -81,7 +83,12 @@ public abstract class Gauge {
           Object value = entry.getKey().sample();
           if (value != null) {
             EventAttributes attributes = new EventAttributes(entry.getValue());
-            attributes.put("value", value);
+            if (value instanceof EventAttributes) {
+              for (Map.Entry<String, Object> sampled : ((EventAttributes) value).getEntries())
+                attributes.put(sampled.getKey(), sampled.getValue());
+            } else {
+              attributes.put("value", value);
+            }
             Events.info(attributes);
           }
         } catch (Exception ex) {
@@ -0,0 +1,279 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.logs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.scalyr.api.TuningConstants;
+
+/**
+ * A Histogram records the distribution of a series of values (e.g. request latencies), and
+ * summarizes it once per sampling interval, as a Gauge. Each summary is a single event, with
+ * attributes count, sum, min, max, p50, p90, p99, and p999 covering the values recorded during
+ * that interval; no event is recorded for an interval with no values. Sample usage:
+ * 
+ * <pre>
+ *   Histogram latency = new Histogram();
+ *   Gauge.register(latency, new EventAttributes("tag", "requestLatencyNs"));
+ *   ...
+ *   long start = System.nanoTime();
+ *   handleRequest();
+ *   latency.recordNanosSince(start);
+ * </pre>
+ * 
+ * Values are counted in logarithmic buckets: each power of two is divided into 8 equal
+ * sub-buckets, so a quantile is reported to within about 6% of the true value, and a histogram
+ * occupies a few kilobytes regardless of how many values it records. Recording is lock-free,
+ * with threads spread across METRIC_STRIPES sets of buckets.
+ */
+public class Histogram extends Gauge {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  
+  /**
+   * Values below SUB_BUCKETS get a bucket each; every power of two from there to 2^62 gets
+   * SUB_BUCKETS buckets.
+   */
+  static final int BUCKET_COUNT = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+  
+  /**
+   * Indexes, in each stripe, of the stripe's sum, min, and max, which follow the bucket counts.
+   */
+  private static final int SUM_INDEX = BUCKET_COUNT;
+  private static final int MIN_INDEX = BUCKET_COUNT + 1;
+  private static final int MAX_INDEX = BUCKET_COUNT + 2;
+  
+  /**
+   * Bucket counts for each stripe, followed by the stripe's sum, min, and max. Keeping min and max
+   * per stripe means that threads recording into different stripes never contend.
+   */
+  private final AtomicLongArray[] stripes = new AtomicLongArray[TuningConstants.METRIC_STRIPES];
+  
+  public Histogram() {
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new AtomicLongArray(BUCKET_COUNT + 3);
+      stripes[i].set(MIN_INDEX, Long.MAX_VALUE);
+      stripes[i].set(MAX_INDEX, Long.MIN_VALUE);
+    }
+  }
+  
+  /**
+   * Record a value. Negative values are recorded as 0.
+   */
+  public void record(long value) {
+    if (value < 0)
+      value = 0;
+    
+    AtomicLongArray stripe = stripes[Counter.stripeIndex()];
+    stripe.incrementAndGet(bucketIndex(value));
+    stripe.addAndGet(SUM_INDEX, value);
+    
+    long currentMin;
+    while (value < (currentMin = stripe.get(MIN_INDEX)) && !stripe.compareAndSet(MIN_INDEX, currentMin, value)) {
+    }
+    
+    long currentMax;
+    while (value > (currentMax = stripe.get(MAX_INDEX)) && !stripe.compareAndSet(MAX_INDEX, currentMax, value)) {
+    }
+  }
+  
+  /**
+   * Record the time elapsed since startNanos, a value previously obtained from System.nanoTime().
+   */
+  public void recordNanosSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+  
+  /**
+   * Return the values recorded since the previous call, and reset the histogram. A value recorded
+   * concurrently with this call is counted in either this snapshot or the next, though its
+   * contribution to min and max may land in the other.
+   */
+  public Snapshot snapshotAndReset() {
+    Snapshot snapshot = new Snapshot();
+    long minValue = Long.MAX_VALUE, maxValue = Long.MIN_VALUE;
+    for (AtomicLongArray stripe : stripes) {
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        long count = stripe.getAndSet(i, 0);
+        if (count != 0) {
+          snapshot.counts[i] += count;
+          snapshot.count += count;
+        }
+      }
+      snapshot.sum += stripe.getAndSet(SUM_INDEX, 0);
+      minValue = Math.min(minValue, stripe.getAndSet(MIN_INDEX, Long.MAX_VALUE));
+      maxValue = Math.max(maxValue, stripe.getAndSet(MAX_INDEX, Long.MIN_VALUE));
+    }
+    
+    if (snapshot.count > 0) {
+      // If min or max was updated by a value that landed in a different snapshot, fall back to the
+      // bounds of the outermost buckets.
+      int first = snapshot.firstBucket(), last = snapshot.lastBucket();
+      snapshot.min = (minValue != Long.MAX_VALUE && bucketIndex(minValue) == first)
+          ? minValue : bucketLowerBound(first);
+      snapshot.max = (maxValue != Long.MIN_VALUE && bucketIndex(maxValue) == last)
+          ? maxValue : bucketLowerBound(last) + bucketWidth(last) - 1;
+    }
+    
+    return snapshot;
+  }
+  
+  /**
+   * Return a summary of the values recorded since the previous sample, as attributes for the
+   * sampling event, and reset the histogram. Returns null if no values were recorded.
+   */
+  @Override public Object sample() {
+    Snapshot snapshot = snapshotAndReset();
+    if (snapshot.getCount() == 0)
+      return null;
+    
+    return snapshot.toAttributes();
+  }
+  
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS)
+      return (int) value;
+    
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+  }
+  
+  static long bucketLowerBound(int index) {
+    if (index < SUB_BUCKETS)
+      return index;
+    
+    int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+    long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+    return (1L << exponent) + (subBucket << (exponent - SUB_BUCKET_BITS));
+  }
+  
+  static long bucketWidth(int index) {
+    if (index < SUB_BUCKETS)
+      return 1;
+    
+    int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+    return 1L << (exponent - SUB_BUCKET_BITS);
+  }
+  
+  /**
+   * The values recorded by a Histogram over some period. Snapshots can be merged, e.g. to combine
+   * several intervals, or histograms from several sources.
+   */
+  public static class Snapshot {
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+    
+    /**
+     * Construct an empty snapshot.
+     */
+    public Snapshot() {
+    }
+    
+    /**
+     * Add the values in the given snapshot to this one.
+     */
+    public void merge(Snapshot other) {
+      for (int i = 0; i < BUCKET_COUNT; i++)
+        counts[i] += other.counts[i];
+      
+      count += other.count;
+      sum += other.sum;
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+    }
+    
+    public long getCount() {
+      return count;
+    }
+    
+    public long getSum() {
+      return sum;
+    }
+    
+    /**
+     * Return the smallest value recorded, or Long.MAX_VALUE if the snapshot is empty.
+     */
+    public long getMin() {
+      return min;
+    }
+    
+    /**
+     * Return the largest value recorded, or Long.MIN_VALUE if the snapshot is empty.
+     */
+    public long getMax() {
+      return max;
+    }
+    
+    /**
+     * Return the approximate value at the given quantile (between 0 and 1): the midpoint of the
+     * bucket holding that value, clamped to [min, max]. Returns 0 if the snapshot is empty.
+     */
+    public long getValueAtQuantile(double quantile) {
+      if (count == 0)
+        return 0;
+      
+      long rank = Math.max(1, (long) Math.ceil(quantile * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          long midpoint = bucketLowerBound(i) + (bucketWidth(i) - 1) / 2;
+          return Math.max(min, Math.min(max, midpoint));
+        }
+      }
+      
+      return max;
+    }
+    
+    /**
+     * Return attributes summarizing this snapshot: count, sum, min, max, p50, p90, p99, and p999.
+     */
+    public EventAttributes toAttributes() {
+      EventAttributes attributes = new EventAttributes();
+      attributes.put("count", count);
+      attributes.put("sum", sum);
+      attributes.put("min", min);
+      attributes.put("max", max);
+      attributes.put("p50", getValueAtQuantile(0.5));
+      attributes.put("p90", getValueAtQuantile(0.9));
+      attributes.put("p99", getValueAtQuantile(0.99));
+      attributes.put("p999", getValueAtQuantile(0.999));
+      return attributes;
+    }
+    
+    private int firstBucket() {
+      for (int i = 0; i < BUCKET_COUNT; i++)
+        if (counts[i] != 0)
+          return i;
+      
+      return 0;
+    }
+    
+    private int lastBucket() {
+      for (int i = BUCKET_COUNT - 1; i >= 0; i--)
+        if (counts[i] != 0)
+          return i;
+      
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.logs;
+
+/**
+ * Builds the attributes for an event on demand. Passing a LazyEventAttributes to Events (in place of
+ * an EventAttributes) defers the cost of building the attributes until we know that the event is
+ * enabled (see Events.isEnabled). Sample usage:
+ * 
+ * <pre>
+ *   Events.fine(new LazyEventAttributes(){
+ *     @Override public EventAttributes build() {
+ *       return new EventAttributes("tag", "cacheMiss", "key", describe(key));
+ *   }});
+ * </pre>
+ * 
+ * build() is called once the event passes the minimum severity check (Events.isEnabled(Severity)),
+ * and before the rest of the event filter runs: decisions such as discarding by tag (RuleBasedFilter)
+ * or by rate (RateLimitingFilter) need the attributes. So the attributes may be built for an event
+ * which the filter then discards. When the tag is known up front, checking
+ * Events.isEnabled(Severity, String) first avoids this for tags which the filter disables:
+ * 
+ * <pre>
+ *   if (Events.isEnabled(Severity.fine, "cacheMiss"))
+ *     Events.fine(new LazyEventAttributes(){ ... });
+ * </pre>
+ * 
+ * A span's end event is built unless it is below the minimum severity and its start event was
+ * discarded.
+ */
+public abstract class LazyEventAttributes {
+  /**
+   * Return the attributes for the event. Invoked at most once, in the thread that is recording
+   * the event.
+   */
+  public abstract EventAttributes build();
+}
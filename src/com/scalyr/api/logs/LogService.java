@@ -17,8 +17,12 @@
 
 package com.scalyr.api.logs;
 
+import java.util.concurrent.CompletableFuture;
+
+import com.scalyr.api.Compression;
 import com.scalyr.api.ScalyrException;
 import com.scalyr.api.ScalyrNetworkException;
+import com.scalyr.api.internal.HttpTransport;
 import com.scalyr.api.internal.ScalyrService;
 import com.scalyr.api.json.JSONArray;
 import com.scalyr.api.json.JSONObject;
@@ -44,6 +48,14 @@ public class LogService extends ScalyrService {
     return (LogService) super.setServerAddress(value);
   }
   
+  public @Override synchronized LogService setRequestCompression(Compression compression, int level) {
+    return (LogService) super.setRequestCompression(compression, level);
+  }
+  
+  public @Override synchronized LogService setTransport(HttpTransport value) {
+    return (LogService) super.setTransport(value);
+  }
+  
   /**
    * Upload a batch of events to the Scalyr Logs service. See the
    * <a href="https://log.scalyr.com/logHttpApi">HTTP API documentation</a> for a detailed description
@@ -63,6 +75,41 @@ public class LogService extends ScalyrService {
   public String uploadEvents(String sessionId, JSONObject sessionInfo,
       JSONStreamAware events, JSONArray threadInfos)
       throws ScalyrException, ScalyrNetworkException {
+    return uploadEvents(sessionId, (JSONStreamAware) sessionInfo, events, nonEmpty(threadInfos));
+  }
+  
+  /**
+   * Variant of uploadEvents which accepts sessionInfo and threadInfos in any serializable form,
+   * e.g. as RawJson which the caller has serialized in advance. sessionInfo and threadInfos may
+   * be null. EventUploader uses this variant.
+   */
+  public String uploadEvents(String sessionId, JSONStreamAware sessionInfo,
+      JSONStreamAware events, JSONStreamAware threadInfos)
+      throws ScalyrException, ScalyrNetworkException {
+    return invokeApi("addEvents", uploadEventsParameters(sessionId, sessionInfo, events, threadInfos));
+  }
+  
+  /**
+   * Asynchronous variant of uploadEvents. Returns immediately, with a future for the server's
+   * response (see ScalyrService.invokeApiAsync). The events are serialized before this method
+   * returns, so the caller may modify or discard them as soon as it returns.
+   */
+  public CompletableFuture<String> uploadEventsAsync(String sessionId, JSONObject sessionInfo,
+      JSONStreamAware events, JSONArray threadInfos) {
+    return uploadEventsAsync(sessionId, (JSONStreamAware) sessionInfo, events, nonEmpty(threadInfos));
+  }
+  
+  public CompletableFuture<String> uploadEventsAsync(String sessionId, JSONStreamAware sessionInfo,
+      JSONStreamAware events, JSONStreamAware threadInfos) {
+    return invokeApiAsync("addEvents", uploadEventsParameters(sessionId, sessionInfo, events, threadInfos));
+  }
+  
+  private static JSONStreamAware nonEmpty(JSONArray threadInfos) {
+    return (threadInfos != null && threadInfos.size() > 0) ? threadInfos : null;
+  }
+  
+  private JSONObject uploadEventsParameters(String sessionId, JSONStreamAware sessionInfo,
+      JSONStreamAware events, JSONStreamAware threadInfos) {
     JSONObject parameters = new JSONObject();
     
     parameters.put("token", apiToken);
@@ -70,10 +117,10 @@ public class LogService extends ScalyrService {
     if (sessionInfo != null)
       parameters.put("sessionInfo", sessionInfo);
     parameters.put("events", events);
-    if (threadInfos != null && threadInfos.size() > 0)
+    if (threadInfos != null)
       parameters.put("threads", threadInfos);
     
-    return invokeApi("addEvents", parameters);
+    return parameters;
   }
   
   public static final int SPAN_TYPE_LEAF  = 0;
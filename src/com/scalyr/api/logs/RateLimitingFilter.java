@@ -0,0 +1,379 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.logs;
+
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.scalyr.api.Callback;
+import com.scalyr.api.ScalyrDeadlineException;
+import com.scalyr.api.TuningConstants;
+import com.scalyr.api.internal.Logging;
+import com.scalyr.api.json.JSONObject;
+import com.scalyr.api.knobs.Knob;
+
+/**
+ * An EventFilter which limits the rate of events, and/or samples them, separately for each value
+ * of an attribute (normally "tag"). This keeps a single misbehaving code path -- say, one stuck in
+ * an error loop -- from filling the event buffer and forcing other events to be discarded.
+ * <p>
+ * The limits are specified by a Knob, whose value is a JSON object like this:
+ * 
+ * <pre>
+ *   {
+ *     attribute: "tag",
+ *     default: {eventsPerSecond: 100, burst: 1000},
+ *     limits: {
+ *       "db/error":   {eventsPerSecond: 1, burst: 20},
+ *       "cache/miss": {sampleRate: 0.01}
+ *     }
+ *   }
+ * </pre>
+ * 
+ * Each limit has these (optional) fields:
+ * <ul>
+ *   <li>eventsPerSecond: sustained rate at which events are let through. Omit for no rate limit.
+ *   <li>burst: number of events which may be let through at once, after a quiet period. Defaults
+ *       to eventsPerSecond (or 1, if that is less).
+ *   <li>sampleRate: fraction of events, chosen at random, to let through (before applying the
+ *       rate limit). Defaults to 1.
+ * </ul>
+ * Events whose attribute value is not listed under "limits" use the "default" limit; if there is
+ * no default, they are not limited. Events which lack the attribute are not limited.
+ * <p>
+ * Only leaf events are limited. Span start and end events always pass, so that spans remain
+ * balanced.
+ * <p>
+ * Every RATE_LIMIT_SUMMARY_INTERVAL_MS, we record an event (tag "eventsSuppressed") for each
+ * attribute value whose events were suppressed, giving the counts. Call cancel() to stop these
+ * when the filter is no longer in use.
+ */
+public class RateLimitingFilter extends EventFilter {
+  /**
+   * Value of the "tag" attribute for our summary events. These are never suppressed.
+   */
+  public static final String SUMMARY_TAG = "eventsSuppressed";
+  
+  /**
+   * Attribute value reported in summary events for the limiter shared by default-limited values
+   * beyond MAX_RATE_LIMITERS.
+   */
+  private static final String OTHER_VALUES = "(other)";
+  
+  /**
+   * Timer used to record summary events. Allocated when the first filter is constructed.
+   */
+  private static Timer summaryTimer = null;
+  
+  private final Knob configKnob;
+  
+  private final Callback<Knob> configListener = new Callback<Knob>(){
+    @Override public void run(Knob value) {
+      updateConfig();
+    }};
+  
+  /**
+   * The most recently parsed configuration. Never null.
+   */
+  private volatile Config config = new Config("tag", null, new ConcurrentHashMap<String, Limit>());
+  
+  /**
+   * Limiter for each attribute value we've seen. Values which fall back to the default limit get
+   * one only while there are fewer than MAX_RATE_LIMITERS; values listed under "limits" always do
+   * (there are only as many of those as the configuration lists).
+   */
+  private final Map<String, Limiter> limiters = new ConcurrentHashMap<String, Limiter>();
+  
+  /**
+   * Limiter shared by all default-limited attribute values once limiters is full.
+   */
+  private final Limiter otherLimiter = new Limiter(OTHER_VALUES, null);
+  
+  private final TimerTask summaryTask;
+  
+  /**
+   * Construct a filter whose limits are given by the specified Knob. See the class comment for the
+   * format. A missing or invalid value is treated as no limits. The filter tracks changes to the
+   * Knob's value.
+   */
+  public RateLimitingFilter(Knob configKnob) {
+    this.configKnob = configKnob;
+    
+    configKnob.addUpdateListener(configListener);
+    
+    // Don't block waiting for the configuration file; if it isn't available yet, the update
+    // listener will pick it up.
+    try {
+      configKnob.getWithTimeout(0L);
+      updateConfig();
+    } catch (ScalyrDeadlineException ex) {
+    }
+    
+    summaryTask = new TimerTask(){
+      @Override public void run() {
+        recordSummary();
+      }};
+    synchronized (RateLimitingFilter.class) {
+      if (summaryTimer == null)
+        summaryTimer = new Timer("RateLimitSummaryTimer", true);
+      summaryTimer.schedule(summaryTask, TuningConstants.RATE_LIMIT_SUMMARY_INTERVAL_MS,
+          TuningConstants.RATE_LIMIT_SUMMARY_INTERVAL_MS);
+    }
+  }
+  
+  /**
+   * Stop recording summary events, and stop tracking the configuration Knob.
+   */
+  public void cancel() {
+    summaryTask.cancel();
+    configKnob.removeUpdateListener(configListener);
+  }
+  
+  @Override public Decision decide(long timestampNs, int spanType, Severity severity, EventAttributes attributes,
+      boolean isTopLevel, boolean inDiscardedSpan) {
+    if (spanType != LogService.SPAN_TYPE_LEAF)
+      return Decision.keep;
+    
+    Config localConfig = config;
+    Object value = attributes.get(localConfig.attribute);
+    if (value == null || SUMMARY_TAG.equals(attributes.get("tag")))
+      return Decision.keep;
+    
+    String key = value.toString();
+    Limiter limiter = limiters.get(key);
+    if (limiter == null) {
+      Limit limit = localConfig.limitFor(key);
+      if (limit == null)
+        return Decision.keep;
+      
+      limiter = getOrCreateLimiter(key, limit, localConfig.limits.containsKey(key));
+    }
+    
+    return limiter.admit(timestampNs) ? Decision.keep : Decision.discard;
+  }
+  
+  @Override public void filter(FilterInput input, FilterOutput output) {
+    // EventUploader calls decide() first, so this is reached only if filter() is invoked directly.
+    Decision decision = decide(input.timestampNs, input.spanType, input.severity, input.attributes,
+        input.isTopLevel, input.inDiscardedSpan);
+    if (decision == Decision.discard)
+      output.discardEvent = true;
+  }
+  
+  /**
+   * Return the limiter for the given attribute value, creating it if necessary. A value with its
+   * own configured limit always gets its own limiter, so that its limit is honored however many
+   * other values we've seen.
+   */
+  private Limiter getOrCreateLimiter(String key, Limit limit, boolean isConfigured) {
+    synchronized (limiters) {
+      Limiter limiter = limiters.get(key);
+      if (limiter == null) {
+        if (!isConfigured && limiters.size() >= TuningConstants.MAX_RATE_LIMITERS)
+          return otherLimiter;
+        
+        limiter = new Limiter(key, limit);
+        limiters.put(key, limiter);
+      }
+      return limiter;
+    }
+  }
+  
+  /**
+   * Parse the current Knob value, and apply it to our limiters.
+   */
+  private void updateConfig() {
+    Config newConfig;
+    try {
+      newConfig = Config.parse(configKnob.get());
+    } catch (RuntimeException ex) {
+      Logging.log(Severity.warning, Logging.tagEventFilterConfigInvalid,
+          "RateLimitingFilter: ignoring invalid configuration [" + configKnob.get() + "]", ex);
+      return;
+    }
+    
+    synchronized (limiters) {
+      config = newConfig;
+      
+      // A value whose limit has been removed is no longer limited. Its limiter is dropped
+      // after its counts are next reported.
+      for (Limiter limiter : limiters.values())
+        limiter.limit = newConfig.limitFor(limiter.attributeValue);
+      otherLimiter.limit = newConfig.defaultLimit;
+    }
+  }
+  
+  /**
+   * Record an event for each limiter which has suppressed events since the last summary. Invoked
+   * every RATE_LIMIT_SUMMARY_INTERVAL_MS, and directly by tests.
+   */
+  void recordSummary() {
+    try {
+      synchronized (limiters) {
+        for (Limiter limiter : limiters.values().toArray(new Limiter[0])) {
+          limiter.recordSummary();
+          if (limiter.limit == null)
+            limiters.remove(limiter.attributeValue);
+        }
+      }
+      otherLimiter.recordSummary();
+    } catch (Exception ex) {
+      Logging.log(Severity.warning, Logging.tagInternalError, "Exception in RateLimitingFilter summary", ex);
+    }
+  }
+  
+  /**
+   * Parameters for one limit; see the class comment. Immutable.
+   */
+  private static class Limit {
+    /**
+     * Minimum interval between events, in nanoseconds, at the sustained rate. 0 for no rate limit.
+     */
+    final long intervalNs;
+    
+    /**
+     * How far the limiter's schedule may run ahead of the current time; intervalNs * burst.
+     */
+    final long burstNs;
+    
+    final double sampleRate;
+    
+    Limit(JSONObject json) {
+      double eventsPerSecond = getDouble(json, "eventsPerSecond", 0);
+      double burst = getDouble(json, "burst", Math.max(eventsPerSecond, 1));
+      sampleRate = getDouble(json, "sampleRate", 1);
+      
+      if (eventsPerSecond < 0 || burst < 1 || sampleRate < 0 || sampleRate > 1)
+        throw new RuntimeException("Invalid limit " + json);
+      
+      intervalNs = (eventsPerSecond > 0) ? (long) (1E9 / eventsPerSecond) : 0;
+      burstNs = (long) (intervalNs * burst);
+    }
+    
+    private static double getDouble(JSONObject json, String key, double defaultValue) {
+      Object value = json.get(key);
+      return (value != null) ? ((Number) value).doubleValue() : defaultValue;
+    }
+  }
+  
+  /**
+   * A parsed configuration; see the class comment. Immutable.
+   */
+  private static class Config {
+    final String attribute;
+    final Limit defaultLimit;
+    final Map<String, Limit> limits;
+    
+    Config(String attribute, Limit defaultLimit, Map<String, Limit> limits) {
+      this.attribute = attribute;
+      this.defaultLimit = defaultLimit;
+      this.limits = limits;
+    }
+    
+    Limit limitFor(String attributeValue) {
+      Limit limit = limits.get(attributeValue);
+      return (limit != null) ? limit : defaultLimit;
+    }
+    
+    static Config parse(Object knobValue) {
+      Map<String, Limit> limits = new ConcurrentHashMap<String, Limit>();
+      if (knobValue == null)
+        return new Config("tag", null, limits);
+      
+      JSONObject json = (JSONObject) knobValue;
+      String attribute = json.containsKey("attribute") ? (String) json.get("attribute") : "tag";
+      Limit defaultLimit = json.containsKey("default") ? new Limit((JSONObject) json.get("default")) : null;
+      
+      JSONObject limitsJson = (JSONObject) json.get("limits");
+      if (limitsJson != null)
+        for (Map.Entry<String, Object> entry : limitsJson.entrySet())
+          limits.put(entry.getKey(), new Limit((JSONObject) entry.getValue()));
+      
+      return new Config(attribute, defaultLimit, limits);
+    }
+  }
+  
+  /**
+   * Applies a Limit to the events for one attribute value. The rate limit is implemented as a
+   * token bucket, in the form of the generic cell rate algorithm: we track the time at which the
+   * bucket will next be full (theoreticalArrivalNs), and admit an event if that is no more than
+   * burstNs in the future. This needs only a single compare-and-set per event.
+   */
+  private static class Limiter {
+    final String attributeValue;
+    
+    /**
+     * Null if this value is no longer limited.
+     */
+    volatile Limit limit;
+    
+    private final AtomicLong theoreticalArrivalNs = new AtomicLong(Long.MIN_VALUE);
+    
+    /**
+     * Events suppressed by the rate limit, and by sampling, since the last summary.
+     */
+    private final AtomicLong rateLimitedCount = new AtomicLong();
+    private final AtomicLong sampledOutCount = new AtomicLong();
+    
+    Limiter(String attributeValue, Limit limit) {
+      this.attributeValue = attributeValue;
+      this.limit = limit;
+    }
+    
+    /**
+     * Return true if an event at the given time should be let through.
+     */
+    boolean admit(long nowNs) {
+      Limit localLimit = limit;
+      if (localLimit == null)
+        return true;
+      
+      if (localLimit.sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= localLimit.sampleRate) {
+        sampledOutCount.incrementAndGet();
+        return false;
+      }
+      
+      if (localLimit.intervalNs == 0)
+        return true;
+      
+      while (true) {
+        long tat = theoreticalArrivalNs.get();
+        long newTat = Math.max(tat, nowNs) + localLimit.intervalNs;
+        if (newTat - nowNs > localLimit.burstNs) {
+          rateLimitedCount.incrementAndGet();
+          return false;
+        }
+        
+        if (theoreticalArrivalNs.compareAndSet(tat, newTat))
+          return true;
+      }
+    }
+    
+    void recordSummary() {
+      long rateLimited = rateLimitedCount.getAndSet(0);
+      long sampledOut = sampledOutCount.getAndSet(0);
+      if (rateLimited > 0 || sampledOut > 0)
+        Events.warning(new EventAttributes("tag", SUMMARY_TAG, "value", attributeValue,
+            "rateLimited", rateLimited, "sampledOut", sampledOut));
+    }
+  }
+}
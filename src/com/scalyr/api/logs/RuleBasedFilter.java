@@ -0,0 +1,351 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.logs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.scalyr.api.Callback;
+import com.scalyr.api.ScalyrDeadlineException;
+import com.scalyr.api.internal.Logging;
+import com.scalyr.api.json.JSONArray;
+import com.scalyr.api.json.JSONObject;
+import com.scalyr.api.knobs.Knob;
+
+/**
+ * An EventFilter which keeps or discards events according to a list of rules, given by a Knob.
+ * This allows logging to be turned up or down in production by editing a configuration file.
+ * The Knob's value is a JSON array of rules, like this:
+ * 
+ * <pre>
+ *   [
+ *     {tag: "db/query", maxSeverity: "fine", action: "discard"},
+ *     {tagPrefix: "cache/", attributes: {hit: true}, action: "discard"},
+ *     {minSeverity: "info", action: "keep"},
+ *     {topLevel: false, action: "discard"}
+ *   ]
+ * </pre>
+ * 
+ * Each event is checked against the rules in order, and the first matching rule decides the
+ * event. Events which match no rule are kept. A rule matches if all of the conditions it
+ * specifies are met:
+ * <ul>
+ *   <li>minSeverity, maxSeverity: the event's severity is in this range (inclusive).
+ *   <li>tag: the event's "tag" attribute equals this string.
+ *   <li>tagPrefix: the event's "tag" attribute begins with this string.
+ *   <li>attributes: for each field in this object, the event has an attribute of that name with
+ *       the same value (numbers are compared numerically). A null value matches events which lack
+ *       the attribute.
+ *   <li>topLevel: true matches events outside of any span; false, events within a span.
+ * </ul>
+ * Discarding a span start event also discards all events within the span, and the span's end
+ * event; rules are not consulted for these.
+ * <p>
+ * Each time the Knob's value changes, the rules are compiled into a table indexed by tag and
+ * severity, in which most events are decided by two lookups. Evaluating the rules allocates
+ * nothing. Severities which every rule discards are published via setMinimumSeverity, so that
+ * Events.isEnabled reports them as disabled. If the Knob's value is invalid, we log a warning
+ * and keep using the previous rules.
+ */
+public class RuleBasedFilter extends EventFilter {
+  private final Knob rulesKnob;
+  
+  private final Callback<Knob> rulesListener = new Callback<Knob>(){
+    @Override public void run(Knob value) {
+      updateRules();
+    }};
+  
+  /**
+   * The compiled form of the most recent rules. Never null.
+   */
+  private volatile CompiledRules compiledRules = new CompiledRules(new ArrayList<Rule>());
+  
+  /**
+   * Construct a filter whose rules are given by the specified Knob. See the class comment for the
+   * format. Until the Knob's configuration file has been retrieved, all events are kept.
+   */
+  public RuleBasedFilter(Knob rulesKnob) {
+    this.rulesKnob = rulesKnob;
+    
+    rulesKnob.addUpdateListener(rulesListener);
+    
+    // Don't block waiting for the configuration file; if it isn't available yet, the update
+    // listener will pick it up.
+    try {
+      rulesKnob.getWithTimeout(0L);
+      updateRules();
+    } catch (ScalyrDeadlineException ex) {
+    }
+  }
+  
+  /**
+   * Stop tracking changes to the rules Knob.
+   */
+  public void cancel() {
+    rulesKnob.removeUpdateListener(rulesListener);
+  }
+  
+  @Override public Decision decide(long timestampNs, int spanType, Severity severity, EventAttributes attributes,
+      boolean isTopLevel, boolean inDiscardedSpan) {
+    if (inDiscardedSpan)
+      return Decision.discard;
+    
+    if (spanType == LogService.SPAN_TYPE_END)
+      return Decision.keep;
+    
+    Object tag = attributes.get("tag");
+    Node node = compiledRules.nodeFor(tag);
+    Decision decision = node.constantDecisions[severity.ordinal()];
+    if (decision != null)
+      return decision;
+    
+    for (Rule rule : node.rules[severity.ordinal()])
+      if (rule.matches(tag, attributes, isTopLevel, node.checkTagPrefix))
+        return rule.discard ? Decision.discard : Decision.keep;
+    
+    return Decision.keep;
+  }
+  
+  @Override public void filter(FilterInput input, FilterOutput output) {
+    // Not used by EventUploader, as decide() never returns invokeFilter; provided for callers
+    // which invoke filters directly.
+    Decision decision = decide(input.timestampNs, input.spanType, input.severity, input.attributes, input.isTopLevel,
+        input.inDiscardedSpan);
+    if (decision == Decision.discard)
+      output.discardEvent = true;
+  }
+  
+  @Override public boolean isTagEnabled(Severity severity, String tag) {
+    return compiledRules.nodeFor(tag).constantDecisions[severity.ordinal()] != Decision.discard;
+  }
+  
+  /**
+   * Parse and compile the current Knob value.
+   */
+  private void updateRules() {
+    Object knobValue = rulesKnob.get();
+    CompiledRules newRules;
+    try {
+      List<Rule> rules = new ArrayList<Rule>();
+      if (knobValue != null)
+        for (Object ruleJson : (JSONArray) knobValue)
+          rules.add(new Rule((JSONObject) ruleJson));
+      
+      newRules = new CompiledRules(rules);
+    } catch (RuntimeException ex) {
+      Logging.log(Severity.warning, Logging.tagEventFilterConfigInvalid,
+          "RuleBasedFilter: ignoring invalid rules [" + knobValue + "]", ex);
+      return;
+    }
+    
+    synchronized (this) {
+      compiledRules = newRules;
+      setMinimumSeverity(newRules.minimumSeverity);
+    }
+  }
+  
+  /**
+   * One rule from the configuration. Immutable.
+   */
+  private static class Rule {
+    final boolean discard;
+    
+    final int minSeverity, maxSeverity;
+    
+    /**
+     * Null if the rule doesn't specify a tag (or tag prefix).
+     */
+    final String tag, tagPrefix;
+    
+    /**
+     * Null if the rule doesn't specify topLevel.
+     */
+    final Boolean topLevel;
+    
+    /**
+     * Attribute names and values from the rule's "attributes" field, in parallel arrays.
+     */
+    final String[] attributeNames;
+    final Object[] attributeValues;
+    
+    Rule(JSONObject json) {
+      Object action = json.get("action");
+      if ("discard".equals(action))
+        discard = true;
+      else if ("keep".equals(action))
+        discard = false;
+      else
+        throw new RuntimeException("Rule has invalid action: " + json);
+      
+      minSeverity = json.containsKey("minSeverity") ? Severity.valueOf((String) json.get("minSeverity")).ordinal() : 0;
+      maxSeverity = json.containsKey("maxSeverity") ? Severity.valueOf((String) json.get("maxSeverity")).ordinal()
+          : Severity.values().length - 1;
+      tag = (String) json.get("tag");
+      tagPrefix = (String) json.get("tagPrefix");
+      topLevel = (Boolean) json.get("topLevel");
+      
+      JSONObject attributes = (JSONObject) json.get("attributes");
+      if (attributes == null)
+        attributes = new JSONObject();
+      attributeNames = attributes.keySet().toArray(new String[attributes.size()]);
+      attributeValues = new Object[attributeNames.length];
+      for (int i = 0; i < attributeNames.length; i++)
+        attributeValues[i] = attributes.get(attributeNames[i]);
+    }
+    
+    /**
+     * Return true if this rule can be decided from the tag and severity alone (given that those
+     * match). checkTagPrefix is as for Node.
+     */
+    boolean isUnconditional(boolean checkTagPrefix) {
+      return topLevel == null && attributeNames.length == 0 && (tagPrefix == null || !checkTagPrefix);
+    }
+    
+    /**
+     * Return true if this rule matches an event, given that its tag and severity match. If
+     * checkTagPrefix is true, we also check tagPrefix.
+     */
+    boolean matches(Object tag, EventAttributes attributes, boolean isTopLevel, boolean checkTagPrefix) {
+      if (checkTagPrefix && tagPrefix != null && !(tag instanceof String && ((String) tag).startsWith(tagPrefix)))
+        return false;
+      
+      if (topLevel != null && topLevel.booleanValue() != isTopLevel)
+        return false;
+      
+      for (int i = 0; i < attributeNames.length; i++)
+        if (!valuesEqual(attributes.get(attributeNames[i]), attributeValues[i]))
+          return false;
+      
+      return true;
+    }
+    
+    private static boolean valuesEqual(Object eventValue, Object ruleValue) {
+      if (eventValue instanceof Number && ruleValue instanceof Number)
+        return ((Number) eventValue).doubleValue() == ((Number) ruleValue).doubleValue();
+      
+      return (eventValue == null) ? ruleValue == null : eventValue.equals(ruleValue);
+    }
+  }
+  
+  /**
+   * The rules which apply to events with a given tag, for each severity.
+   */
+  private static class Node {
+    /**
+     * Indexed by severity ordinal: the rules which may match, in order. Rules which can't match
+     * (because of their tag or severity) are omitted, as are any rules after an unconditional one.
+     */
+    final Rule[][] rules;
+    
+    /**
+     * Indexed by severity ordinal: the decision for all events with that severity, or null if
+     * the rules must be evaluated.
+     */
+    final Decision[] constantDecisions;
+    
+    /**
+     * True if Rule.tagPrefix must be checked during evaluation. This is false for nodes built
+     * for a particular tag, where it was checked during compilation.
+     */
+    final boolean checkTagPrefix;
+    
+    /**
+     * Build a node for the given tag, or (if tag is null) for events whose tag isn't named by
+     * any rule.
+     */
+    Node(List<Rule> allRules, String tag) {
+      checkTagPrefix = (tag == null);
+      
+      int severityCount = Severity.values().length;
+      rules = new Rule[severityCount][];
+      constantDecisions = new Decision[severityCount];
+      
+      for (int severity = 0; severity < severityCount; severity++) {
+        List<Rule> applicable = new ArrayList<Rule>();
+        for (Rule rule : allRules) {
+          if (severity < rule.minSeverity || severity > rule.maxSeverity)
+            continue;
+          if (rule.tag != null && !rule.tag.equals(tag))
+            continue;
+          if (tag != null && rule.tagPrefix != null && !tag.startsWith(rule.tagPrefix))
+            continue;
+          
+          applicable.add(rule);
+          if (rule.isUnconditional(checkTagPrefix))
+            break;
+        }
+        
+        rules[severity] = applicable.toArray(new Rule[applicable.size()]);
+        if (applicable.isEmpty())
+          constantDecisions[severity] = Decision.keep;
+        else if (applicable.get(0).isUnconditional(checkTagPrefix))
+          constantDecisions[severity] = applicable.get(0).discard ? Decision.discard : Decision.keep;
+      }
+    }
+  }
+  
+  /**
+   * A compiled set of rules: a Node for each tag named by some rule, and one for all other
+   * events. Immutable.
+   */
+  private static class CompiledRules {
+    final Map<String, Node> nodesByTag = new HashMap<String, Node>();
+    final Node otherNode;
+    
+    /**
+     * The lowest severity which some events may have without being discarded.
+     */
+    final Severity minimumSeverity;
+    
+    CompiledRules(List<Rule> rules) {
+      Set<String> tags = new HashSet<String>();
+      for (Rule rule : rules)
+        if (rule.tag != null)
+          tags.add(rule.tag);
+      
+      for (String tag : tags)
+        nodesByTag.put(tag, new Node(rules, tag));
+      otherNode = new Node(rules, null);
+      
+      int minimum = 0;
+      while (minimum < Severity.values().length - 1 && discardsAll(minimum))
+        minimum++;
+      minimumSeverity = Severity.values()[minimum];
+    }
+    
+    private boolean discardsAll(int severity) {
+      if (otherNode.constantDecisions[severity] != Decision.discard)
+        return false;
+      
+      for (Node node : nodesByTag.values())
+        if (node.constantDecisions[severity] != Decision.discard)
+          return false;
+      
+      return true;
+    }
+    
+    Node nodeFor(Object tag) {
+      Node node = (tag != null) ? nodesByTag.get(tag) : null;
+      return (node != null) ? node : otherNode;
+    }
+  }
+}
@@ -31,8 +31,27 @@ public class Span {
    */
   final Severity severity;
   
+  /**
+   * If not null, then the span's tag is being summarized (see Events.setSpanSummarization), and its
+   * duration is recorded here when it ends.
+   */
+  final SpanSummarizer summarizer;
+  
+  /**
+   * Attributes of the start event, if that event was not recorded because the span is only being
+   * summarized; otherwise null. In that case startTime is a ScalyrUtil.nanoTime() reading, rather
+   * than an event timestamp.
+   */
+  final EventAttributes summarizedStartAttributes;
+  
   Span(long startTime, Severity severity) {
+    this(startTime, severity, null, null);
+  }
+  
+  Span(long startTime, Severity severity, SpanSummarizer summarizer, EventAttributes summarizedStartAttributes) {
     this.startTime = startTime;
     this.severity = severity;
+    this.summarizer = summarizer;
+    this.summarizedStartAttributes = summarizedStartAttributes;
   }
 }
@@ -0,0 +1,55 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.scalyr.api.logs;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Summarization settings and duration histogram for spans with a particular tag; see
+ * Events.setSpanSummarization.
+ */
+class SpanSummarizer {
+  /**
+   * Fraction of spans, from 0 to 1, which are recorded in full.
+   */
+  private final double sampleRate;
+  
+  /**
+   * Spans which are not recorded in full, but last at least this long, are recorded as a single
+   * leaf event.
+   */
+  final long slowThresholdNs;
+  
+  /**
+   * Durations of all spans with this tag, in nanoseconds. Registered as a Gauge, so that a summary
+   * is recorded once per sampling interval.
+   */
+  final Histogram durations = new Histogram();
+  
+  SpanSummarizer(double sampleRate, long slowThresholdNs) {
+    this.sampleRate = sampleRate;
+    this.slowThresholdNs = slowThresholdNs;
+  }
+  
+  /**
+   * Return true if a span starting now should be recorded in full.
+   */
+  boolean sampleFullSpan() {
+    return sampleRate >= 1 || (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+  }
+}
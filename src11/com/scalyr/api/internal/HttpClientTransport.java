@@ -0,0 +1,106 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.scalyr.api.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import com.scalyr.api.TuningConstants;
+import com.scalyr.api.logs.Severity;
+
+/**
+ * HttpTransport implementation based on java.net.http.HttpClient (Java 11 and later). This class is
+ * compiled separately from the rest of the library, for Java 11; ScalyrService loads it by name,
+ * and falls back to HttpURLConnectionTransport on older JVMs.
+ * <p>
+ * A single HttpClient holds the connection pool for all requests issued through this transport.
+ * Where the server supports HTTP/2, concurrent requests to it are multiplexed over one connection,
+ * so pipelined event uploads and knob long-polls don't each need a connection of their own. With
+ * HTTP/1.1, the client keeps idle connections open for reuse. postAsync doesn't block any thread
+ * while a request is in progress.
+ * <p>
+ * If the https_proxy environment variable is set, requests are routed through the specified proxy.
+ */
+public class HttpClientTransport extends HttpTransport {
+  private final HttpClient client;
+  
+  public HttpClientTransport() {
+    HttpClient.Builder builder = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_2)
+        .connectTimeout(Duration.ofMillis(TuningConstants.HTTP_CONNECT_TIMEOUT_MS));
+    
+    String proxyName = System.getenv("https_proxy");
+    if (proxyName != null) {
+      builder.proxy(ProxySelector.of(HttpURLConnectionTransport.socketAddressFromName(proxyName)));
+      Logging.log(Severity.info, Logging.tagServerCommunication, "Using proxy " + proxyName);
+    }
+    
+    client = builder.build();
+  }
+  
+  @Override public Response post(String url, String contentType, String contentEncoding, ByteArrayBuilder body)
+      throws IOException {
+    try {
+      return toResponse(client.send(buildRequest(url, contentType, contentEncoding, body),
+          HttpResponse.BodyHandlers.ofString(ScalyrUtil.utf8)));
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      InterruptedIOException interrupted = new InterruptedIOException("Interrupted while waiting for " + url);
+      interrupted.initCause(ex);
+      throw interrupted;
+    }
+  }
+  
+  @Override public CompletableFuture<Response> postAsync(String url, String contentType, String contentEncoding,
+      ByteArrayBuilder body) {
+    return client.sendAsync(buildRequest(url, contentType, contentEncoding, body),
+        HttpResponse.BodyHandlers.ofString(ScalyrUtil.utf8))
+        .thenApply(new Function<HttpResponse<String>, Response>(){
+          @Override public Response apply(HttpResponse<String> response) {
+            return toResponse(response);
+          }});
+  }
+  
+  /**
+   * Build a POST request. The body is sent straight from the builder's array, without copying.
+   */
+  private static HttpRequest buildRequest(String url, String contentType, String contentEncoding,
+      ByteArrayBuilder body) {
+    HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+        .timeout(Duration.ofMillis(TuningConstants.MAXIMUM_RETRY_PERIOD_MS))
+        .header("Content-Type", contentType)
+        .POST(HttpRequest.BodyPublishers.ofByteArray(body.getBuffer(), 0, body.size()));
+    if (contentEncoding != null)
+      builder.header("Content-Encoding", contentEncoding);
+    return builder.build();
+  }
+  
+  private static Response toResponse(HttpResponse<String> response) {
+    String responseText = response.body();
+    return new Response(response.statusCode(), (responseText != null) ? responseText : "");
+  }
+}
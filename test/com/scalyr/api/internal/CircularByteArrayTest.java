@@ -0,0 +1,268 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.scalyr.api.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.scalyr.api.TuningConstants;
+
+/**
+ * Tests for CircularByteArray and ChunkSizeList.
+ */
+public class CircularByteArrayTest {
+  /**
+   * Size of each record written by the stress test: producer index, sequence number, and a
+   * checksum, as ints.
+   */
+  private static final int RECORD_BYTES = 12;
+  
+  @Test public void testPublishInReservationOrder() throws IOException {
+    CircularByteArray buffer = new CircularByteArray(100);
+    ChunkSizeList chunkSizes = new ChunkSizeList();
+    
+    assertTrue(buffer.append(new byte[]{1, 2, 3}, 0, 3, 0, "a"));
+    assertTrue(buffer.append(new byte[]{4, 5}, 0, 2, 0, "b"));
+    assertEquals(0, buffer.numBufferedBytes());
+    assertEquals(5, buffer.numReservedBytes());
+    
+    assertEquals(5, buffer.publishCommitted(chunkSizes, 1000));
+    assertEquals(5, buffer.numBufferedBytes());
+    assertEquals(5, buffer.totalBytesAppended());
+    
+    List<Object> sources = new ArrayList<Object>();
+    assertEquals(5, chunkSizes.closeNext(sources));
+    assertEquals(2, sources.size());
+    assertEquals("a", sources.get(0));
+    assertEquals("b", sources.get(1));
+    
+    ByteArrayBuilder out = new ByteArrayBuilder(16);
+    buffer.writeBytes(out, 0, 5);
+    assertEquals(5, out.size());
+    assertEquals(4, out.getBuffer()[3]);
+  }
+  
+  /**
+   * A range whose copy fails is published as a skipped chunk of its own, and doesn't hold up the
+   * data behind it.
+   */
+  @Test public void testFailedCopyIsSkipped() {
+    CircularByteArray buffer = new CircularByteArray(100);
+    ChunkSizeList chunkSizes = new ChunkSizeList();
+    
+    assertTrue(buffer.append(new byte[]{1, 2}, 0, 2, 0, "a"));
+    try {
+      // The source array is too short, so the copy fails after space has been reserved.
+      buffer.append(new byte[4], 0, 10, 0, "b");
+      throw new AssertionError("expected an exception");
+    } catch (IndexOutOfBoundsException ex) {
+      // Expected.
+    }
+    assertTrue(buffer.append(new byte[]{3}, 0, 1, 0, "c"));
+    
+    assertEquals(13, buffer.publishCommitted(chunkSizes, 1000));
+    
+    List<Object> sources = new ArrayList<Object>();
+    assertEquals(2, chunkSizes.closeNext(sources));
+    assertEquals(1, sources.size());
+    
+    sources.clear();
+    assertEquals(10, chunkSizes.closeNext(sources));
+    assertEquals(1, sources.size());
+    assertTrue(sources.get(0) == ChunkSizeList.SKIPPED);
+    
+    sources.clear();
+    assertEquals(1, chunkSizes.closeNext(sources));
+    assertEquals("c", sources.get(0));
+  }
+  
+  @Test public void testFull() {
+    CircularByteArray buffer = new CircularByteArray(10);
+    assertTrue(buffer.append(new byte[6], 0, 6, 0));
+    assertFalse(buffer.append(new byte[6], 0, 6, 0));
+    assertFalse(buffer.append(new byte[3], 0, 3, 2));
+    assertTrue(buffer.append(new byte[4], 0, 4, 0));
+    
+    buffer.publishCommitted(null, 0);
+    buffer.discardOldestBytes(6);
+    assertTrue(buffer.append(new byte[6], 0, 6, 0));
+  }
+  
+  /**
+   * Many threads append concurrently to a small buffer, which wraps around many times, while the
+   * consumer publishes, reads, and discards. Every record must be read exactly once, and each
+   * producer's records in the order it appended them. Some appends deliberately fail partway, and
+   * must show up as skipped chunks which are never read.
+   */
+  @Test public void testConcurrentAppendsSmallBuffer() throws Exception {
+    stress(4096, false, 8, 20000);
+  }
+  
+  /**
+   * As testConcurrentAppendsSmallBuffer, with an off-heap buffer spanning several pages, and with
+   * idle pages released while appends are in progress.
+   */
+  @Test public void testConcurrentAppendsPagedBuffer() throws Exception {
+    stress(TuningConstants.EVENT_BUFFER_PAGE_BYTES * 2 + 1000, true, 8, 20000);
+  }
+  
+  private static void stress(int capacity, boolean offHeap, int producerCount, final int batchesPerProducer)
+      throws Exception {
+    final CircularByteArray buffer = new CircularByteArray(capacity, offHeap);
+    ChunkSizeList chunkSizes = new ChunkSizeList();
+    
+    final AtomicInteger skippedAppends = new AtomicInteger();
+    final AtomicInteger runningProducers = new AtomicInteger(producerCount);
+    final AtomicReference<Throwable> producerFailure = new AtomicReference<Throwable>();
+    
+    List<Thread> producers = new ArrayList<Thread>();
+    for (int p = 0; p < producerCount; p++) {
+      final int producer = p;
+      Thread thread = new Thread("CircularByteArrayTest producer " + p){
+        @Override public void run() {
+          try {
+            int seq = 0;
+            for (int batch = 0; batch < batchesPerProducer; batch++) {
+              int recordCount = 1 + (batch * 7 + producer) % 8;
+              
+              if (batch % 97 == 13) {
+                // Reserve space for recordCount records, but fail while copying them.
+                byte[] tooShort = new byte[recordCount * RECORD_BYTES - 1];
+                while (true) {
+                  try {
+                    if (!buffer.append(tooShort, 0, recordCount * RECORD_BYTES, 0, producer))
+                      Thread.yield();
+                  } catch (IndexOutOfBoundsException ex) {
+                    skippedAppends.incrementAndGet();
+                    break;
+                  }
+                }
+                continue;
+              }
+              
+              ByteBuffer data = ByteBuffer.allocate(recordCount * RECORD_BYTES);
+              for (int i = 0; i < recordCount; i++) {
+                data.putInt(producer);
+                data.putInt(seq + i);
+                data.putInt(checksum(producer, seq + i));
+              }
+              while (!buffer.append(data.array(), 0, data.capacity(), 0, producer))
+                Thread.yield();
+              seq += recordCount;
+            }
+          } catch (Throwable ex) {
+            producerFailure.compareAndSet(null, ex);
+          } finally {
+            runningProducers.decrementAndGet();
+          }
+        }};
+      producers.add(thread);
+      thread.start();
+    }
+    
+    int[] nextSeq = new int[producerCount];
+    int skippedChunks = 0;
+    int chunkCount = 0;
+    ByteArrayBuilder out = new ByteArrayBuilder(1024);
+    Set<Object> sources = new LinkedHashSet<Object>();
+    boolean producersDone = false;
+    while (true) {
+      // Check this before publishing, so that we drain everything appended before the producers
+      // finished.
+      if (runningProducers.get() == 0)
+        producersDone = true;
+      
+      buffer.publishCommitted(chunkSizes, 200);
+      
+      while (true) {
+        sources.clear();
+        int size = chunkSizes.closeNext(sources);
+        if (size == 0)
+          break;
+        chunkCount++;
+        
+        if (sources.contains(ChunkSizeList.SKIPPED)) {
+          assertEquals(1, sources.size());
+          skippedChunks++;
+        } else {
+          out.reset();
+          long position = buffer.oldestPosition();
+          buffer.writeBytes(out, position, size);
+          assertEquals(0, size % RECORD_BYTES);
+          
+          ByteBuffer records = ByteBuffer.wrap(out.getBuffer(), 0, size);
+          Set<Object> producersSeen = new LinkedHashSet<Object>();
+          while (records.hasRemaining()) {
+            int producer = records.getInt();
+            int seq = records.getInt();
+            assertEquals(checksum(producer, seq), records.getInt());
+            assertEquals("record from producer " + producer, nextSeq[producer], seq);
+            nextSeq[producer]++;
+            producersSeen.add(producer);
+          }
+          assertEquals(producersSeen, sources);
+        }
+        
+        chunkSizes.removeFirst();
+        buffer.discardOldestBytes(size);
+      }
+      
+      if (offHeap && chunkCount % 64 == 0)
+        buffer.releaseIdlePages();
+      
+      if (producersDone)
+        break;
+      Thread.yield();
+    }
+    
+    for (Thread thread : producers)
+      thread.join();
+    if (producerFailure.get() != null)
+      throw new AssertionError(producerFailure.get());
+    
+    for (int p = 0; p < producerCount; p++) {
+      int expected = 0;
+      for (int batch = 0; batch < batchesPerProducer; batch++)
+        if (batch % 97 != 13)
+          expected += 1 + (batch * 7 + p) % 8;
+      assertEquals("records from producer " + p, expected, nextSeq[p]);
+    }
+    
+    assertEquals(skippedAppends.get(), skippedChunks);
+    assertEquals(0, buffer.numBufferedBytes());
+    assertEquals(0, buffer.numReservedBytes());
+    assertEquals(buffer.totalBytesReserved(), buffer.totalBytesAppended());
+  }
+  
+  private static int checksum(int producer, int seq) {
+    return producer * 0x9E3779B1 ^ seq * 0x85EBCA6B;
+  }
+}
@@ -0,0 +1,447 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.scalyr.api.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import com.scalyr.api.Compression;
+import com.scalyr.api.LogHook;
+import com.scalyr.api.ScalyrNetworkException;
+import com.scalyr.api.TuningConstants;
+import com.scalyr.api.json.JSONObject;
+import com.scalyr.api.logs.Severity;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for the HttpTransport implementations, and for the way ScalyrService drives a transport
+ * (request encoding, error statuses, and retries), against stub HTTP servers on the loopback
+ * interface. Each test runs once per transport. HttpClientTransport is only compiled when building
+ * with JDK 11 or later, so we refer to the transports by name, and skip any which can't be loaded.
+ */
+@RunWith(Parameterized.class)
+public class HttpTransportTest {
+  @Parameterized.Parameters(name = "{0}")
+  public static Collection<Object[]> transports() {
+    return Arrays.asList(new Object[][]{
+      {"HttpURLConnectionTransport"},
+      {"HttpClientTransport"},
+    });
+  }
+  
+  private final String transportName;
+  private HttpTransport transport;
+  
+  private final List<StubServer> servers = new ArrayList<StubServer>();
+  
+  public HttpTransportTest(String transportName) {
+    this.transportName = transportName;
+  }
+  
+  @Before public void setUp() throws ReflectiveOperationException {
+    // The transports would route our loopback requests through the proxy.
+    Assume.assumeTrue(System.getenv("https_proxy") == null);
+    
+    Class<?> transportClass;
+    try {
+      transportClass = Class.forName("com.scalyr.api.internal." + transportName);
+    } catch (ClassNotFoundException ex) {
+      Assume.assumeNoException(ex);
+      return;
+    }
+    transport = (HttpTransport) transportClass.getConstructor().newInstance();
+    
+    // Failed attempts are logged as warnings; keep them out of the test output.
+    LogHook.setHook(new LogHook.ThresholdLogger(Severity.error));
+  }
+  
+  @After public void tearDown() {
+    for (StubServer server : servers)
+      server.stop();
+    
+    LogHook.setHook(new LogHook.ThresholdLogger(Severity.info));
+  }
+  
+  @Test public void testPost() throws IOException {
+    StubServer server = startServer(200, "{\"status\":\"success\"}");
+    
+    ByteArrayBuilder body = new ByteArrayBuilder(64);
+    body.write("{\"x\":\"café\"}".getBytes(ScalyrUtil.utf8));
+    HttpTransport.Response response = transport.post(
+        server.address() + "addEvents", "application/json", null, body);
+    
+    assertEquals(200, response.statusCode);
+    assertEquals("{\"status\":\"success\"}", response.body);
+    
+    StubServer.Request request = server.onlyRequest();
+    assertEquals("/addEvents", request.path);
+    assertEquals("application/json", request.contentType);
+    assertNull(request.contentEncoding);
+    assertEquals("{\"x\":\"café\"}", new String(request.body, ScalyrUtil.utf8));
+  }
+  
+  @Test public void testErrorStatus() throws IOException {
+    StubServer server = startServer(503, "overloaded");
+    
+    HttpTransport.Response response = transport.post(
+        server.address() + "addEvents", "application/json", "gzip", new ByteArrayBuilder(16));
+    
+    assertEquals(503, response.statusCode);
+    assertEquals("overloaded", response.body);
+    assertEquals("gzip", server.onlyRequest().contentEncoding);
+  }
+  
+  @Test public void testPostAsync() throws IOException, InterruptedException, ExecutionException {
+    StubServer server = startServer(200, "{\"status\":\"success\"}");
+    
+    List<CompletableFuture<HttpTransport.Response>> futures = new ArrayList<CompletableFuture<HttpTransport.Response>>();
+    for (int i = 0; i < 10; i++) {
+      ByteArrayBuilder body = new ByteArrayBuilder(16);
+      body.write(("{\"i\":" + i + "}").getBytes(ScalyrUtil.utf8));
+      futures.add(transport.postAsync(server.address() + "addEvents", "application/json", null, body));
+    }
+    
+    for (CompletableFuture<HttpTransport.Response> future : futures) {
+      HttpTransport.Response response = future.get();
+      assertEquals(200, response.statusCode);
+      assertEquals("{\"status\":\"success\"}", response.body);
+    }
+    assertEquals(10, server.requestCount());
+  }
+  
+  @Test public void testPostAsyncConnectionFailure() throws InterruptedException {
+    // Grab an ephemeral port, then close it, so that nothing is listening there.
+    StubServer server = startServer(200, "");
+    String address = server.address();
+    server.stop();
+    
+    CompletableFuture<HttpTransport.Response> future = transport.postAsync(
+        address + "addEvents", "application/json", null, new ByteArrayBuilder(16));
+    try {
+      future.get();
+      fail("expected ExecutionException");
+    } catch (ExecutionException ex) {
+      assertTrue(ex.getCause() instanceof IOException);
+    }
+  }
+  
+  /**
+   * Services without an explicit transport use HttpClientTransport, if it's available.
+   */
+  @Test public void testDefaultTransport() {
+    Assume.assumeTrue(transportName.equals("HttpClientTransport"));
+    
+    ScalyrService service = new ScalyrService("testToken"){};
+    assertEquals(transport.getClass(), service.getTransport().getClass());
+  }
+  
+  @Test public void testInvokeApi() throws IOException {
+    StubServer server = startServer(200, "{\"status\":\"success\"}");
+    TestService service = new TestService(transport, server.address());
+    
+    assertEquals("{\"status\":\"success\"}", service.invokeApi("addEvents", parameters()));
+    
+    StubServer.Request request = server.onlyRequest();
+    assertEquals("/addEvents", request.path);
+    assertNull(request.contentEncoding);
+    assertEquals(parameters().toJSONString(), new String(request.body, ScalyrUtil.utf8));
+    assertEquals(request.body.length, service.getRequestBytesSent());
+    assertEquals(request.body.length, service.getRequestBytesUncompressed());
+  }
+  
+  @Test public void testInvokeApiCompressed() throws IOException {
+    for (Compression compression : new Compression[]{Compression.gzip, Compression.deflate}) {
+      StubServer server = startServer(200, "{\"status\":\"success\"}");
+      TestService service = new TestService(transport, server.address());
+      service.setRequestCompression(compression, Deflater.BEST_SPEED);
+      
+      service.invokeApi("addEvents", parameters());
+      
+      StubServer.Request request = server.onlyRequest();
+      assertEquals(compression.getContentEncoding(), request.contentEncoding);
+      InputStream decompressed = (compression == Compression.gzip)
+          ? new GZIPInputStream(new ByteArrayInputStream(request.body))
+          : new InflaterInputStream(new ByteArrayInputStream(request.body));
+      assertEquals(parameters().toJSONString(), new String(readAll(decompressed), ScalyrUtil.utf8));
+      assertEquals(request.body.length, service.getRequestBytesSent());
+    }
+  }
+  
+  /**
+   * A server returning an error status is retried on the next server.
+   */
+  @Test public void testRetry() {
+    StubServer failing = startServer(500, "");
+    StubServer working = startServer(200, "{\"status\":\"success\"}");
+    TestService service = new TestService(transport, failing.address() + "," + working.address());
+    
+    // Servers are tried in random order, so the failing one may or may not be reached.
+    assertEquals("{\"status\":\"success\"}", service.invokeApi("addEvents", parameters()));
+    assertEquals(1, working.requestCount());
+    assertTrue(failing.requestCount() <= 1);
+  }
+  
+  @Test public void testAllServersFail() {
+    StubServer server1 = startServer(500, "");
+    StubServer server2 = startServer(502, "");
+    TestService service = new TestService(transport, server1.address() + "," + server2.address());
+    
+    try {
+      service.invokeApi("addEvents", parameters());
+      fail("expected ScalyrNetworkException");
+    } catch (ScalyrNetworkException ex) {
+      // Expected.
+    }
+    
+    assertEquals(1, server1.requestCount());
+    assertEquals(1, server2.requestCount());
+  }
+  
+  @Test public void testInvokeApiAsync() throws InterruptedException, ExecutionException, TimeoutException {
+    StubServer failing = startServer(500, "");
+    StubServer working = startServer(200, "{\"status\":\"success\"}");
+    TestService service = new TestService(transport, failing.address() + "," + working.address());
+    
+    CompletableFuture<String> future = service.invokeApiAsync("addEvents", parameters());
+    assertEquals("{\"status\":\"success\"}", future.get(30, TimeUnit.SECONDS));
+    assertEquals(1, working.requestCount());
+  }
+  
+  @Test public void testInvokeApiAsyncFailure() throws InterruptedException, TimeoutException {
+    StubServer server = startServer(500, "");
+    TestService service = new TestService(transport, server.address());
+    
+    CompletableFuture<String> future = service.invokeApiAsync("addEvents", parameters());
+    try {
+      future.get(30, TimeUnit.SECONDS);
+      fail("expected ExecutionException");
+    } catch (ExecutionException ex) {
+      assertTrue(ex.getCause() instanceof ScalyrNetworkException);
+    }
+    assertEquals(1, server.requestCount());
+  }
+  
+  /**
+   * invokeApiAsync returns before the server responds.
+   */
+  @Test public void testInvokeApiAsyncDoesNotWait() throws InterruptedException, ExecutionException, TimeoutException {
+    StubServer server = startServer(200, "{\"status\":\"success\"}");
+    server.holdResponses();
+    TestService service = new TestService(transport, server.address());
+    
+    CompletableFuture<String> future = service.invokeApiAsync("addEvents", parameters());
+    assertFalse(future.isDone());
+    
+    server.releaseResponses();
+    assertEquals("{\"status\":\"success\"}", future.get(30, TimeUnit.SECONDS));
+  }
+  
+  /**
+   * Successive retries are spaced by a growing, randomized backoff: at least half of 1x, then 2x
+   * API_RETRY_INITIAL_BACKOFF_MS.
+   */
+  @Test public void testRetryBackoff() throws InterruptedException, TimeoutException {
+    StubServer server1 = startServer(500, "");
+    StubServer server2 = startServer(502, "");
+    StubServer server3 = startServer(503, "");
+    String addresses = server1.address() + "," + server2.address() + "," + server3.address();
+    long minimumBackoffMs = (TuningConstants.API_RETRY_INITIAL_BACKOFF_MS
+        + 2 * TuningConstants.API_RETRY_INITIAL_BACKOFF_MS) / 2;
+    
+    long startMs = System.nanoTime() / 1000000;
+    try {
+      new TestService(transport, addresses).invokeApi("addEvents", parameters());
+      fail("expected ScalyrNetworkException");
+    } catch (ScalyrNetworkException ex) {
+      // Expected.
+    }
+    assertTrue(System.nanoTime() / 1000000 - startMs >= minimumBackoffMs);
+    
+    startMs = System.nanoTime() / 1000000;
+    CompletableFuture<String> future = new TestService(transport, addresses).invokeApiAsync("addEvents", parameters());
+    try {
+      future.get(30, TimeUnit.SECONDS);
+      fail("expected ExecutionException");
+    } catch (ExecutionException ex) {
+      assertTrue(ex.getCause() instanceof ScalyrNetworkException);
+    }
+    assertTrue(System.nanoTime() / 1000000 - startMs >= minimumBackoffMs);
+    
+    for (StubServer server : new StubServer[]{server1, server2, server3})
+      assertEquals(2, server.requestCount());
+  }
+  
+  private StubServer startServer(int statusCode, String responseBody) {
+    StubServer server = new StubServer(statusCode, responseBody);
+    servers.add(server);
+    return server;
+  }
+  
+  private static JSONObject parameters() {
+    JSONObject parameters = new JSONObject();
+    parameters.put("token", "testToken");
+    parameters.put("session", "testSession");
+    parameters.put("message", "café \"quoted\"");
+    return parameters;
+  }
+  
+  private static byte[] readAll(InputStream input) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int count;
+    while ((count = input.read(buffer)) > 0)
+      result.write(buffer, 0, count);
+    return result.toByteArray();
+  }
+  
+  /**
+   * ScalyrService talking to the given server(s) through the given transport.
+   */
+  private static class TestService extends ScalyrService {
+    TestService(HttpTransport transport, String serverAddresses) {
+      super("testToken");
+      setServerAddress(serverAddresses);
+      setTransport(transport);
+    }
+  }
+  
+  /**
+   * HTTP server on an ephemeral loopback port, which records each request and answers every one
+   * with the same status and body. Responses can be held back with holdResponses.
+   */
+  private static class StubServer {
+    static class Request {
+      final String path;
+      final String contentType;
+      final String contentEncoding;
+      final byte[] body;
+      
+      Request(String path, String contentType, String contentEncoding, byte[] body) {
+        this.path = path;
+        this.contentType = contentType;
+        this.contentEncoding = contentEncoding;
+        this.body = body;
+      }
+    }
+    
+    private final HttpServer server;
+    private final List<Request> requests = new ArrayList<Request>();
+    
+    /**
+     * If not null, the handler waits for this latch before responding.
+     */
+    private volatile CountDownLatch responseGate;
+    
+    StubServer(final int statusCode, final String responseBody) {
+      try {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+      
+      server.createContext("/", new HttpHandler(){
+        @Override public void handle(HttpExchange exchange) throws IOException {
+          byte[] body = readAll(exchange.getRequestBody());
+          synchronized (requests) {
+            requests.add(new Request(exchange.getRequestURI().getPath(),
+                exchange.getRequestHeaders().getFirst("Content-Type"),
+                exchange.getRequestHeaders().getFirst("Content-Encoding"),
+                body));
+          }
+          
+          CountDownLatch gate = responseGate;
+          if (gate != null) {
+            try {
+              gate.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          
+          byte[] response = responseBody.getBytes(ScalyrUtil.utf8);
+          exchange.sendResponseHeaders(statusCode, (response.length > 0) ? response.length : -1);
+          OutputStream output = exchange.getResponseBody();
+          output.write(response);
+          output.close();
+        }});
+      server.start();
+    }
+    
+    String address() {
+      return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+    }
+    
+    int requestCount() {
+      synchronized (requests) {
+        return requests.size();
+      }
+    }
+    
+    Request onlyRequest() {
+      synchronized (requests) {
+        assertEquals(1, requests.size());
+        return requests.get(0);
+      }
+    }
+    
+    void holdResponses() {
+      responseGate = new CountDownLatch(1);
+    }
+    
+    void releaseResponses() {
+      responseGate.countDown();
+    }
+    
+    void stop() {
+      server.stop(0);
+    }
+  }
+}
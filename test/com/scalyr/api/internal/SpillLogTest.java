@@ -0,0 +1,340 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.scalyr.api.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for SpillLog: recovery of segment files by a later log opened in the same directory (see
+ * LeftoverSegment), after a clean close or a crash, and including records which fail their CRC
+ * check.
+ */
+public class SpillLogTest {
+  private static final long QUOTA_BYTES = 1L << 30;
+  
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  
+  private File directory;
+  
+  @Before public void setUp() throws IOException {
+    directory = folder.newFolder("spill");
+  }
+  
+  /**
+   * Chunks which were not removed are replayed, in order, with their metadata and the segment
+   * header. A chunk marked removed during replay is not replayed again.
+   */
+  @Test public void testLeftoverChunks() throws IOException {
+    SpillLog log = new SpillLog(directory, QUOTA_BYTES, SpillLog.SyncPolicy.none);
+    log.setSegmentHeader(bytes("header"));
+    append(log, "chunk0", "meta0");
+    SpillLog.Record removed = append(log, "chunk1", "meta0");
+    append(log, "chunk2", "meta1");
+    append(log, "chunk3", null);
+    log.remove(removed);
+    log.close();
+    
+    SpillLog.LeftoverSegment segment = onlyLeftoverSegment();
+    try {
+      assertArrayEquals(bytes("header"), segment.header);
+      assertEquals(Arrays.asList("chunk0", "chunk2", "chunk3"), chunkData(segment));
+      assertArrayEquals(bytes("meta0"), segment.chunks.get(0).metadata);
+      assertArrayEquals(bytes("meta1"), segment.chunks.get(1).metadata);
+      
+      // A chunk appended without metadata is associated with the segment's latest metadata.
+      assertArrayEquals(bytes("meta1"), segment.chunks.get(2).metadata);
+      
+      segment.chunks.get(0).markRemoved();
+    } finally {
+      segment.close();
+    }
+    
+    segment = onlyLeftoverSegment();
+    try {
+      assertEquals(Arrays.asList("chunk2", "chunk3"), chunkData(segment));
+    } finally {
+      segment.close();
+    }
+  }
+  
+  /**
+   * Simulates a process crash under each SyncPolicy: the directory is reopened by a new log while
+   * the old one is still open, as if its process had died. Chunks which were acknowledged (removed
+   * after a successful upload) must not be replayed; all others must be, whether they were resident
+   * (write-ahead copies), spilled, checked out for an upload still in progress, or checked back in
+   * after a failed upload.
+   * <p>
+   * A mapped file's contents survive the death of the process regardless of sync policy, so every
+   * policy must give the same result here. (What the policies add -- surviving an operating system
+   * crash -- can't be tested in-process.)
+   */
+  @Test public void testCrashRecovery() throws IOException {
+    for (SpillLog.SyncPolicy policy : SpillLog.SyncPolicy.values()) {
+      File policyDirectory = folder.newFolder(policy.name());
+      
+      SpillLog log = new SpillLog(policyDirectory, QUOTA_BYTES, policy);
+      SpillLog.Record residentAcked = appendSynced(log, "residentAcked", true);
+      appendSynced(log, "residentUnacked", true);
+      SpillLog.Record spilledAcked = appendSynced(log, "spilledAcked", false);
+      appendSynced(log, "spilledInFlight", false);
+      appendSynced(log, "spilledFailed", false);
+      
+      log.remove(residentAcked);
+      assertEquals(spilledAcked, log.checkOut());
+      log.checkIn(spilledAcked, true);
+      assertNotNull(log.checkOut());
+      SpillLog.Record failed = log.checkOut();
+      log.checkIn(failed, false);
+      log.sync();
+      
+      // "Crash": open the directory again without closing the log.
+      SpillLog recovered = new SpillLog(policyDirectory, QUOTA_BYTES, policy);
+      try {
+        List<String> replayed = new ArrayList<String>();
+        for (File file : recovered.takeLeftoverSegments()) {
+          SpillLog.LeftoverSegment segment = new SpillLog.LeftoverSegment(file);
+          try {
+            replayed.addAll(chunkData(segment));
+          } finally {
+            segment.close();
+          }
+        }
+        assertEquals(policy.name(), Arrays.asList("residentUnacked", "spilledInFlight", "spilledFailed"), replayed);
+        
+        // The new log writes to new files, leaving the old ones to be replayed.
+        appendSynced(recovered, "new", false);
+        assertTrue(recovered.getSegmentFiles().size() == 1
+            && !log.getSegmentFiles().containsAll(recovered.getSegmentFiles()));
+      } finally {
+        recovered.close();
+        log.close();
+      }
+    }
+  }
+  
+  /**
+   * Reading a segment stops at the first record whose data fails its CRC check, as for a record
+   * which was partially written when the process crashed.
+   */
+  @Test public void testCorruptData() throws IOException {
+    writeSegment("chunk0", "chunk1", "chunk2", "chunk3", "chunk4");
+    corrupt(onlySegmentFile(), "chunk2", 3);
+    
+    SpillLog.LeftoverSegment segment = onlyLeftoverSegment();
+    try {
+      assertEquals(Arrays.asList("chunk0", "chunk1"), chunkData(segment));
+    } finally {
+      segment.close();
+    }
+  }
+  
+  /**
+   * Likewise for a record whose stored CRC is damaged.
+   */
+  @Test public void testCorruptCrc() throws IOException {
+    writeSegment("chunk0", "chunk1", "chunk2");
+    
+    // The CRC is 8 bytes before the data; see the SpillLog class comment.
+    corrupt(onlySegmentFile(), "chunk1", -8);
+    
+    SpillLog.LeftoverSegment segment = onlyLeftoverSegment();
+    try {
+      assertEquals(Arrays.asList("chunk0"), chunkData(segment));
+    } finally {
+      segment.close();
+    }
+  }
+  
+  /**
+   * Corruption in one segment doesn't affect the chunks in other segments.
+   */
+  @Test public void testCorruptionIsPerSegment() throws IOException {
+    writeSegment("a0", "a1", "a2");
+    File first = onlySegmentFile();
+    writeSegment("b0", "b1");
+    corrupt(first, "a1", 0);
+    
+    List<File> files = leftoverFiles();
+    assertEquals(2, files.size());
+    assertEquals(first, files.get(0));
+    
+    List<String> replayed = new ArrayList<String>();
+    for (File file : files) {
+      SpillLog.LeftoverSegment segment = new SpillLog.LeftoverSegment(file);
+      try {
+        replayed.addAll(chunkData(segment));
+      } finally {
+        segment.close();
+      }
+    }
+    assertEquals(Arrays.asList("a0", "b0", "b1"), replayed);
+  }
+  
+  @Test public void testNotASegment() throws IOException {
+    File file = new File(directory, "spill-000000000000.dat");
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.write(bytes("not a spill file"));
+    } finally {
+      raf.close();
+    }
+    
+    try {
+      new SpillLog.LeftoverSegment(file);
+      fail("expected IOException");
+    } catch (IOException ex) {
+      // Expected.
+    }
+  }
+  
+  /**
+   * Chunk data is read from the file on demand, so it's unavailable once the segment is closed.
+   */
+  @Test public void testReadAfterClose() throws IOException {
+    writeSegment("chunk0");
+    
+    SpillLog.LeftoverSegment segment = onlyLeftoverSegment();
+    SpillLog.LeftoverChunk chunk = segment.chunks.get(0);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    chunk.writeData(out, 5);
+    assertEquals("chunk", new String(out.toByteArray(), ScalyrUtil.utf8));
+    
+    segment.close();
+    try {
+      chunk.writeData(new ByteArrayOutputStream(), chunk.length);
+      fail("expected IOException");
+    } catch (IOException ex) {
+      // Expected.
+    }
+  }
+  
+  /**
+   * Write a segment holding the given chunks, in a log which is then closed.
+   */
+  private void writeSegment(String... chunks) throws IOException {
+    SpillLog log = new SpillLog(directory, QUOTA_BYTES, SpillLog.SyncPolicy.none);
+    for (String chunk : chunks)
+      append(log, chunk, null);
+    log.close();
+  }
+  
+  /**
+   * Append a chunk, and sync it as the client would under the log's policy.
+   */
+  private static SpillLog.Record appendSynced(SpillLog log, String data, boolean resident) {
+    byte[] dataBytes = bytes(data);
+    SpillLog.Record record = log.append(dataBytes, 0, dataBytes.length, null, resident);
+    assertNotNull(record);
+    log.syncAppends();
+    return record;
+  }
+  
+  private static SpillLog.Record append(SpillLog log, String data, String metadata) {
+    byte[] dataBytes = bytes(data);
+    SpillLog.Record record = log.append(dataBytes, 0, dataBytes.length, (metadata != null) ? bytes(metadata) : null,
+        false);
+    assertNotNull(record);
+    return record;
+  }
+  
+  /**
+   * Return the segment files which a log opened now would find as leftovers.
+   */
+  private List<File> leftoverFiles() throws IOException {
+    SpillLog log = new SpillLog(directory, QUOTA_BYTES, SpillLog.SyncPolicy.none);
+    try {
+      return log.takeLeftoverSegments();
+    } finally {
+      log.close();
+    }
+  }
+  
+  private File onlySegmentFile() throws IOException {
+    List<File> files = leftoverFiles();
+    assertEquals(1, files.size());
+    return files.get(0);
+  }
+  
+  private SpillLog.LeftoverSegment onlyLeftoverSegment() throws IOException {
+    return new SpillLog.LeftoverSegment(onlySegmentFile());
+  }
+  
+  private static List<String> chunkData(SpillLog.LeftoverSegment segment) throws IOException {
+    List<String> result = new ArrayList<String>();
+    for (SpillLog.LeftoverChunk chunk : segment.chunks) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      chunk.writeData(out, chunk.length);
+      result.add(new String(out.toByteArray(), ScalyrUtil.utf8));
+    }
+    return result;
+  }
+  
+  /**
+   * Flip the bits of one byte of the given file, at the given offset from the (only) occurrence of
+   * target.
+   */
+  private static void corrupt(File file, String target, int offset) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      byte[] contents = new byte[(int) raf.length()];
+      raf.readFully(contents);
+      
+      int position = indexOf(contents, 0, bytes(target));
+      assertTrue(position >= 0);
+      assertTrue(indexOf(contents, position + 1, bytes(target)) < 0);
+      
+      raf.seek(position + offset);
+      raf.write(~contents[position + offset]);
+    } finally {
+      raf.close();
+    }
+  }
+  
+  private static int indexOf(byte[] haystack, int start, byte[] needle) {
+    outer:
+    for (int i = start; i + needle.length <= haystack.length; i++) {
+      for (int j = 0; j < needle.length; j++)
+        if (haystack[i + j] != needle[j])
+          continue outer;
+      return i;
+    }
+    return -1;
+  }
+  
+  private static byte[] bytes(String s) {
+    return s.getBytes(ScalyrUtil.utf8);
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.scalyr.api.logs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.scalyr.api.TuningConstants;
+import com.scalyr.api.internal.ByteArrayBuilder;
+import com.scalyr.api.internal.ScalyrUtil;
+import com.scalyr.api.json.JSONArray;
+import com.scalyr.api.json.JSONObject;
+import com.scalyr.api.json.JSONParser;
+import com.scalyr.api.json.ParseException;
+
+/**
+ * Tests for AttributeKeyDictionary, and for the compact event encoding in EventSerializer.
+ */
+public class AttributeKeyDictionaryTest {
+  private static final long THREAD_ID = 12345;
+  private static final long TIMESTAMP = 1349740800123456789L;
+  
+  @Test public void testFixedKeys() {
+    AttributeKeyDictionary keys = new AttributeKeyDictionary();
+    assertEquals(Arrays.asList("sev", "thread", "ts", "type", "attrs", "startTS"), keys.toJSON());
+    
+    assertArrayEquals(ascii("\"~6\":"), keys.encode("tag"));
+    assertArrayEquals(ascii("\"~6\":"), keys.encode("tag"));
+    assertArrayEquals(ascii("\"~0\":"), keys.encode("sev"));
+    assertEquals(7, keys.size());
+  }
+  
+  /**
+   * A compact event, decoded with decodeEvent, must equal the same event in the standard encoding.
+   */
+  @Test public void testRoundTrip() throws ParseException {
+    AttributeKeyDictionary keys = new AttributeKeyDictionary();
+    
+    EventAttributes attributes = new EventAttributes("tag", "query",
+        "latency", 137, "cached", true, "ratio", 0.25);
+    attributes.put("~tilde", "literal key beginning with a tilde");
+    attributes.put("ts", "attribute named like a fixed field");
+    attributes.put("message", "quote\" slash/ café 😀");
+    
+    checkRoundTrip(keys, LogService.SPAN_TYPE_LEAF, Severity.info, attributes, 0);
+    checkRoundTrip(keys, LogService.SPAN_TYPE_START, Severity.warning, attributes, 0);
+    checkRoundTrip(keys, LogService.SPAN_TYPE_END, Severity.error, attributes, TIMESTAMP - 5000);
+    checkRoundTrip(keys, LogService.SPAN_TYPE_LEAF, Severity.fine, new EventAttributes(), 0);
+    
+    // Events written before a key was assigned must still decode against the larger table.
+    checkRoundTrip(keys, LogService.SPAN_TYPE_LEAF, Severity.info, new EventAttributes("newKey", 1), 0);
+    checkRoundTrip(keys, LogService.SPAN_TYPE_LEAF, Severity.info, attributes, 0);
+  }
+  
+  /**
+   * Once the table is full, new keys are written literally (with a leading '~' doubled), and
+   * events still round-trip.
+   */
+  @Test public void testFullTable() throws ParseException {
+    AttributeKeyDictionary keys = new AttributeKeyDictionary();
+    for (int i = keys.size(); i < TuningConstants.MAX_ATTRIBUTE_KEY_IDS; i++)
+      keys.encode("key" + i);
+    assertEquals(TuningConstants.MAX_ATTRIBUTE_KEY_IDS, keys.size());
+    assertNull(keys.encode("overflow"));
+    
+    EventAttributes attributes = new EventAttributes("key100", "assigned",
+        "overflow", "literal", "~overflow", "literal with tilde");
+    String compact = checkRoundTrip(keys, LogService.SPAN_TYPE_LEAF, Severity.info, attributes, 0);
+    assertEquals(TuningConstants.MAX_ATTRIBUTE_KEY_IDS, keys.size());
+    
+    JSONObject attrs = (JSONObject) ((JSONObject) new JSONParser().parse(compact)).get("~4");
+    assertEquals("literal", attrs.get("overflow"));
+    assertEquals("literal with tilde", attrs.get("~~overflow"));
+    assertEquals("assigned", attrs.get("~100"));
+  }
+  
+  @Test public void testUnknownId() {
+    JSONObject event = new JSONObject();
+    event.put("~99", 1);
+    JSONArray keyTable = new AttributeKeyDictionary().toJSON();
+    try {
+      AttributeKeyDictionary.decodeEvent(event, keyTable);
+      fail("expected RuntimeException");
+    } catch (RuntimeException ex) {
+      // Expected.
+    }
+  }
+  
+  /**
+   * Serialize an event in both encodings, and check that decoding the compact form gives the
+   * standard form. Return the compact form.
+   */
+  private static String checkRoundTrip(AttributeKeyDictionary keys, int spanType, Severity severity,
+      EventAttributes attributes, long startTs) throws ParseException {
+    String standard = serialize(null, spanType, severity, attributes, startTs);
+    String compact = serialize(keys, spanType, severity, attributes, startTs);
+    
+    JSONParser parser = new JSONParser();
+    JSONObject expected = (JSONObject) parser.parse(standard);
+    JSONObject decoded = AttributeKeyDictionary.decodeEvent((JSONObject) parser.parse(compact), keys.toJSON());
+    assertEquals(expected, decoded);
+    return compact;
+  }
+  
+  private static String serialize(AttributeKeyDictionary keys, int spanType, Severity severity,
+      EventAttributes attributes, long startTs) {
+    ByteArrayBuilder out = new ByteArrayBuilder(256);
+    EventSerializer.writeEvent(out, EventSerializer.threadField(THREAD_ID, keys != null), TIMESTAMP,
+        spanType, severity, attributes, startTs, keys);
+    return new String(out.getBuffer(), 0, out.size(), ScalyrUtil.utf8);
+  }
+  
+  private static byte[] ascii(String s) {
+    return s.getBytes(ScalyrUtil.utf8);
+  }
+}
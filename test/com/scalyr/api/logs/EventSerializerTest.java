@@ -0,0 +1,154 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.scalyr.api.logs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.scalyr.api.TuningConstants;
+import com.scalyr.api.internal.ByteArrayBuilder;
+import com.scalyr.api.json.JSONObject;
+
+/**
+ * Tests for EventSerializer.
+ */
+public class EventSerializerTest {
+  private static final long THREAD_ID = 12345;
+  private static final long TIMESTAMP = 1349740800123456789L;
+  
+  /**
+   * EventSerializer output must be byte-for-byte what a JSONObject would produce.
+   */
+  @Test public void testMatchesJsonObject() throws IOException {
+    EventAttributes attributes = new EventAttributes("tag", "query",
+        "latency", 137, "cached", true, "ratio", 0.25);
+    attributes.put("escapes", "quote\" slash/ backslash\\ tab\t newline\n control\u0001 dash–");
+    attributes.put("unicode", "café 中文 😀");
+    attributes.put("big", Long.MIN_VALUE);
+    
+    checkMatches(LogService.SPAN_TYPE_LEAF, Severity.info, attributes, 0);
+    checkMatches(LogService.SPAN_TYPE_START, Severity.warning, attributes, 0);
+    checkMatches(LogService.SPAN_TYPE_END, Severity.error, attributes, TIMESTAMP - 5000);
+    checkMatches(LogService.SPAN_TYPE_LEAF, Severity.fine, new EventAttributes(), 0);
+    checkMatches(LogService.SPAN_TYPE_LEAF, Severity.fine, null, 0);
+  }
+  
+  @Test public void testLongAttributeTruncation() throws IOException {
+    StringBuilder value = new StringBuilder();
+    for (int i = 0; i < TuningConstants.MAXIMUM_EVENT_ATTRIBUTE_LENGTH + 10; i++)
+      value.append((char) ('a' + i % 26));
+    
+    checkMatches(LogService.SPAN_TYPE_LEAF, Severity.info, new EventAttributes("message", value.toString()), 0);
+  }
+  
+  /**
+   * Once the output buffer has grown, serializing an event with string, integer, and boolean
+   * attributes should not allocate.
+   */
+  @Test public void testNoAllocation() {
+    java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+    Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+    allocationBean.setThreadAllocatedMemoryEnabled(true);
+    
+    EventAttributes attributes = new EventAttributes("tag", "query", "latency", 137, "cached", true);
+    attributes.put("message", "café \"quoted\"");
+    byte[] threadField = EventSerializer.threadField(THREAD_ID, false);
+    
+    AttributeKeyDictionary keys = new AttributeKeyDictionary();
+    byte[] compactThreadField = EventSerializer.threadField(THREAD_ID, true);
+    
+    ByteArrayBuilder out = new ByteArrayBuilder(64 * 1024);
+    int eventCount = 10000;
+    
+    // Warm up, so that the loop is compiled and the dictionary has assigned all of its IDs.
+    for (int pass = 0; pass < 20; pass++)
+      serializeMany(out, threadField, compactThreadField, attributes, keys, eventCount);
+    
+    long threadId = Thread.currentThread().getId();
+    long before = allocationBean.getThreadAllocatedBytes(threadId);
+    serializeMany(out, threadField, compactThreadField, attributes, keys, eventCount);
+    long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+    
+    // Allow a little slack for the iterator over the attribute map, which escape analysis
+    // usually (but not always) eliminates.
+    assertTrue("allocated " + allocated + " bytes for " + (2 * eventCount) + " events",
+        allocated < 64L * eventCount);
+  }
+  
+  private static void serializeMany(ByteArrayBuilder out, byte[] threadField, byte[] compactThreadField,
+      EventAttributes attributes, AttributeKeyDictionary keys, int eventCount) {
+    for (int i = 0; i < eventCount; i++) {
+      out.reset();
+      EventSerializer.writeEvent(out, threadField, TIMESTAMP + i, LogService.SPAN_TYPE_LEAF,
+          Severity.info, attributes, 0, null);
+      out.reset();
+      EventSerializer.writeEvent(out, compactThreadField, TIMESTAMP + i, LogService.SPAN_TYPE_END,
+          Severity.info, attributes, TIMESTAMP, keys);
+    }
+  }
+  
+  private static void checkMatches(int spanType, Severity severity, EventAttributes attributes, long startTs)
+      throws IOException {
+    ByteArrayBuilder expected = new ByteArrayBuilder(256);
+    toJsonObject(spanType, severity, attributes, startTs).writeJSONBytes(expected);
+    
+    ByteArrayBuilder actual = new ByteArrayBuilder(256);
+    EventSerializer.writeEvent(actual, EventSerializer.threadField(THREAD_ID, false), TIMESTAMP,
+        spanType, severity, attributes, startTs, null);
+    
+    assertArrayEquals(Arrays.copyOf(expected.getBuffer(), expected.size()),
+        Arrays.copyOf(actual.getBuffer(), actual.size()));
+  }
+  
+  /**
+   * Build an event the way EventUploader did before EventSerializer existed.
+   */
+  static JSONObject toJsonObject(int spanType, Severity severity, EventAttributes attributes, long startTs) {
+    JSONObject eventJson = new JSONObject();
+    eventJson.put("thread", Long.toString(THREAD_ID));
+    eventJson.put("ts", Long.toString(TIMESTAMP));
+    eventJson.put("type", spanType);
+    eventJson.put("sev", severity.ordinal());
+    
+    if (attributes != null && attributes.values.size() > 0) {
+      JSONObject attrs = new JSONObject();
+      for (String key : attributes.values.keySet()) {
+        Object value = attributes.values.get(key);
+        if (value instanceof String && ((String) value).length() > TuningConstants.MAXIMUM_EVENT_ATTRIBUTE_LENGTH)
+          value = ((String) value).substring(0, TuningConstants.MAXIMUM_EVENT_ATTRIBUTE_LENGTH - 3) + "...";
+        attrs.put(key, value);
+      }
+      eventJson.put("attrs", attrs);
+    }
+    
+    if (spanType == LogService.SPAN_TYPE_END)
+      eventJson.put("startTS", startTs);
+    
+    return eventJson;
+  }
+}
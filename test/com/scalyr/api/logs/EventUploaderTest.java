@@ -0,0 +1,405 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.scalyr.api.logs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.scalyr.api.LogHook;
+import com.scalyr.api.internal.ScalyrUtil;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for EventUploader's pipelined uploads (maxConcurrentUploads > 1), and for waiting on a full
+ * buffer (Events.tryEvent), against a stub Logs server whose responses the test releases one at a
+ * time, in any order. Each test event is sized so that it occupies a chunk of its own, and so is
+ * carried by a request of its own.
+ */
+public class EventUploaderTest {
+  private static final String SUCCESS = "{\"status\":\"success\"}";
+  private static final String FAILURE = "{\"status\":\"error/server\"}";
+  
+  private static final int MEMORY_LIMIT = 100000;
+  
+  private final int savedMaxEventUploadBytes = EventUploader._maxEventUploadBytes;
+  
+  private StubServer server;
+  private EventUploader uploader;
+  
+  @Before public void setUp() {
+    // LogService would route our loopback requests through the proxy.
+    Assume.assumeTrue(System.getenv("https_proxy") == null);
+    
+    // Failed uploads are logged as warnings; keep them out of the test output.
+    LogHook.setHook(new LogHook.ThresholdLogger(Severity.error));
+    
+    // Test events are about 400 bytes, so no two fit in one chunk.
+    EventUploader._maxEventUploadBytes = 600;
+    
+    server = new StubServer();
+    LogService logService = new LogService("testToken").setServerAddress(server.address());
+    uploader = new EventUploader(logService, MEMORY_LIMIT, "testSession", false, null, false, false);
+    uploader.maxConcurrentUploads = 3;
+  }
+  
+  @After public void tearDown() {
+    if (uploader != null)
+      uploader.terminate();
+    if (server != null)
+      server.stop();
+    
+    EventUploader._maxEventUploadBytes = savedMaxEventUploadBytes;
+    LogHook.setHook(new LogHook.ThresholdLogger(Severity.info));
+  }
+  
+  /**
+   * When later chunks complete first, their space is reclaimed only once the first chunk completes.
+   */
+  @Test public void testOutOfOrderCompletion() throws InterruptedException {
+    recordEvents(0, 3);
+    int bufferedBytes = uploader.getBufferedBytes();
+    
+    uploader.uploadTimerTick(true);
+    Map<Integer, Upload> uploads = awaitUploads(3);
+    
+    uploads.get(1).respond(SUCCESS);
+    awaitUploadsInFlight(2);
+    assertEquals(bufferedBytes, uploader.getBufferedBytes());
+    
+    uploads.get(2).respond(SUCCESS);
+    awaitUploadsInFlight(1);
+    assertEquals(bufferedBytes, uploader.getBufferedBytes());
+    
+    uploads.get(0).respond(SUCCESS);
+    awaitUploadsInFlight(0);
+    assertEquals(0, uploader.getBufferedBytes());
+    
+    // Nothing is uploaded twice.
+    uploader.uploadTimerTick(true);
+    assertNoUpload();
+  }
+  
+  /**
+   * A failed chunk holds back the reclamation of the chunks after it, until it is retried
+   * successfully. Only the failed chunk is retried.
+   */
+  @Test public void testFailedMiddleChunk() throws InterruptedException {
+    recordEvents(0, 3);
+    int bufferedBytes = uploader.getBufferedBytes();
+    
+    uploader.uploadTimerTick(true);
+    Map<Integer, Upload> uploads = awaitUploads(3);
+    
+    uploads.get(0).respond(SUCCESS);
+    awaitUploadsInFlight(2);
+    int afterFirstChunk = uploader.getBufferedBytes();
+    assertTrue(afterFirstChunk > 0 && afterFirstChunk < bufferedBytes);
+    
+    uploads.get(1).respond(FAILURE);
+    awaitUploadsInFlight(1);
+    uploads.get(2).respond(SUCCESS);
+    awaitUploadsInFlight(0);
+    assertEquals(afterFirstChunk, uploader.getBufferedBytes());
+    
+    uploader.uploadTimerTick(true);
+    Map<Integer, Upload> retries = awaitUploads(1);
+    assertTrue(retries.containsKey(1));
+    assertNoUpload();
+    
+    retries.get(1).respond(SUCCESS);
+    awaitUploadsInFlight(0);
+    assertEquals(0, uploader.getBufferedBytes());
+  }
+  
+  /**
+   * Failed chunks are retried oldest first, and before any chunk closed after they failed.
+   */
+  @Test public void testFailedChunksRetriedInOrder() throws InterruptedException {
+    recordEvents(0, 3);
+    int bufferedBytes = uploader.getBufferedBytes();
+    
+    uploader.uploadTimerTick(true);
+    Map<Integer, Upload> uploads = awaitUploads(3);
+    for (int i = 2; i >= 0; i--)
+      uploads.get(i).respond(FAILURE);
+    awaitUploadsInFlight(0);
+    assertEquals(bufferedBytes, uploader.getBufferedBytes());
+    
+    // With two upload slots, the retry covers the two oldest chunks.
+    recordEvents(3, 1);
+    uploader.maxConcurrentUploads = 2;
+    uploader.uploadTimerTick(true);
+    uploads = awaitUploads(2);
+    assertTrue(uploads.containsKey(0) && uploads.containsKey(1));
+    assertNoUpload();
+    uploads.get(1).respond(SUCCESS);
+    uploads.get(0).respond(SUCCESS);
+    awaitUploadsInFlight(0);
+    
+    // Then the remaining failed chunk, and only then the new one.
+    uploader.uploadTimerTick(true);
+    uploads = awaitUploads(2);
+    assertTrue(uploads.containsKey(2) && uploads.containsKey(3));
+    uploads.get(3).respond(SUCCESS);
+    awaitUploadsInFlight(1);
+    assertTrue(uploader.getBufferedBytes() > 0);
+    uploads.get(2).respond(SUCCESS);
+    awaitUploadsInFlight(0);
+    assertEquals(0, uploader.getBufferedBytes());
+  }
+  
+  /**
+   * With the buffer full and no upload completing, Events.tryEvent gives up after its timeout.
+   */
+  @Test public void testTryEventTimesOut() throws Exception {
+    int recorded = fillBufferThroughEvents();
+    
+    long startMs = System.currentTimeMillis();
+    CompletableFuture<EventOutcome> outcome = tryEventInOtherThread(recorded, 200);
+    assertEquals(EventOutcome.bufferFull, outcome.get(30, TimeUnit.SECONDS));
+    assertTrue(System.currentTimeMillis() - startMs >= 190);
+  }
+  
+  /**
+   * Events.tryEvent, waiting on a full buffer, records its event once an upload completes and
+   * releases space.
+   */
+  @Test public void testTryEventRecordedWhenUploadCompletes() throws Exception {
+    int recorded = fillBufferThroughEvents();
+    
+    CompletableFuture<EventOutcome> outcome = tryEventInOtherThread(recorded, 30000);
+    
+    // With one upload at a time, the upload is synchronous: the tick returns once it completes.
+    CompletableFuture<Void> tick = CompletableFuture.runAsync(new Runnable(){
+      @Override public void run() {
+        Events._uploadTimerTick(true);
+      }});
+    Map<Integer, Upload> uploads = awaitUploads(1);
+    assertFalse(outcome.isDone());
+    
+    uploads.get(0).respond(SUCCESS);
+    assertEquals(EventOutcome.recorded, outcome.get(30, TimeUnit.SECONDS));
+    tick.get(30, TimeUnit.SECONDS);
+  }
+  
+  /**
+   * Record events numbered first through first + count - 1. Each is appended to the event buffer
+   * as a batch of its own (see EventUploader.addEventWaitingForSpace).
+   */
+  private void recordEvents(int first, int count) {
+    for (int i = first; i < first + count; i++)
+      assertEquals(EventUploader.ConvertAndAddResult.success,
+          uploader.threadEvents.get().tryEvent(Severity.info, testEvent(i), 0));
+  }
+  
+  /**
+   * Point Events at the stub server, with a buffer which holds only a few test events, and record
+   * events (numbered from 0) until it is full. Return the number recorded.
+   */
+  private int fillBufferThroughEvents() {
+    Events._reset("testSession", new LogService("testToken").setServerAddress(server.address()), 4000, false);
+    
+    int recorded = 0;
+    while (Events.tryEvent(Severity.info, testEvent(recorded), 0) == EventOutcome.recorded)
+      recorded++;
+    
+    assertTrue(recorded > 0);
+    assertEquals(EventOutcome.bufferFull, Events.tryEvent(Severity.info, testEvent(recorded), 0));
+    return recorded;
+  }
+  
+  /**
+   * Invoke Events.tryEvent for the given test event in another thread, and return its outcome.
+   */
+  private static CompletableFuture<EventOutcome> tryEventInOtherThread(final int eventNumber,
+      final long maxWaitMs) {
+    return CompletableFuture.supplyAsync(new Supplier<EventOutcome>(){
+      @Override public EventOutcome get() {
+        return Events.tryEvent(Severity.info, testEvent(eventNumber), maxWaitMs);
+      }});
+  }
+  
+  /**
+   * Return the attributes for the given test event: about 400 bytes, with the event number
+   * embedded for StubServer to find.
+   */
+  private static EventAttributes testEvent(int eventNumber) {
+    StringBuilder padding = new StringBuilder();
+    for (int i = 0; i < 300; i++)
+      padding.append('x');
+    
+    return new EventAttributes("tag", "test", "message", "event-" + eventNumber + "-" + padding);
+  }
+  
+  /**
+   * Wait for the given number of upload requests to arrive, and return them, keyed by the number
+   * of the event each carries.
+   */
+  private Map<Integer, Upload> awaitUploads(int count) throws InterruptedException {
+    Map<Integer, Upload> result = new HashMap<Integer, Upload>();
+    for (int i = 0; i < count; i++) {
+      Upload upload = server.uploads.poll(30, TimeUnit.SECONDS);
+      assertNotNull("timed out waiting for an upload", upload);
+      assertEquals(1, upload.eventNumbers.size());
+      assertNull(result.put(upload.eventNumbers.get(0), upload));
+    }
+    return result;
+  }
+  
+  private void assertNoUpload() throws InterruptedException {
+    assertNull(server.uploads.poll(200, TimeUnit.MILLISECONDS));
+  }
+  
+  /**
+   * Wait until the uploader has processed responses to all but the given number of requests.
+   */
+  private void awaitUploadsInFlight(int count) throws InterruptedException {
+    long deadlineMs = System.currentTimeMillis() + 30000;
+    while (uploader.getUploadsInFlight() != count) {
+      if (System.currentTimeMillis() > deadlineMs)
+        fail("timed out waiting for " + count + " uploads in flight; have " + uploader.getUploadsInFlight());
+      Thread.sleep(5);
+    }
+  }
+  
+  /**
+   * An addEvents request received by the stub server, which waits for the test to respond.
+   */
+  private static class Upload {
+    /**
+     * Numbers of the test events in the request, in order.
+     */
+    final List<Integer> eventNumbers;
+    
+    final CompletableFuture<String> response = new CompletableFuture<String>();
+    
+    Upload(List<Integer> eventNumbers) {
+      this.eventNumbers = eventNumbers;
+    }
+    
+    void respond(String body) {
+      response.complete(body);
+    }
+  }
+  
+  /**
+   * HTTP server on an ephemeral loopback port, which queues each request as an Upload and answers it
+   * (with status 200) once the test supplies a response body. Requests are handled concurrently.
+   */
+  private static class StubServer {
+    private static final Pattern EVENT_NUMBER = Pattern.compile("event-(\\d+)-");
+    
+    final BlockingQueue<Upload> uploads = new LinkedBlockingQueue<Upload>();
+    
+    private final List<Upload> allUploads = new ArrayList<Upload>();
+    private final HttpServer server;
+    
+    StubServer() {
+      try {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+      
+      server.setExecutor(Executors.newCachedThreadPool());
+      server.createContext("/", new HttpHandler(){
+        @Override public void handle(HttpExchange exchange) throws IOException {
+          String body = new String(readAll(exchange.getRequestBody()), ScalyrUtil.utf8);
+          List<Integer> eventNumbers = new ArrayList<Integer>();
+          Matcher matcher = EVENT_NUMBER.matcher(body);
+          while (matcher.find())
+            eventNumbers.add(Integer.parseInt(matcher.group(1)));
+          
+          Upload upload = new Upload(eventNumbers);
+          synchronized (allUploads) {
+            allUploads.add(upload);
+          }
+          uploads.add(upload);
+          
+          String responseBody;
+          try {
+            responseBody = upload.response.get(30, TimeUnit.SECONDS);
+          } catch (Exception ex) {
+            responseBody = FAILURE;
+          }
+          
+          byte[] response = responseBody.getBytes(ScalyrUtil.utf8);
+          exchange.sendResponseHeaders(200, response.length);
+          OutputStream output = exchange.getResponseBody();
+          output.write(response);
+          output.close();
+        }});
+      server.start();
+    }
+    
+    String address() {
+      return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+    }
+    
+    /**
+     * Answer any outstanding requests with a failure, and shut down.
+     */
+    void stop() {
+      synchronized (allUploads) {
+        for (Upload upload : allUploads)
+          upload.respond(FAILURE);
+      }
+      server.stop(0);
+    }
+  }
+  
+  private static byte[] readAll(InputStream input) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int count;
+    while ((count = input.read(buffer)) > 0)
+      result.write(buffer, 0, count);
+    return result.toByteArray();
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.scalyr.api.logs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for when Events invokes LazyEventAttributes.build().
+ */
+public class LazyEventAttributesTest {
+  private EventFilter filter;
+  private CountingAttributes attributes;
+  
+  @Before public void setUp() {
+    // Nothing is uploaded; the server address is never contacted.
+    Events._reset("testSession", new LogService("testToken").setServerAddress("http://localhost:1"),
+        100000, false);
+    
+    filter = new EventFilter(){
+      @Override public Decision decide(long timestampNs, int spanType, Severity severity,
+          EventAttributes attributes, boolean isTopLevel, boolean inDiscardedSpan) {
+        return "noisy".equals(attributes.get("tag")) ? Decision.discard : Decision.keep;
+      }
+      
+      @Override public boolean isTagEnabled(Severity severity, String tag) {
+        return !"noisy".equals(tag);
+      }
+    };
+    filter.setMinimumSeverity(Severity.warning);
+    Events.setEventFilter(filter);
+    
+    attributes = new CountingAttributes("test");
+  }
+  
+  @After public void tearDown() {
+    Events.setEventFilter(null);
+  }
+  
+  @Test public void testLeafEvents() {
+    Events.info(attributes);
+    assertEquals(0, attributes.builds);
+    
+    Events.warning(attributes);
+    Events.error(attributes);
+    Events.fatal(attributes);
+    assertEquals(3, attributes.builds);
+  }
+  
+  /**
+   * The attributes are built before the filter's tag-based decision, which needs them.
+   */
+  @Test public void testDiscardedByTag() {
+    CountingAttributes noisy = new CountingAttributes("noisy");
+    Events.warning(noisy);
+    assertEquals(1, noisy.builds);
+    
+    assertFalse(Events.isEnabled(Severity.warning, "noisy"));
+    assertTrue(Events.isEnabled(Severity.warning, "test"));
+  }
+  
+  @Test public void testSpans() {
+    Span span = Events.startInfo(attributes);
+    Events.end(span, attributes);
+    assertEquals(0, attributes.builds);
+    
+    span = Events.startWarning(attributes);
+    assertEquals(1, attributes.builds);
+    Events.end(span, attributes);
+    assertEquals(2, attributes.builds);
+  }
+  
+  /**
+   * An end event below the minimum severity is built if its start event was recorded.
+   */
+  @Test public void testMinimumRaisedWithinSpan() {
+    filter.setMinimumSeverity(Severity.finest);
+    Span span = Events.startInfo(attributes);
+    assertEquals(1, attributes.builds);
+    
+    filter.setMinimumSeverity(Severity.warning);
+    Events.end(span, attributes);
+    assertEquals(2, attributes.builds);
+  }
+  
+  private static class CountingAttributes extends LazyEventAttributes {
+    private final String tag;
+    int builds;
+    
+    CountingAttributes(String tag) {
+      this.tag = tag;
+    }
+    
+    @Override public EventAttributes build() {
+      builds++;
+      return new EventAttributes("tag", tag);
+    }
+  }
+}
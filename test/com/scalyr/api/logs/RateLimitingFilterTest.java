@@ -0,0 +1,189 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.scalyr.api.logs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.scalyr.api.TuningConstants;
+import com.scalyr.api.knobs.Knob;
+import com.scalyr.api.logs.EventFilter.Decision;
+
+/**
+ * Tests for RateLimitingFilter. Events are passed to decide() directly, with synthetic timestamps.
+ */
+public class RateLimitingFilterTest {
+  private static final long START_NS = 1000000000000L;
+  private static final long MS = 1000000L;
+  
+  private RateLimitingFilter filter;
+  
+  /**
+   * Attributes of the summary events recorded through Events.
+   */
+  private final List<EventAttributes> summaries = new ArrayList<EventAttributes>();
+  
+  @Before public void setUp() {
+    // Summary events are recorded through Events; capture (and discard) them with a filter there.
+    Events._reset("testSession", new LogService("testToken").setServerAddress("http://localhost:1"),
+        100000, false);
+    Events.setEventFilter(new EventFilter(){
+      @Override public void filter(FilterInput input, FilterOutput output) {
+        if (RateLimitingFilter.SUMMARY_TAG.equals(input.attributes.get("tag"))) {
+          synchronized (summaries) {
+            summaries.add(input.attributes);
+          }
+        }
+        output.discardEvent = true;
+      }
+    });
+  }
+  
+  @After public void tearDown() {
+    if (filter != null)
+      filter.cancel();
+    
+    Events.setEventFilter(null);
+  }
+  
+  /**
+   * The generic cell rate algorithm admits a burst after a quiet period, then events at the
+   * sustained rate.
+   */
+  @Test public void testRateLimit() {
+    createFilter("{'limits': {'db/error': {'eventsPerSecond': 10, 'burst': 3}}}");
+    
+    assertEquals(3, admitted("db/error", START_NS, 5));
+    
+    // At 10 events per second, one more event is admitted after 100ms...
+    assertEquals(0, admitted("db/error", START_NS + 50 * MS, 1));
+    assertEquals(1, admitted("db/error", START_NS + 100 * MS, 2));
+    
+    // ...and the full burst after a quiet period.
+    assertEquals(3, admitted("db/error", START_NS + 1000 * MS, 5));
+    
+    // Other values, and events lacking the attribute, are not limited.
+    assertEquals(5, admitted("other", START_NS, 5));
+    assertEquals(Decision.keep, filter.decide(START_NS, LogService.SPAN_TYPE_LEAF, Severity.info,
+        new EventAttributes("message", "untagged"), true, false));
+  }
+  
+  /**
+   * Span events always pass, so that spans stay balanced.
+   */
+  @Test public void testSpansNotLimited() {
+    createFilter("{'default': {'eventsPerSecond': 1, 'burst': 1}}");
+    
+    EventAttributes attributes = new EventAttributes("tag", "db/query");
+    for (int i = 0; i < 3; i++) {
+      assertEquals(Decision.keep, filter.decide(START_NS, LogService.SPAN_TYPE_START, Severity.info,
+          attributes, true, false));
+      assertEquals(Decision.keep, filter.decide(START_NS, LogService.SPAN_TYPE_END, Severity.info,
+          attributes, true, false));
+    }
+  }
+  
+  @Test public void testSampling() {
+    createFilter("{'limits': {'none': {'sampleRate': 0}, 'all': {'sampleRate': 1},"
+        + " 'quarter': {'sampleRate': 0.25}}}");
+    
+    assertEquals(0, admitted("none", START_NS, 1000));
+    assertEquals(1000, admitted("all", START_NS, 1000));
+    
+    // The sample is random; this range is many standard deviations (about 43) wide.
+    int quarter = admitted("quarter", START_NS, 10000);
+    assertTrue("admitted " + quarter, quarter > 2000 && quarter < 3000);
+  }
+  
+  /**
+   * Once MAX_RATE_LIMITERS default-limited values have been seen, further such values share a
+   * limiter; values with a limit of their own still get their own.
+   */
+  @Test public void testLimiterCap() {
+    createFilter("{'default': {'eventsPerSecond': 1, 'burst': 1},"
+        + " 'limits': {'db/error': {'eventsPerSecond': 1, 'burst': 5}}}");
+    
+    for (int i = 0; i < TuningConstants.MAX_RATE_LIMITERS; i++)
+      assertEquals(1, admitted("value" + i, START_NS, 1));
+    
+    // Two new default-limited values share one limiter, so only one event between them passes.
+    assertEquals(1, admitted("shared1", START_NS, 1));
+    assertEquals(0, admitted("shared2", START_NS, 1));
+    
+    assertEquals(5, admitted("db/error", START_NS, 10));
+  }
+  
+  /**
+   * Each summary event reports the events suppressed for one value since the last summary.
+   */
+  @Test public void testSummary() {
+    createFilter("{'limits': {'db/error': {'eventsPerSecond': 1, 'burst': 2},"
+        + " 'cache/miss': {'sampleRate': 0}}}");
+    
+    admitted("db/error", START_NS, 5);
+    admitted("cache/miss", START_NS, 4);
+    admitted("other", START_NS, 4);
+    
+    filter.recordSummary();
+    assertEquals(2, summaries.size());
+    for (EventAttributes summary : summaries) {
+      if ("db/error".equals(summary.get("value"))) {
+        assertEquals(3L, summary.get("rateLimited"));
+        assertEquals(0L, summary.get("sampledOut"));
+      } else {
+        assertEquals("cache/miss", summary.get("value"));
+        assertEquals(0L, summary.get("rateLimited"));
+        assertEquals(4L, summary.get("sampledOut"));
+      }
+    }
+    
+    // The counts are reset; nothing new has been suppressed.
+    summaries.clear();
+    filter.recordSummary();
+    assertEquals(0, summaries.size());
+  }
+  
+  private void createFilter(String config) {
+    String json = "{'rateLimits': " + config + "}";
+    Knob knob = new Knob("rateLimits", null, new TestConfigurationFile(json.replace('\'', '"')));
+    filter = new RateLimitingFilter(knob);
+  }
+  
+  /**
+   * Pass count leaf events with the given tag to the filter, at the given time, and return the
+   * number it keeps.
+   */
+  private int admitted(String tag, long timestampNs, int count) {
+    EventAttributes attributes = new EventAttributes("tag", tag);
+    int kept = 0;
+    for (int i = 0; i < count; i++)
+      if (filter.decide(timestampNs, LogService.SPAN_TYPE_LEAF, Severity.info, attributes, true, false)
+          == Decision.keep)
+        kept++;
+    
+    return kept;
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Scalyr client library
+ * Copyright 2012 Scalyr, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.scalyr.api.logs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.scalyr.api.LogHook;
+import com.scalyr.api.knobs.Knob;
+import com.scalyr.api.logs.EventFilter.Decision;
+
+/**
+ * Tests for RuleBasedFilter. Events are passed to decide() directly.
+ */
+public class RuleBasedFilterTest {
+  /**
+   * The example from the class comment.
+   */
+  private static final String EXAMPLE_RULES = "["
+      + "{'tag': 'db/query', 'maxSeverity': 'fine', 'action': 'discard'},"
+      + "{'tagPrefix': 'cache/', 'attributes': {'hit': true}, 'action': 'discard'},"
+      + "{'minSeverity': 'info', 'action': 'keep'},"
+      + "{'topLevel': false, 'action': 'discard'}"
+      + "]";
+  
+  private TestConfigurationFile file;
+  private RuleBasedFilter filter;
+  
+  @Before public void setUp() {
+    // Invalid rules are logged as warnings; keep them out of the test output.
+    LogHook.setHook(new LogHook.ThresholdLogger(Severity.error));
+  }
+  
+  @After public void tearDown() {
+    if (filter != null)
+      filter.cancel();
+    
+    Events.setEventFilter(null);
+    LogHook.setHook(new LogHook.ThresholdLogger(Severity.info));
+  }
+  
+  @Test public void testExampleRules() {
+    createFilter(EXAMPLE_RULES);
+    
+    // Rule 1: db/query at fine or below is discarded, even at top level; rule 3 keeps the rest.
+    assertDecision(Decision.discard, Severity.fine, true, "tag", "db/query");
+    assertDecision(Decision.discard, Severity.finest, true, "tag", "db/query");
+    assertDecision(Decision.keep, Severity.info, false, "tag", "db/query");
+    
+    // Rule 2: cache hits are discarded at any severity, ahead of rule 3.
+    assertDecision(Decision.discard, Severity.warning, true, "tag", "cache/get", "hit", true);
+    assertDecision(Decision.keep, Severity.warning, true, "tag", "cache/get", "hit", false);
+    assertDecision(Decision.keep, Severity.fine, true, "tag", "cache/get", "hit", false);
+    assertDecision(Decision.keep, Severity.fine, true, "tag", "cachexget", "hit", true);
+    
+    // Rule 4: below info, events within a span are discarded; top-level events match no rule.
+    assertDecision(Decision.discard, Severity.fine, false, "tag", "cache/get", "hit", false);
+    assertDecision(Decision.discard, Severity.fine, false, "tag", "other");
+    assertDecision(Decision.discard, Severity.fine, false);
+    assertDecision(Decision.keep, Severity.fine, true, "tag", "other");
+    assertDecision(Decision.keep, Severity.info, false, "tag", "other");
+  }
+  
+  /**
+   * Within a discarded span, everything is discarded; otherwise, end events are kept.
+   */
+  @Test public void testSpans() {
+    createFilter(EXAMPLE_RULES);
+    
+    EventAttributes attributes = new EventAttributes("tag", "db/query");
+    assertEquals(Decision.discard,
+        filter.decide(0, LogService.SPAN_TYPE_START, Severity.fine, attributes, true, false));
+    assertEquals(Decision.discard,
+        filter.decide(0, LogService.SPAN_TYPE_LEAF, Severity.error, attributes, false, true));
+    assertEquals(Decision.discard,
+        filter.decide(0, LogService.SPAN_TYPE_END, Severity.fine, attributes, true, true));
+    assertEquals(Decision.keep,
+        filter.decide(0, LogService.SPAN_TYPE_END, Severity.fine, attributes, true, false));
+  }
+  
+  @Test public void testAttributeValues() {
+    createFilter("[{'attributes': {'count': 1, 'user': null}, 'action': 'discard'}]");
+    
+    // Numbers are compared numerically; null matches a missing attribute.
+    assertDecision(Decision.discard, Severity.info, true, "count", 1);
+    assertDecision(Decision.discard, Severity.info, true, "count", 1.0);
+    assertDecision(Decision.keep, Severity.info, true, "count", 2);
+    assertDecision(Decision.keep, Severity.info, true, "count", 1, "user", "alice");
+  }
+  
+  @Test public void testIsTagEnabled() {
+    createFilter(EXAMPLE_RULES);
+    
+    assertFalse(filter.isTagEnabled(Severity.fine, "db/query"));
+    assertTrue(filter.isTagEnabled(Severity.info, "db/query"));
+    
+    // Conditional rules (on attributes, tag prefix, or topLevel) leave the tag enabled.
+    assertTrue(filter.isTagEnabled(Severity.fine, "cache/get"));
+    assertTrue(filter.isTagEnabled(Severity.fine, "other"));
+    
+    createFilter("[{'tag': 'noisy', 'action': 'discard'}]");
+    assertFalse(filter.isTagEnabled(Severity.fatal, "noisy"));
+    assertTrue(filter.isTagEnabled(Severity.finest, "quiet"));
+  }
+  
+  /**
+   * The minimum severity is the lowest severity not discarded for every tag, and is published to
+   * Events.isEnabled as the rules change.
+   */
+  @Test public void testMinimumSeverity() {
+    Events._reset("testSession", new LogService("testToken").setServerAddress("http://localhost:1"),
+        100000, false);
+    
+    createFilter(EXAMPLE_RULES);
+    assertEquals(Severity.finest, filter.getMinimumSeverity());
+    
+    createFilter("[{'tag': 'db/query', 'action': 'keep'},"
+        + " {'maxSeverity': 'fine', 'action': 'discard'}]");
+    assertEquals(Severity.finest, filter.getMinimumSeverity());
+    
+    file.setContent(toJson("[{'maxSeverity': 'fine', 'action': 'discard'}]"));
+    assertEquals(Severity.info, filter.getMinimumSeverity());
+    
+    Events.setEventFilter(filter);
+    assertFalse(Events.isEnabled(Severity.fine));
+    assertTrue(Events.isEnabled(Severity.info));
+    
+    file.setContent(toJson("[{'maxSeverity': 'finer', 'action': 'discard'}]"));
+    assertEquals(Severity.fine, filter.getMinimumSeverity());
+    assertTrue(Events.isEnabled(Severity.fine));
+    assertFalse(Events.isEnabled(Severity.finer));
+  }
+  
+  /**
+   * If the rules are invalid, the previous rules remain in effect.
+   */
+  @Test public void testInvalidRules() {
+    createFilter("[{'maxSeverity': 'fine', 'action': 'discard'}]");
+    
+    String[] invalidRules = {
+        "[{'maxSeverity': 'fine'}]",
+        "[{'maxSeverity': 'fine', 'action': 'drop'}]",
+        "[{'maxSeverity': 'verbose', 'action': 'discard'}]",
+        "[{'tag': 7, 'action': 'discard'}]",
+        "{'action': 'discard'}",
+        "'discard'"
+    };
+    for (String rules : invalidRules) {
+      file.setContent(toJson(rules));
+      assertDecision(Decision.discard, Severity.fine, true, "tag", "test");
+      assertDecision(Decision.keep, Severity.info, true, "tag", "test");
+      assertEquals(Severity.info, filter.getMinimumSeverity());
+    }
+    
+    // Valid rules are picked up again.
+    file.setContent(toJson("[]"));
+    assertDecision(Decision.keep, Severity.fine, true, "tag", "test");
+    assertEquals(Severity.finest, filter.getMinimumSeverity());
+  }
+  
+  /**
+   * Create a filter whose rules Knob initially has the given value.
+   */
+  private void createFilter(String rules) {
+    if (filter != null)
+      filter.cancel();
+    
+    file = new TestConfigurationFile(toJson(rules));
+    filter = new RuleBasedFilter(new Knob("rules", null, file));
+  }
+  
+  /**
+   * Return a configuration file holding the given rules, with single quotes standing in for double.
+   */
+  private static String toJson(String rules) {
+    return ("{'rules': " + rules + "}").replace('\'', '"');
+  }
+  
+  private void assertDecision(Decision expected, Severity severity, boolean isTopLevel, Object ... attributes) {
+    EventAttributes eventAttributes = new EventAttributes(attributes);
+    assertEquals(eventAttributes.toString(), expected,
+        filter.decide(0, LogService.SPAN_TYPE_LEAF, severity, eventAttributes, isTopLevel, false));
+  }
+}
@@ -15,22 +15,26 @@
  * limitations under the License.
  */
 
-package com.scalyr.api.internal;
 
-import java.io.OutputStream;
+package com.scalyr.api.logs;
+
+import com.scalyr.api.knobs.ConfigurationFile;
 
 /**
- * OutputStream implementation which discards all output, but counts the number of
- * bytes which were written.
+ * A ConfigurationFile whose content is set directly by the test, for Knob-configured filters.
  */
-public class CountingOutputStream extends OutputStream {
-  public int bytesWritten;
+class TestConfigurationFile extends ConfigurationFile {
+  private long version = 0;
   
-  @Override public void write(int b) {
-    bytesWritten++;
+  TestConfigurationFile(String content) {
+    super("/test.json");
+    setContent(content);
   }
-
-  @Override public void write (byte[] b, int offset, int length) {
-    bytesWritten += length;
+  
+  /**
+   * Replace the file's content, notifying listeners (and so Knobs) synchronously.
+   */
+  void setContent(String content) {
+    setFileState(new FileState(++version, content, null, null));
   }
 }